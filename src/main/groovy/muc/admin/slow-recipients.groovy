@@ -0,0 +1,54 @@
+/*
+ Lists recipients with the highest estimated number of outstanding packets.
+ AS:Description: Slow recipients
+ AS:CommandId: slow-recipients
+ AS:Component: muc
+ AS:ComponentClass: tigase.muc.MUCComponent
+*/
+
+package muc.admin;
+
+import tigase.muc.OutboundBudget;
+import tigase.server.Command
+import tigase.server.Iq;
+import tigase.server.Packet
+
+def COUNT_KEY = "count";
+
+def budget = (OutboundBudget)outboundBudget;
+def Iq p = (Iq)packet;
+def admins = (Set)adminsSet
+
+def stanzaFromBare = p.getStanzaFrom().getBareJID()
+def isServiceAdmin = admins.contains(stanzaFromBare)
+if (!isServiceAdmin) {
+	def result = p.commandResult(Command.DataType.result)
+	Command.addTextField(result, "Error", "You do not have enough permissions to access this data.");
+	return result
+}
+
+def countStr = Command.getFieldValue(p, COUNT_KEY);
+
+if (countStr == null) {
+	def res = (Packet)p.commandResult(Command.DataType.form)
+	Command.addFieldValue(res, COUNT_KEY, "20", "text-single", "Number of recipients")
+	return res
+}
+
+def result = p.commandResult(Command.DataType.result)
+if (!budget.isEnabled()) {
+	Command.addTextField(result, "Note", "Slow consumer detection is disabled (outbound-budget-threshold is 0).");
+	return result
+}
+
+def count = Integer.parseInt(countStr.trim());
+def slow = budget.getTopSlowRecipients(count);
+if (slow.isEmpty()) {
+	Command.addTextField(result, "Note", "There are no slow recipients.");
+} else {
+	def i = 0;
+	for (r in slow) {
+		Command.addTextField(result, "Recipient " + (++i), r.toString());
+	}
+}
+return result
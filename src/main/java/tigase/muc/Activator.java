@@ -9,9 +9,11 @@ import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 import tigase.muc.history.DerbySqlHistoryProvider;
+import tigase.muc.history.FileHistoryProvider;
 import tigase.muc.history.MemoryHistoryProvider;
 import tigase.muc.history.MySqlHistoryProvider;
 import tigase.muc.history.NoneHistoryProvider;
+import tigase.muc.history.OffHeapHistoryProvider;
 import tigase.muc.history.PostgreSqlHistoryProvider;
 import tigase.muc.history.SqlserverSqlHistoryProvider;
 import tigase.osgi.ModulesManager;
@@ -60,9 +62,11 @@ public class Activator implements BundleActivator, ServiceListener {
 			mucComponentClass = MUCComponent.class;
 			repositoryClasses = new ArrayList<Class>();
 			repositoryClasses.add(DerbySqlHistoryProvider.class);
+			repositoryClasses.add(FileHistoryProvider.class);
 			repositoryClasses.add(MemoryHistoryProvider.class);
 			repositoryClasses.add(MySqlHistoryProvider.class);
 			repositoryClasses.add(NoneHistoryProvider.class);
+			repositoryClasses.add(OffHeapHistoryProvider.class);
 			repositoryClasses.add(PostgreSqlHistoryProvider.class);
 			repositoryClasses.add(SqlserverSqlHistoryProvider.class);
 			bc.addServiceListener(this, "(&(objectClass=" + ModulesManager.class.getName() + "))");
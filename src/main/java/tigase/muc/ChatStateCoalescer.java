@@ -0,0 +1,252 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.JID;
+
+/**
+ * Limits chat state notifications to one per occupant in window, regardless
+ * of state. Chat state sent within window after previous broadcast is held
+ * back, replacing previously held state, and the latest one is broadcasted
+ * when window ends, so alternating states can't bypass coalescing and
+ * recipients always get final state.
+ */
+public class ChatStateCoalescer implements StatisticsProvider {
+
+	private static final class LastState {
+
+		private Packet pending;
+
+		private String pendingState;
+
+		private Room pendingRoom;
+
+		/**
+		 * Set when entry is removed from map, so it isn't updated anymore.
+		 */
+		private boolean removed;
+
+		private String state;
+
+		private long time;
+	}
+
+	/**
+	 * Chat state held back by coalescing, which should be broadcasted now.
+	 */
+	public static final class Pending {
+
+		private final JID occupantJID;
+
+		private final Packet packet;
+
+		private final Room room;
+
+		Pending(Room room, JID occupantJID, Packet packet) {
+			this.room = room;
+			this.occupantJID = occupantJID;
+			this.packet = packet;
+		}
+
+		/**
+		 * @return room JID of occupant.
+		 */
+		public JID getOccupantJID() {
+			return occupantJID;
+		}
+
+		public Packet getPacket() {
+			return packet;
+		}
+
+		public Room getRoom() {
+			return room;
+		}
+	}
+
+	private final AtomicLong accepted = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private final AtomicLong delayed = new AtomicLong();
+
+	private final ConcurrentHashMap<JID, LastState> states = new ConcurrentHashMap<JID, LastState>();
+
+	private volatile long window = 5000;
+
+	/**
+	 * Checks if chat state should be broadcasted to room now. Otherwise it is
+	 * held back and returned by {@linkplain #drainDue()} when window ends,
+	 * unless it is the same as already broadcasted state or is replaced by
+	 * newer one.
+	 * 
+	 * @param room
+	 * @param occupantJID
+	 *            room JID of occupant (<code>room@service/nick</code>).
+	 * @param state
+	 *            name of chat state element.
+	 * @param packet
+	 *            chat state message to broadcast.
+	 * @return <code>true</code> if chat state should be broadcasted now.
+	 */
+	public boolean accept(final Room room, final JID occupantJID, final String state, final Packet packet) {
+		final long now = System.currentTimeMillis();
+		final long w = window;
+		while (true) {
+			LastState last = states.get(occupantJID);
+			if (last == null) {
+				last = new LastState();
+				LastState x = states.putIfAbsent(occupantJID, last);
+				if (x != null) {
+					last = x;
+				}
+			}
+			synchronized (last) {
+				if (last.removed) {
+					continue;
+				}
+				if (last.state == null || now - last.time >= w) {
+					last.state = state;
+					last.time = now;
+					last.pending = null;
+					last.pendingState = null;
+					last.pendingRoom = null;
+					accepted.incrementAndGet();
+					return true;
+				}
+				coalesced.incrementAndGet();
+				if (state.equals(last.state)) {
+					// occupant went back to broadcasted state
+					last.pending = null;
+					last.pendingState = null;
+					last.pendingRoom = null;
+				} else {
+					last.pending = packet;
+					last.pendingState = state;
+					last.pendingRoom = room;
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Returns held back chat states which window ended, and remembers them as
+	 * broadcasted.
+	 * 
+	 * @return chat states to broadcast.
+	 */
+	public List<Pending> drainDue() {
+		final long now = System.currentTimeMillis();
+		final long w = window;
+		List<Pending> result = null;
+		for (Map.Entry<JID, LastState> e : states.entrySet()) {
+			final LastState last = e.getValue();
+			synchronized (last) {
+				if (last.pending == null || now - last.time < w) {
+					continue;
+				}
+				if (result == null) {
+					result = new ArrayList<Pending>();
+				}
+				result.add(new Pending(last.pendingRoom, e.getKey(), last.pending));
+				last.state = last.pendingState;
+				last.time = now;
+				last.pending = null;
+				last.pendingState = null;
+				last.pendingRoom = null;
+			}
+		}
+		if (result == null) {
+			return Collections.emptyList();
+		}
+		delayed.addAndGet(result.size());
+		return result;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Chat states broadcasted", accepted.get(), Level.FINE);
+		list.add(compName, "Chat states coalesced", coalesced.get(), Level.FINE);
+		list.add(compName, "Chat states delayed", delayed.get(), Level.FINE);
+		list.add(compName, "Chat state tracked occupants", states.size(), Level.FINEST);
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Forgets last and held back chat state of occupant. Should be called
+	 * when occupant sends regular message, because it resets state of
+	 * conversation.
+	 * 
+	 * @param occupantJID
+	 *            room JID of occupant.
+	 */
+	public void reset(JID occupantJID) {
+		final LastState last = states.remove(occupantJID);
+		if (last != null) {
+			synchronized (last) {
+				last.removed = true;
+			}
+		}
+	}
+
+	/**
+	 * @param window
+	 *            time in milliseconds in which only one chat state of
+	 *            occupant is broadcasted. 0 disables coalescing.
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Removes remembered states older than window, without held back state.
+	 */
+	public void sweep() {
+		final long limit = System.currentTimeMillis() - window;
+		Iterator<LastState> it = states.values().iterator();
+		while (it.hasNext()) {
+			final LastState last = it.next();
+			synchronized (last) {
+				if (last.pending == null && last.time < limit) {
+					last.removed = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+}
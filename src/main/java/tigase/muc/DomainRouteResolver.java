@@ -0,0 +1,40 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import tigase.xmpp.JID;
+
+/**
+ * {@linkplain RecipientRouteResolver} grouping recipients by domain, as all
+ * sessions of domain are handled by the same session manager (or, for remote
+ * domains, by the same s2s connection). Grouping is disabled by default, set
+ * <code>fanout-route-resolver</code> to class name of this resolver to
+ * enable it.
+ */
+public class DomainRouteResolver implements RecipientRouteResolver {
+
+	@Override
+	public String getRoute(JID recipient) {
+		return recipient.getDomain();
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+
+/**
+ * Detects groupchat messages re-sent by clients. For each room keeps
+ * fixed-size ring of 64-bit fingerprints of last accepted messages,
+ * calculated from sender bare JID and message <code>origin-id</code>
+ * (XEP-0359) or, if message has no <code>origin-id</code>, stanza
+ * <code>id</code>.
+ */
+public class DuplicateFilter implements StatisticsProvider {
+
+	private static final class Window {
+
+		private int pos;
+
+		private final long[] ring;
+
+		private int size;
+
+		Window(int capacity) {
+			this.ring = new long[capacity];
+		}
+
+		/**
+		 * @return <code>false</code> if fingerprint is already remembered.
+		 */
+		synchronized boolean add(final long fingerprint) {
+			for (int i = 0; i < size; i++) {
+				if (ring[i] == fingerprint) {
+					return false;
+				}
+			}
+			ring[pos] = fingerprint;
+			pos = (pos + 1) % ring.length;
+			if (size < ring.length) {
+				++size;
+			}
+			return true;
+		}
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	static long fingerprint(final String sender, final String id) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < sender.length(); i++) {
+			h ^= sender.charAt(i);
+			h *= FNV_PRIME;
+		}
+		h ^= 0;
+		h *= FNV_PRIME;
+		for (int i = 0; i < id.length(); i++) {
+			h ^= id.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	private final AtomicLong checked = new AtomicLong();
+
+	private final AtomicLong duplicates = new AtomicLong();
+
+	private volatile int windowSize = 64;
+
+	private final ConcurrentHashMap<BareJID, Window> windows = new ConcurrentHashMap<BareJID, Window>();
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		final long c = checked.get();
+		final long d = duplicates.get();
+		list.add(compName, "Duplicate filter checked messages", c, Level.FINE);
+		list.add(compName, "Duplicate filter dropped messages", d, Level.FINE);
+		list.add(compName, "Duplicate filter hit rate [%]", c == 0 ? 0f : (d * 100f / c), Level.FINE);
+		list.add(compName, "Duplicate filter rooms", windows.size(), Level.FINEST);
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Checks if message was already accepted in room and remembers it if
+	 * not, as single operation, so one of two copies processed at the same
+	 * time is dropped. Must be called only after permission and rate checks
+	 * passed, so rejected message may be re-sent.
+	 * 
+	 * @param roomJID
+	 *            room address.
+	 * @param senderJID
+	 *            bare JID of sender.
+	 * @param messageId
+	 *            <code>origin-id</code> of message or stanza <code>id</code>.
+	 *            If <code>null</code> then message is never treated as
+	 *            duplicate.
+	 * @return <code>false</code> if message is duplicate and should be
+	 *         dropped.
+	 */
+	public boolean accept(final BareJID roomJID, final BareJID senderJID, final String messageId) {
+		final int capacity = windowSize;
+		if (capacity <= 0 || messageId == null) {
+			return true;
+		}
+
+		checked.incrementAndGet();
+		Window w = windows.get(roomJID);
+		if (w == null) {
+			w = new Window(capacity);
+			Window x = windows.putIfAbsent(roomJID, w);
+			if (x != null) {
+				w = x;
+			}
+		}
+		if (!w.add(fingerprint(senderJID.toString(), messageId))) {
+			duplicates.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	public void removeRoom(BareJID roomJID) {
+		windows.remove(roomJID);
+	}
+
+	/**
+	 * Removes windows of rooms which are not active anymore.
+	 * 
+	 * @param activeRooms
+	 */
+	public void retainRooms(Map<BareJID, ?> activeRooms) {
+		Iterator<BareJID> it = windows.keySet().iterator();
+		while (it.hasNext()) {
+			if (!activeRooms.containsKey(it.next())) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param windowSize
+	 *            number of remembered messages per room. 0 disables filter.
+	 */
+	public void setWindowSize(int windowSize) {
+		if (this.windowSize != windowSize) {
+			this.windowSize = windowSize;
+			windows.clear();
+		}
+	}
+
+}
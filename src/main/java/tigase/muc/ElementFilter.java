@@ -0,0 +1,149 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import tigase.xml.Element;
+
+/**
+ * Immutable set of allowed child elements, keyed by element name and
+ * namespace. Each check is a constant number of hash lookups.
+ * 
+ * Rules are written in Clark notation: <code>{xmlns}name</code>. Both parts
+ * are optional and <code>*</code> matches any name, for example:
+ * <ul>
+ * <li><code>show</code> &mdash; element <code>show</code> in any namespace,</li>
+ * <li><code>{http://jabber.org/protocol/caps}*</code> &mdash; any element in
+ * namespace,</li>
+ * <li><code>{http://jabber.org/protocol/xhtml-im}html</code> &mdash; only
+ * given name in given namespace.</li>
+ * </ul>
+ */
+public class ElementFilter {
+
+	private static final String ANY = "*";
+
+	public static final ElementFilter EMPTY = new ElementFilter(new String[] {});
+
+	/**
+	 * Creates filter from configuration value. Accepts <code>String[]</code>
+	 * or comma separated <code>String</code>.
+	 * 
+	 * @param value
+	 * @param defaultFilter
+	 *            returned if value is <code>null</code>.
+	 * @return filter.
+	 */
+	public static ElementFilter fromProperty(Object value, ElementFilter defaultFilter) {
+		if (value instanceof String[]) {
+			return new ElementFilter((String[]) value);
+		} else if (value instanceof String) {
+			String v = ((String) value).trim();
+			return new ElementFilter(v.isEmpty() ? new String[] {} : v.split(","));
+		} else {
+			return defaultFilter;
+		}
+	}
+
+	/**
+	 * Allowed namespaces for given element name. Key is name, value contains
+	 * namespaces or {@link #ANY}.
+	 */
+	private final Map<String, Set<String>> names = new HashMap<String, Set<String>>();
+
+	/**
+	 * Namespaces in which any element is allowed.
+	 */
+	private final Set<String> namespaces = new HashSet<String>();
+
+	private final String[] rules;
+
+	public ElementFilter(String... rules) {
+		this.rules = rules;
+		for (String rule : rules) {
+			rule = rule.trim();
+			if (rule.isEmpty()) {
+				continue;
+			}
+			String xmlns = ANY;
+			String name = rule;
+			if (rule.startsWith("{")) {
+				int idx = rule.indexOf('}');
+				if (idx == -1) {
+					throw new IllegalArgumentException("Invalid element rule: " + rule);
+				}
+				xmlns = rule.substring(1, idx);
+				name = rule.substring(idx + 1);
+			}
+			if (name.isEmpty() || ANY.equals(name)) {
+				namespaces.add(xmlns);
+			} else {
+				Set<String> x = names.get(name);
+				if (x == null) {
+					x = new HashSet<String>();
+					names.put(name, x);
+				}
+				x.add(xmlns);
+			}
+		}
+	}
+
+	/**
+	 * @return configured rules.
+	 */
+	public Set<String> getRules() {
+		HashSet<String> result = new HashSet<String>();
+		for (String rule : rules) {
+			result.add(rule.trim());
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	public boolean isAllowed(final Element element) {
+		return isAllowed(element.getName(), element.getXMLNS());
+	}
+
+	public boolean isAllowed(final String name, final String xmlns) {
+		if (namespaces.contains(ANY) || (xmlns != null && namespaces.contains(xmlns))) {
+			return true;
+		}
+		Set<String> x = names.get(name);
+		if (x == null) {
+			return false;
+		}
+		return x.contains(ANY) || (xmlns != null && x.contains(xmlns));
+	}
+
+	public boolean isEmpty() {
+		return names.isEmpty() && namespaces.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return getRules().toString();
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.TigaseStringprepException;
+import tigase.xmpp.JID;
+
+/**
+ * Executes room fan-out. Small recipient lists are processed by calling
+ * thread. Lists with at least {@linkplain #getParallelThreshold() threshold}
+ * recipients are split into sub-tasks executed on dedicated fork-join pool.
+ * Calling thread waits until all sub-tasks are finished, so packets of next
+ * fan-out processed by the same thread are never handed off before packets
+ * of previous one. Inside each sub-task recipients are processed in list
+ * order.
+ * 
+ * If {@linkplain RecipientRouteResolver route resolver} is set, recipients
+ * are grouped by route first and each group is handed off in own batches.
+ * 
+ * If task fails for any recipient, its exception is thrown by
+ * {@linkplain #execute(List, RecipientTask, PacketWriter, int) execute()}
+ * after all sub-tasks are finished.
+ */
+public class FanoutExecutor implements StatisticsProvider {
+
+	/**
+	 * Builds packets for single recipient.
+	 */
+	public static interface RecipientTask {
+
+		void process(JID recipient, PacketBatch batch) throws TigaseStringprepException;
+
+	}
+
+	private class FanoutAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int batchSize;
+
+		private final int from;
+
+		private final List<JID> recipients;
+
+		private final RecipientTask task;
+
+		private final int to;
+
+		private final PacketWriter writer;
+
+		FanoutAction(List<JID> recipients, int from, int to, RecipientTask task, PacketWriter writer, int batchSize) {
+			this.recipients = recipients;
+			this.from = from;
+			this.to = to;
+			this.task = task;
+			this.writer = writer;
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= splitSize) {
+				try {
+					processRange(recipients, from, to, task, new PacketBatch(writer, batchSize));
+				} catch (TigaseStringprepException e) {
+					throw new RecipientFailure(e);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new FanoutAction(recipients, from, middle, task, writer, batchSize), new FanoutAction(recipients,
+						middle, to, task, writer, batchSize));
+			}
+		}
+	}
+
+	private static class GroupsAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Collection<FanoutAction> actions;
+
+		GroupsAction(Collection<FanoutAction> actions) {
+			this.actions = actions;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(actions);
+		}
+	}
+
+	/**
+	 * Carries exception of task out of fork-join pool.
+	 */
+	private static class RecipientFailure extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		RecipientFailure(TigaseStringprepException cause) {
+			super(cause);
+		}
+
+		TigaseStringprepException getStringprepException() {
+			// pool may rethrow copy of exception, wrapping the original one
+			for (Throwable t = getCause(); t != null; t = t.getCause()) {
+				if (t instanceof TigaseStringprepException) {
+					return (TigaseStringprepException) t;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Counts batches handed off on single route.
+	 */
+	private static class RouteStats {
+
+		private final AtomicLong batches = new AtomicLong();
+
+		private final AtomicLong packets = new AtomicLong();
+	}
+
+	/**
+	 * Writer passing packets of one route and updating its statistics.
+	 */
+	private static class RouteWriter implements PacketWriter {
+
+		private final RouteStats stats;
+
+		private final PacketWriter writer;
+
+		RouteWriter(PacketWriter writer, RouteStats stats) {
+			this.writer = writer;
+			this.stats = stats;
+		}
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			stats.batches.incrementAndGet();
+			stats.packets.addAndGet(packets.size());
+			writer.write(packets);
+		}
+
+		@Override
+		public void write(Packet packet) {
+			stats.batches.incrementAndGet();
+			stats.packets.incrementAndGet();
+			writer.write(packet);
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			stats.batches.incrementAndGet();
+			stats.packets.incrementAndGet();
+			writer.write(packet, callback);
+		}
+	}
+
+	/**
+	 * Maximum number of routes with own statistics. Other routes are counted
+	 * together.
+	 */
+	private static final int MAX_TRACKED_ROUTES = 256;
+
+	private static final String OTHER_ROUTES = "other";
+
+	private static final Logger log = Logger.getLogger(FanoutExecutor.class.getName());
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private volatile int parallelThreshold = 2000;
+
+	private ForkJoinPool pool;
+
+	private volatile RecipientRouteResolver routeResolver;
+
+	private final ConcurrentHashMap<String, RouteStats> routeStats = new ConcurrentHashMap<String, RouteStats>();
+
+	private volatile int splitSize = 500;
+
+	public FanoutExecutor() {
+	}
+
+	/**
+	 * Sends packets to all recipients.
+	 * 
+	 * @param recipients
+	 *            list of recipients. Must not be modified during execution.
+	 * @param task
+	 *            builds packets for each recipient.
+	 * @param writer
+	 *            writer used to hand off packets.
+	 * @param batchSize
+	 *            size of chunks passed to writer.
+	 * @throws TigaseStringprepException
+	 *             if task failed for any recipient.
+	 */
+	public void execute(final List<JID> recipients, final RecipientTask task, final PacketWriter writer, final int batchSize)
+			throws TigaseStringprepException {
+		final int size = recipients.size();
+		final ForkJoinPool pool = parallelThreshold > 0 && size >= parallelThreshold ? getPool() : null;
+		final RecipientRouteResolver resolver = routeResolver;
+
+		if (resolver != null) {
+			executeGrouped(groupByRoute(recipients, resolver), task, writer, batchSize, pool);
+		} else if (pool == null) {
+			PacketBatch batch = new PacketBatch(writer, batchSize);
+			processRange(recipients, 0, size, task, batch);
+		} else {
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Parallel fan-out to " + size + " recipients");
+			}
+			invoke(pool, new FanoutAction(recipients, 0, size, task, writer, batchSize));
+		}
+	}
+
+	private void executeGrouped(final Map<String, List<JID>> groups, final RecipientTask task, final PacketWriter writer,
+			final int batchSize, final ForkJoinPool pool) throws TigaseStringprepException {
+		if (pool == null) {
+			for (Map.Entry<String, List<JID>> e : groups.entrySet()) {
+				final List<JID> group = e.getValue();
+				PacketBatch batch = new PacketBatch(new RouteWriter(writer, getRouteStats(e.getKey())), batchSize);
+				processRange(group, 0, group.size(), task, batch);
+			}
+		} else {
+			final List<FanoutAction> actions = new ArrayList<FanoutAction>(groups.size());
+			for (Map.Entry<String, List<JID>> e : groups.entrySet()) {
+				final List<JID> group = e.getValue();
+				actions.add(new FanoutAction(group, 0, group.size(), task, new RouteWriter(writer,
+						getRouteStats(e.getKey())), batchSize));
+			}
+			invoke(pool, new GroupsAction(actions));
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	private synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = createPool();
+		}
+		return pool;
+	}
+
+	private ForkJoinPool createPool() {
+		return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("muc-fanout-" + thread.getPoolIndex());
+				return thread;
+			}
+		}, null, false);
+	}
+
+	/**
+	 * Executes task in pool and waits for it. If pool was replaced by
+	 * {@linkplain #setParallelism(int) setParallelism()} in meantime, task is
+	 * executed in the new one.
+	 */
+	private void invoke(ForkJoinPool pool, ForkJoinTask<?> task) throws TigaseStringprepException {
+		while (true) {
+			try {
+				pool.invoke(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				final ForkJoinPool current = getPool();
+				if (current == pool) {
+					throw e;
+				}
+				pool = current;
+			} catch (RecipientFailure e) {
+				final TigaseStringprepException cause = e.getStringprepException();
+				if (cause == null) {
+					throw e;
+				}
+				throw cause;
+			}
+		}
+	}
+
+	public RecipientRouteResolver getRouteResolver() {
+		return routeResolver;
+	}
+
+	private RouteStats getRouteStats(String route) {
+		RouteStats stats = routeStats.get(route);
+		if (stats == null) {
+			if (routeStats.size() >= MAX_TRACKED_ROUTES) {
+				route = OTHER_ROUTES;
+				stats = routeStats.get(route);
+			}
+			if (stats == null) {
+				stats = new RouteStats();
+				RouteStats x = routeStats.putIfAbsent(route, stats);
+				if (x != null) {
+					stats = x;
+				}
+			}
+		}
+		return stats;
+	}
+
+	public int getSplitSize() {
+		return splitSize;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		for (Map.Entry<String, RouteStats> e : routeStats.entrySet()) {
+			final long batches = e.getValue().batches.get();
+			final long packets = e.getValue().packets.get();
+			list.add(compName, "Fan-out route " + e.getKey() + " batches", batches, Level.FINE);
+			list.add(compName, "Fan-out route " + e.getKey() + " average batch size", batches == 0 ? 0f
+					: ((float) packets / batches), Level.FINE);
+		}
+	}
+
+	/**
+	 * Groups recipients by route. Order of recipients in each group is kept.
+	 */
+	static Map<String, List<JID>> groupByRoute(final List<JID> recipients, final RecipientRouteResolver resolver) {
+		final Map<String, List<JID>> groups = new LinkedHashMap<String, List<JID>>();
+		for (JID jid : recipients) {
+			final String route = resolver.getRoute(jid);
+			List<JID> group = groups.get(route);
+			if (group == null) {
+				group = new ArrayList<JID>();
+				groups.put(route, group);
+			}
+			group.add(jid);
+		}
+		return groups;
+	}
+
+	private void processRange(List<JID> recipients, int from, int to, RecipientTask task, PacketBatch batch)
+			throws TigaseStringprepException {
+		try {
+			for (int i = from; i < to; i++) {
+				task.process(recipients.get(i), batch);
+			}
+		} finally {
+			batch.flush();
+		}
+	}
+
+	/**
+	 * Releases threads of fork-join pool.
+	 */
+	public synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	public synchronized void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			parallelism = 1;
+		}
+		if (this.parallelism != parallelism) {
+			this.parallelism = parallelism;
+			final ForkJoinPool old = pool;
+			if (old != null) {
+				// new fan-outs use new pool before old one stops accepting
+				// tasks; running fan-outs are finished by old pool
+				pool = createPool();
+				old.shutdown();
+			}
+		}
+	}
+
+	public void setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * @param routeResolver
+	 *            resolver used to group recipients, or <code>null</code> to
+	 *            disable grouping.
+	 */
+	public void setRouteResolver(RecipientRouteResolver routeResolver) {
+		this.routeResolver = routeResolver;
+		routeStats.clear();
+	}
+
+	public void setSplitSize(int splitSize) {
+		this.splitSize = splitSize < 1 ? 1 : splitSize;
+	}
+
+}
@@ -93,6 +93,8 @@ public class Ghostbuster2 {
 		this.pingHandler = new ReceiverTimeoutHandler() {
 			@Override
 			public void responseReceived(Packet data, Packet response) {
+				// response was queued, but doesn't reach processPacket()
+				Ghostbuster2.this.mucComponent.packetConsumed();
 				try {
 					onPingReceived(response);
 				} catch (Exception e) {
@@ -22,14 +22,17 @@
 package tigase.muc;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.logging.Level;
 
 import javax.script.Bindings;
 
 import tigase.component.AbstractComponent;
 import tigase.component.AbstractContext;
+import tigase.component.PacketWriter;
 import tigase.component.exceptions.RepositoryException;
 import tigase.component.modules.Module;
 import tigase.component.modules.impl.AdHocCommandModule;
@@ -39,13 +42,20 @@ import tigase.conf.ConfigurationException;
 import tigase.db.RepositoryFactory;
 import tigase.db.UserRepository;
 import tigase.form.Field;
+import tigase.muc.history.AbstractJDBCHistoryProvider;
+import tigase.muc.history.FileHistoryProvider;
 import tigase.muc.history.HistoryManagerFactory;
 import tigase.muc.history.HistoryProvider;
+import tigase.muc.history.MemoryHistoryProvider;
+import tigase.muc.history.OffHeapHistoryProvider;
+import tigase.muc.history.QueuedHistoryProvider;
+import tigase.muc.logger.DeliveryAudit;
 import tigase.muc.logger.MucLogger;
 import tigase.muc.modules.DiscoveryModule;
 import tigase.muc.modules.GroupchatMessageModule;
 import tigase.muc.modules.IqStanzaForwarderModule;
 import tigase.muc.modules.MediatedInvitationModule;
+import tigase.muc.modules.MessageArchiveModule;
 import tigase.muc.modules.ModeratorModule;
 import tigase.muc.modules.PresenceModule;
 import tigase.muc.modules.PresenceModuleImpl;
@@ -56,12 +66,21 @@ import tigase.muc.repository.IMucRepository;
 import tigase.muc.repository.MucDAO;
 import tigase.muc.repository.inmemory.InMemoryMucRepository;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.TigaseStringprepException;
 import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
 
 public class MUCComponent extends AbstractComponent<MucContext> {
 
 	private class MucContextImpl extends AbstractContext implements MucContext {
 
+		/**
+		 * Writer passing packets through {@linkplain OutboundBudget}, created
+		 * once.
+		 */
+		private volatile PacketWriter budgetWriter;
+
 		private final BareJID serviceName = BareJID.bareJIDInstanceNS("multi-user-chat");
 
 		/**
@@ -81,21 +100,96 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 //			return MUCComponent.this.ghostbuster;
 //		}
 
+		@Override
+		public ChatStateCoalescer getChatStateCoalescer() {
+			return MUCComponent.this.chatStateCoalescer;
+		}
+
+		@Override
+		public DeliveryAudit getDeliveryAudit() {
+			return MUCComponent.this.deliveryAudit;
+		}
+
+		@Override
+		public DuplicateFilter getDuplicateFilter() {
+			return MUCComponent.this.duplicateFilter;
+		}
+
+		@Override
+		public int getFanoutBatchSize() {
+			return MUCComponent.this.fanoutBatchSize;
+		}
+
+		@Override
+		public FanoutExecutor getFanoutExecutor() {
+			return MUCComponent.this.fanoutExecutor;
+		}
+
 		@Override
 		public HistoryProvider getHistoryProvider() {
 			return MUCComponent.this.historyProvider;
 		}
 
+		@Override
+		public ElementFilter getMessageFilter() {
+			return MUCComponent.this.messageFilter;
+		}
+
 		@Override
 		public MucLogger getMucLogger() {
 			return MUCComponent.this.mucLogger;
 		}
 
+		@Override
+		public MulticastSupport getMulticastSupport() {
+			return MUCComponent.this.multicastSupport;
+		}
+
 		@Override
 		public IMucRepository getMucRepository() {
 			return MUCComponent.this.mucRepository;
 		}
 
+		@Override
+		public OutboundBudget getOutboundBudget() {
+			return MUCComponent.this.outboundBudget;
+		}
+
+		@Override
+		public PacketWriter getWriter() {
+			final PacketWriter writer = super.getWriter();
+			if (!outboundBudget.isEnabled()) {
+				return writer;
+			}
+			PacketWriter bw = budgetWriter;
+			if (bw == null) {
+				// writer of component doesn't change
+				bw = outboundBudget.wrap(writer);
+				budgetWriter = bw;
+			}
+			return bw;
+		}
+
+		@Override
+		public OverloadController getOverloadController() {
+			return MUCComponent.this.overloadController;
+		}
+
+		@Override
+		public long getPresenceCoalesceWindow() {
+			return MUCComponent.this.presenceCoalesceWindow;
+		}
+
+		@Override
+		public ElementFilter getPresenceFilter() {
+			return MUCComponent.this.presenceFilter;
+		}
+
+		@Override
+		public RateLimiter getRateLimiter() {
+			return MUCComponent.this.rateLimiter;
+		}
+
 		@Override
 		public BareJID getServiceName() {
 			return serviceName;
@@ -106,6 +200,11 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 			return MUCComponent.this.chatStateAllowed;
 		}
 
+		@Override
+		public boolean isLocalDomain(String domain) {
+			return MUCComponent.this.isLocalDomain(domain);
+		}
+
 		@Override
 		public boolean isMessageFilterEnabled() {
 			return MUCComponent.this.messageFilterEnabled;
@@ -133,16 +232,56 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 
 	}
 
+	public static final String CHAT_STATE_COALESCE_WINDOW_KEY = "chat-state-coalesce-window";
+
 	public static final String DEFAULT_ROOM_CONFIG_KEY = "default_room_config";
 
 	public static final String DEFAULT_ROOM_CONFIG_PREFIX_KEY = DEFAULT_ROOM_CONFIG_KEY + "/";
 
+	public static final String FANOUT_BATCH_SIZE_KEY = "fanout-batch-size";
+
+	public static final String FANOUT_ROUTE_RESOLVER_KEY = "fanout-route-resolver";
+
+	public static final String FANOUT_PARALLEL_THREADS_KEY = "fanout-parallel-threads";
+
+	public static final String FANOUT_PARALLEL_THRESHOLD_KEY = "fanout-parallel-threshold";
+
 	private static final String GHOSTBUSTER_ENABLED_KEY = "ghostbuster-enabled";
 
+	public static final String GROUPCHAT_DEDUP_WINDOW_KEY = "groupchat-dedup-window";
+
+	public static final String GROUPCHAT_RATE_OCCUPANT_BURST_KEY = "groupchat-rate-occupant-burst";
+
+	public static final String GROUPCHAT_RATE_OCCUPANT_KEY = "groupchat-rate-occupant";
+
+	public static final String GROUPCHAT_RATE_ROOM_BURST_KEY = "groupchat-rate-room-burst";
+
+	public static final String GROUPCHAT_RATE_ROOM_KEY = "groupchat-rate-room";
+
+	public static final String GROUPCHAT_RATE_SENDER_BURST_KEY = "groupchat-rate-sender-burst";
+
+	public static final String GROUPCHAT_RATE_SENDER_KEY = "groupchat-rate-sender";
+
+	public static final String HISTORY_ASYNC_KEY = "history-async";
+
+	public static final String HISTORY_QUEUE_SIZE_KEY = "history-queue-size";
+
+	public static final String HISTORY_SPOOL_DIR_KEY = "history-spool-dir";
+
 	public static final String LOG_DIR_KEY = "room-log-directory";
 
+	public static final String DEFAULT_PRESENCE_FILTER_VAL = "show,status,priority,{http://jabber.org/protocol/caps}*";
+
+	public static final String MESSAGE_FILTER_ALLOWED_ELEMENTS_KEY = "message-filter-allowed-elements";
+
 	public static final String MESSAGE_FILTER_ENABLED_KEY = "message-filter-enabled";
 
+	public static final String MULTICAST_CACHE_TIME_KEY = "multicast-cache-time";
+
+	public static final String MULTICAST_FANOUT_ENABLED_KEY = "multicast-fanout-enabled";
+
+	public static final String MULTICAST_MAX_ADDRESSES_KEY = "multicast-max-addresses";
+
 	public static final String MUC_ALLOW_CHAT_STATES_KEY = "muc-allow-chat-states";
 
 	public static final String MUC_LOCK_NEW_ROOM_KEY = "muc-lock-new-room";
@@ -166,6 +305,20 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 	@Deprecated
 	public static final String PING_EVERY_MINUTE_KEY = "ping-every-minute";
 
+	public static final String OUTBOUND_BUDGET_KICK_THRESHOLD_KEY = "outbound-budget-kick-threshold";
+
+	public static final String OUTBOUND_BUDGET_THRESHOLD_KEY = "outbound-budget-threshold";
+
+	private static final String OUTBOUND_BUDGET_VAR = "outboundBudget";
+
+	public static final String OVERLOAD_LATENCY_THRESHOLDS_KEY = "overload-latency-thresholds";
+
+	public static final String OVERLOAD_QUEUE_THRESHOLDS_KEY = "overload-queue-thresholds";
+
+	public static final String PRESENCE_COALESCE_WINDOW_KEY = "presence-coalesce-window";
+
+	public static final String PRESENCE_FILTER_ALLOWED_ELEMENTS_KEY = "presence-filter-allowed-elements";
+
 	public static final String PRESENCE_FILTER_ENABLED_KEY = "presence-filter-enabled";
 
 	private static final String PRESENCE_MODULE_VAR = "presenceModule";
@@ -178,26 +331,60 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 		}
 	}
 
+	private static RateLimiter.Limit getLimit(Map<String, Object> props, String rateKey, String burstKey) {
+		Object rate = props.get(rateKey);
+		Object burst = props.get(burstKey);
+		double r = rate instanceof Number ? ((Number) rate).doubleValue() : rate == null ? 0 : Double.parseDouble(rate
+				.toString());
+		int b = burst instanceof Number ? ((Number) burst).intValue() : burst == null ? 1 : Integer.parseInt(burst
+				.toString());
+		return new RateLimiter.Limit(r, b);
+	}
+
 	protected String chatLoggingDirectory;
 
+	protected final ChatStateCoalescer chatStateCoalescer = new ChatStateCoalescer();
+
 	protected Boolean chatStateAllowed;
 
+	protected final DeliveryAudit deliveryAudit = new DeliveryAudit();
+
+	protected final DuplicateFilter duplicateFilter = new DuplicateFilter();
+
+	protected int fanoutBatchSize = 100;
+
+	protected final FanoutExecutor fanoutExecutor = new FanoutExecutor();
+
 	protected Ghostbuster2 ghostbuster;
 
 	protected HistoryProvider historyProvider;
 
+	protected volatile ElementFilter messageFilter = ElementFilter.EMPTY;
+
 	protected boolean messageFilterEnabled;
 
 	protected MucLogger mucLogger;
 
 	protected IMucRepository mucRepository;
 
+	protected final MulticastSupport multicastSupport = new MulticastSupport();
+
 	protected boolean multiItemMode;
 
+	protected final OutboundBudget outboundBudget = new OutboundBudget();
+
+	protected final OverloadController overloadController = new OverloadController();
+
 	protected Boolean newRoomLocked;
 
+	protected long presenceCoalesceWindow = 5000;
+
+	protected volatile ElementFilter presenceFilter = ElementFilter.fromProperty(DEFAULT_PRESENCE_FILTER_VAL, null);
+
 	protected boolean presenceFilterEnabled;
 
+	protected final RateLimiter rateLimiter = new RateLimiter();
+
 	protected boolean searchGhostsEveryMinute = false;
 
 	public MUCComponent() {
@@ -238,6 +425,7 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 		result.put(GroupchatMessageModule.ID, GroupchatMessageModule.class);
 		result.put(IqStanzaForwarderModule.ID, IqStanzaForwarderModule.class);
 		result.put(MediatedInvitationModule.ID, MediatedInvitationModule.class);
+		result.put(MessageArchiveModule.ID, MessageArchiveModule.class);
 		result.put(ModeratorModule.ID, ModeratorModule.class);
 		result.put(PresenceModule.ID, PresenceModuleImpl.class);
 		result.put(PrivateMessageModule.ID, PrivateMessageModule.class);
@@ -259,13 +447,64 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 
 		props.put(LOG_DIR_KEY, new String("./logs/"));
 		props.put(MESSAGE_FILTER_ENABLED_KEY, Boolean.TRUE);
+		props.put(MESSAGE_FILTER_ALLOWED_ELEMENTS_KEY, "");
 		props.put(PRESENCE_FILTER_ENABLED_KEY, Boolean.FALSE);
+		props.put(PRESENCE_FILTER_ALLOWED_ELEMENTS_KEY, DEFAULT_PRESENCE_FILTER_VAL);
 		props.put(SEARCH_GHOSTS_EVERY_MINUTE_KEY, Boolean.FALSE);
 		props.put(GHOSTBUSTER_ENABLED_KEY, Boolean.FALSE);
 
 		props.put(MUC_ALLOW_CHAT_STATES_KEY, Boolean.FALSE);
+		props.put(CHAT_STATE_COALESCE_WINDOW_KEY, 5000L);
+		// slow consumer detection is disabled by default
+		props.put(OUTBOUND_BUDGET_THRESHOLD_KEY, 0);
+		props.put(OUTBOUND_BUDGET_KICK_THRESHOLD_KEY, 0);
+		props.put(OVERLOAD_QUEUE_THRESHOLDS_KEY, "5000,10000,20000,40000");
+		props.put(OVERLOAD_LATENCY_THRESHOLDS_KEY, "50,100,250,500");
+		props.put(PRESENCE_COALESCE_WINDOW_KEY, 5000L);
 		props.put(MUC_LOCK_NEW_ROOM_KEY, Boolean.TRUE);
 		props.put(MUC_MULTI_ITEM_ALLOWED_KEY, Boolean.TRUE);
+		props.put(FANOUT_BATCH_SIZE_KEY, 100);
+		props.put(FANOUT_PARALLEL_THRESHOLD_KEY, 2000);
+		props.put(FANOUT_PARALLEL_THREADS_KEY, Runtime.getRuntime().availableProcessors());
+		props.put(FANOUT_ROUTE_RESOLVER_KEY, "none");
+
+		props.put(GROUPCHAT_DEDUP_WINDOW_KEY, 64);
+
+		props.put(DeliveryAudit.DELIVERY_AUDIT_ENABLED_KEY, Boolean.FALSE);
+		props.put(DeliveryAudit.DELIVERY_AUDIT_FILE_KEY, "./logs/muc-delivery-audit.log");
+		props.put(DeliveryAudit.DELIVERY_AUDIT_MAX_FILE_SIZE_KEY, 10 * 1024 * 1024);
+		props.put(DeliveryAudit.DELIVERY_AUDIT_MAX_FILES_KEY, 5);
+		props.put(DeliveryAudit.DELIVERY_AUDIT_SAMPLE_RATE_KEY, 0.01);
+		props.put(DeliveryAudit.DELIVERY_AUDIT_ROOM_SAMPLE_RATES_KEY, "");
+
+		props.put(MULTICAST_FANOUT_ENABLED_KEY, Boolean.FALSE);
+		props.put(MULTICAST_MAX_ADDRESSES_KEY, 50);
+		props.put(MULTICAST_CACHE_TIME_KEY, 3600);
+
+		props.put(HISTORY_ASYNC_KEY, Boolean.TRUE);
+		props.put(HISTORY_QUEUE_SIZE_KEY, 10000);
+		props.put(HISTORY_SPOOL_DIR_KEY, "./logs/");
+		props.put(AbstractJDBCHistoryProvider.HISTORY_BATCH_SIZE_KEY, 100);
+		props.put(AbstractJDBCHistoryProvider.HISTORY_BATCH_DELAY_KEY, 20);
+		props.put(AbstractJDBCHistoryProvider.HISTORY_BATCH_BUFFER_KEY, 10000);
+		props.put(AbstractJDBCHistoryProvider.HISTORY_CACHE_SIZE_KEY, 32);
+		props.put(AbstractJDBCHistoryProvider.HISTORY_COMPACT_FORMAT_KEY, Boolean.FALSE);
+		props.put(AbstractJDBCHistoryProvider.HISTORY_PURGE_CHUNK_KEY, 5000);
+		props.put(AbstractJDBCHistoryProvider.HISTORY_PURGE_PAUSE_KEY, 100);
+		props.put(AbstractJDBCHistoryProvider.HISTORY_RETENTION_KEY, 0);
+		props.put(MemoryHistoryProvider.HISTORY_MEMORY_LIMIT_KEY, 64);
+		props.put(OffHeapHistoryProvider.HISTORY_OFFHEAP_LIMIT_KEY, 256);
+		props.put(OffHeapHistoryProvider.HISTORY_OFFHEAP_SLAB_SIZE_KEY, 1024);
+		props.put(FileHistoryProvider.HISTORY_FILE_SEGMENT_SIZE_KEY, 4096);
+		props.put(FileHistoryProvider.HISTORY_FILE_RETENTION_KEY, 0);
+
+		// rate limits are disabled by default
+		props.put(GROUPCHAT_RATE_ROOM_KEY, 0);
+		props.put(GROUPCHAT_RATE_ROOM_BURST_KEY, 20);
+		props.put(GROUPCHAT_RATE_OCCUPANT_KEY, 0);
+		props.put(GROUPCHAT_RATE_OCCUPANT_BURST_KEY, 5);
+		props.put(GROUPCHAT_RATE_SENDER_KEY, 0);
+		props.put(GROUPCHAT_RATE_SENDER_BURST_KEY, 10);
 
 		// By default use the same repository as all other components:
 		String repo_uri = (params.get(RepositoryFactory.GEN_USER_DB_URI) != null) ? (String) params.get(RepositoryFactory.GEN_USER_DB_URI)
@@ -276,6 +515,42 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 		return props;
 	}
 
+	/**
+	 * Creates resolver used to group fan-out recipients.
+	 * 
+	 * @param className
+	 *            name of {@linkplain RecipientRouteResolver} implementation,
+	 *            empty or <code>none</code> to disable grouping.
+	 * @return resolver or <code>null</code>.
+	 */
+	protected RecipientRouteResolver createRouteResolver(String className) {
+		if (className == null || className.trim().isEmpty() || "none".equals(className.trim())) {
+			return null;
+		}
+		try {
+			return (RecipientRouteResolver) Class.forName(className.trim()).newInstance();
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Can't create fan-out route resolver " + className + ", grouping disabled", e);
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized void everyMinute() {
+		super.everyMinute();
+
+		rateLimiter.sweep();
+		chatStateCoalescer.sweep();
+		overloadController.evaluate();
+		flushCoalescedPresences();
+		flushCoalescedChatStates();
+		outboundBudget.sweep();
+		kickSlowConsumers();
+		if (mucRepository != null) {
+			duplicateFilter.retainRooms(mucRepository.getActiveRooms());
+		}
+	}
+
 	@Override
 	public String getDiscoCategory() {
 		return "conference";
@@ -309,6 +584,29 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 		return 1;
 	}
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+
+		rateLimiter.getStatistics(getName(), list);
+		duplicateFilter.getStatistics(getName(), list);
+		chatStateCoalescer.getStatistics(getName(), list);
+		fanoutExecutor.getStatistics(getName(), list);
+		if (multicastSupport.isEnabled()) {
+			multicastSupport.getStatistics(getName(), list);
+		}
+		if (deliveryAudit.isEnabled()) {
+			deliveryAudit.getStatistics(getName(), list);
+		}
+		overloadController.getStatistics(getName(), list);
+		if (outboundBudget.isEnabled()) {
+			outboundBudget.getStatistics(getName(), list);
+		}
+		if (historyProvider instanceof StatisticsProvider) {
+			((StatisticsProvider) historyProvider).getStatistics(getName(), list);
+		}
+	}
+
 	@Override
 	public void initBindings(Bindings binds) {
 		super.initBindings(binds);
@@ -316,6 +614,7 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 		addIfExists(binds, PRESENCE_MODULE_VAR, modulesManager.getModule(PresenceModule.ID));
 		addIfExists(binds, OWNER_MODULE_VAR, modulesManager.getModule(RoomConfigurationModule.ID));
 		addIfExists(binds, MUC_REPOSITORY_VAR, mucRepository);
+		addIfExists(binds, OUTBOUND_BUDGET_VAR, outboundBudget);
 	}
 
 	@Override
@@ -343,13 +642,129 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 	 */
 	@Override
 	public void processPacket(Packet packet) {
-	super.processPacket(packet);
+		overloadController.packetDequeued();
+		final long start = System.nanoTime();
+		super.processPacket(packet);
+		overloadController.packetProcessed(System.nanoTime() - start);
+
+		if (overloadController.tick()) {
+			flushCoalescedPresences();
+			flushCoalescedChatStates();
+			kickSlowConsumers();
+		} else if (overloadController.getPending() == 0 && hasCoalescedPresences()) {
+			// queue is drained, held back presences are sent without waiting
+			// for next tick
+			overloadController.evaluate();
+			flushCoalescedPresences();
+		}
+	}
+
+	@Override
+	public boolean addPacket(Packet packet) {
+		overloadController.packetQueued();
+		boolean added = super.addPacket(packet);
+		if (!added) {
+			overloadController.packetRejected();
+		}
+		return added;
+	}
+
+	@Override
+	public boolean addPacketNB(Packet packet) {
+		overloadController.packetQueued();
+		boolean added = super.addPacketNB(packet);
+		if (!added) {
+			overloadController.packetRejected();
+		}
+		return added;
+	}
+
+	/**
+	 * Adds packets one by one with {@linkplain #addPacket(Packet)}, so each
+	 * of them is counted by {@linkplain OverloadController}.
+	 */
+	@Override
+	public boolean addPackets(Queue<Packet> packets) {
+		boolean result = true;
+		Packet p = packets.peek();
+		while (p != null) {
+			result = addPacket(p);
+			if (!result) {
+				break;
+			}
+			packets.poll();
+			p = packets.peek();
+		}
+		return result;
+	}
+
+	/**
+	 * Must be called when queued packet is consumed without
+	 * {@linkplain #processPacket(Packet)}, i.e. by handler of response to
+	 * packet sent with timeout.
+	 */
+	protected void packetConsumed() {
+		overloadController.packetDequeued();
+	}
+
+	/**
+	 * Removes from all rooms recipients which exceeded kick threshold of
+	 * {@linkplain OutboundBudget outbound budget}.
+	 */
+	protected void kickSlowConsumers() {
+		final List<JID> slow = outboundBudget.drainKicked();
+		if (slow.isEmpty() || mucRepository == null) {
+			return;
+		}
+		final PresenceModule presenceModule = modulesManager.getModule(PresenceModule.ID);
+		for (JID jid : slow) {
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Removing slow consumer " + jid + " from rooms");
+			}
+			for (Room r : mucRepository.getActiveRooms().values()) {
+				if (r.isOccupantInRoom(jid)) {
+					try {
+						presenceModule.doQuit(r, jid);
+					} catch (TigaseStringprepException e) {
+						log.log(Level.WARNING, "Can't remove slow consumer " + jid + " from room " + r.getRoomJID(), e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends chat states held back by chat state coalescing.
+	 */
+	protected void flushCoalescedChatStates() {
+		Module module = modulesManager.getModule(GroupchatMessageModule.ID);
+		if (module instanceof GroupchatMessageModule) {
+			((GroupchatMessageModule) module).flushCoalescedChatStates();
+		}
+	}
+
+	private boolean hasCoalescedPresences() {
+		Module module = modulesManager.getModule(PresenceModule.ID);
+		return module instanceof PresenceModuleImpl && ((PresenceModuleImpl) module).hasCoalescedPresences();
+	}
+
+	/**
+	 * Sends presences held back by presence coalescing.
+	 */
+	protected void flushCoalescedPresences() {
+		Module module = modulesManager.getModule(PresenceModule.ID);
+		if (module instanceof PresenceModuleImpl) {
+			((PresenceModuleImpl) module).flushCoalescedPresences();
+		}
 	}
 
 	@Override
 	public void release() {
 		super.release();
 
+		fanoutExecutor.shutdown();
+		deliveryAudit.stop();
+
 		if (historyProvider != null) {
 			historyProvider.destroy();
 			historyProvider = null;
@@ -358,6 +773,17 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 
 	@Override
 	public void setProperties(Map<String, Object> props) throws ConfigurationException {
+		// lists of allowed elements may be changed at runtime
+		if (props.containsKey(MESSAGE_FILTER_ALLOWED_ELEMENTS_KEY)) {
+			this.messageFilter = ElementFilter.fromProperty(props.get(MESSAGE_FILTER_ALLOWED_ELEMENTS_KEY), messageFilter);
+			log.config("messageFilter: " + messageFilter);
+		}
+		if (props.containsKey(PRESENCE_FILTER_ALLOWED_ELEMENTS_KEY)) {
+			this.presenceFilter = ElementFilter.fromProperty(props.get(PRESENCE_FILTER_ALLOWED_ELEMENTS_KEY),
+					presenceFilter);
+			log.config("presenceFilter: " + presenceFilter);
+		}
+
 		if (props.size() == 1) {
 			// If props.size() == 1, it means this is a single property update
 			// and this component does not support single property change for
@@ -415,6 +841,83 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 		}
 		log.config("newRoomLocked: " + newRoomLocked + "; props: " + props.containsKey(MUCComponent.MUC_LOCK_NEW_ROOM_KEY));
 
+		if (props.containsKey(FANOUT_BATCH_SIZE_KEY)) {
+			this.fanoutBatchSize = (Integer) props.get(FANOUT_BATCH_SIZE_KEY);
+		}
+		log.config("fanoutBatchSize: " + fanoutBatchSize + "; props: " + props.containsKey(FANOUT_BATCH_SIZE_KEY));
+
+		if (props.containsKey(FANOUT_PARALLEL_THRESHOLD_KEY)) {
+			fanoutExecutor.setParallelThreshold((Integer) props.get(FANOUT_PARALLEL_THRESHOLD_KEY));
+		}
+		if (props.containsKey(FANOUT_PARALLEL_THREADS_KEY)) {
+			fanoutExecutor.setParallelism((Integer) props.get(FANOUT_PARALLEL_THREADS_KEY));
+		}
+		log.config("fanoutParallelThreshold: " + fanoutExecutor.getParallelThreshold() + "; fanoutParallelThreads: "
+				+ fanoutExecutor.getParallelism());
+
+		if (props.containsKey(FANOUT_ROUTE_RESOLVER_KEY)) {
+			fanoutExecutor.setRouteResolver(createRouteResolver((String) props.get(FANOUT_ROUTE_RESOLVER_KEY)));
+		}
+		log.config("fanoutRouteResolver: " + fanoutExecutor.getRouteResolver());
+
+		if (props.containsKey(GROUPCHAT_DEDUP_WINDOW_KEY)) {
+			duplicateFilter.setWindowSize((Integer) props.get(GROUPCHAT_DEDUP_WINDOW_KEY));
+		}
+		log.config("groupchatDedupWindow: " + duplicateFilter.getWindowSize());
+
+		deliveryAudit.setProperties(props);
+		log.config("deliveryAudit: " + deliveryAudit);
+
+		if (props.containsKey(MULTICAST_MAX_ADDRESSES_KEY)) {
+			multicastSupport.setMaxAddresses((Integer) props.get(MULTICAST_MAX_ADDRESSES_KEY));
+		}
+		if (props.containsKey(MULTICAST_CACHE_TIME_KEY)) {
+			multicastSupport.setCacheTime(((Integer) props.get(MULTICAST_CACHE_TIME_KEY)) * 1000L);
+		}
+		if (props.containsKey(MULTICAST_FANOUT_ENABLED_KEY)) {
+			multicastSupport.setEnabled((Boolean) props.get(MULTICAST_FANOUT_ENABLED_KEY));
+		}
+		log.config("multicastSupport: " + multicastSupport);
+
+		if (props.containsKey(CHAT_STATE_COALESCE_WINDOW_KEY)) {
+			chatStateCoalescer.setWindow(((Number) props.get(CHAT_STATE_COALESCE_WINDOW_KEY)).longValue());
+		}
+		log.config("chatStateCoalesceWindow: " + chatStateCoalescer.getWindow());
+
+		if (props.containsKey(OUTBOUND_BUDGET_KICK_THRESHOLD_KEY)) {
+			outboundBudget.setKickThreshold((Integer) props.get(OUTBOUND_BUDGET_KICK_THRESHOLD_KEY));
+		}
+		if (props.containsKey(OUTBOUND_BUDGET_THRESHOLD_KEY)) {
+			outboundBudget.setThreshold((Integer) props.get(OUTBOUND_BUDGET_THRESHOLD_KEY));
+		}
+		log.config("outboundBudget: " + outboundBudget);
+
+		if (props.containsKey(OVERLOAD_QUEUE_THRESHOLDS_KEY)) {
+			overloadController.setQueueThresholds(OverloadController.parseThresholds(
+					props.get(OVERLOAD_QUEUE_THRESHOLDS_KEY), new long[] { 5000, 10000, 20000, 40000 }));
+		}
+		if (props.containsKey(OVERLOAD_LATENCY_THRESHOLDS_KEY)) {
+			overloadController.setLatencyThresholds(OverloadController.parseThresholds(
+					props.get(OVERLOAD_LATENCY_THRESHOLDS_KEY), new long[] { 50, 100, 250, 500 }));
+		}
+		log.config("overloadController: " + overloadController);
+		if (props.containsKey(PRESENCE_COALESCE_WINDOW_KEY)) {
+			this.presenceCoalesceWindow = ((Number) props.get(PRESENCE_COALESCE_WINDOW_KEY)).longValue();
+		}
+		log.config("presenceCoalesceWindow: " + presenceCoalesceWindow + "; props: "
+				+ props.containsKey(PRESENCE_COALESCE_WINDOW_KEY));
+
+		if (props.containsKey(GROUPCHAT_RATE_ROOM_KEY)) {
+			rateLimiter.setRoomLimit(getLimit(props, GROUPCHAT_RATE_ROOM_KEY, GROUPCHAT_RATE_ROOM_BURST_KEY));
+		}
+		if (props.containsKey(GROUPCHAT_RATE_OCCUPANT_KEY)) {
+			rateLimiter.setOccupantLimit(getLimit(props, GROUPCHAT_RATE_OCCUPANT_KEY, GROUPCHAT_RATE_OCCUPANT_BURST_KEY));
+		}
+		if (props.containsKey(GROUPCHAT_RATE_SENDER_KEY)) {
+			rateLimiter.setSenderLimit(getLimit(props, GROUPCHAT_RATE_SENDER_KEY, GROUPCHAT_RATE_SENDER_BURST_KEY));
+		}
+		log.config("rateLimiter: " + rateLimiter);
+
 		if (props.containsKey(LOG_DIR_KEY)) {
 			log.config("Setting Chat Logging Directory");
 			this.chatLoggingDirectory = (String) props.get(LOG_DIR_KEY);
@@ -431,6 +934,18 @@ public class MUCComponent extends AbstractComponent<MucContext> {
 			// new instance initialized and we should release resources
 			oldHistoryProvider.destroy();
 		}
+		// wrapped after old provider is destroyed, so operations spooled by
+		// it are replayed by the new one
+		boolean historyAsync = props.containsKey(HISTORY_ASYNC_KEY) ? (Boolean) props.get(HISTORY_ASYNC_KEY) : true;
+		if (historyAsync && this.historyProvider.isPersistent()) {
+			int queueSize = props.containsKey(HISTORY_QUEUE_SIZE_KEY) ? (Integer) props.get(HISTORY_QUEUE_SIZE_KEY)
+					: 10000;
+			String spoolDir = props.containsKey(HISTORY_SPOOL_DIR_KEY) ? (String) props.get(HISTORY_SPOOL_DIR_KEY)
+					: "./logs/";
+			this.historyProvider = new QueuedHistoryProvider(this.historyProvider, context, queueSize, spoolDir,
+					getName());
+		}
+		log.config("historyProvider: " + this.historyProvider.getClass().getName());
 
 		if (mucRepository == null) {
 			try {
@@ -23,6 +23,7 @@ package tigase.muc;
 
 import tigase.component.Context;
 import tigase.muc.history.HistoryProvider;
+import tigase.muc.logger.DeliveryAudit;
 import tigase.muc.logger.MucLogger;
 import tigase.muc.repository.IMucRepository;
 import tigase.xmpp.BareJID;
@@ -38,14 +39,55 @@ public interface MucContext extends Context {
 	 */
 	String getChatLoggingDirectory();
 
+	ChatStateCoalescer getChatStateCoalescer();
+
+	DeliveryAudit getDeliveryAudit();
+
+	DuplicateFilter getDuplicateFilter();
+
+	/**
+	 * @return maximum number of packets handed off to writer at once during
+	 *         room fan-out.
+	 */
+	int getFanoutBatchSize();
+
+	FanoutExecutor getFanoutExecutor();
+
 	//Ghostbuster2 getGhostbuster();
 
 	HistoryProvider getHistoryProvider();
 
+	/**
+	 * @return filter of groupchat message children used when
+	 *         {@linkplain #isMessageFilterEnabled() message filter} is enabled.
+	 */
+	ElementFilter getMessageFilter();
+
 	MucLogger getMucLogger();
 
 	IMucRepository getMucRepository();
 
+	MulticastSupport getMulticastSupport();
+
+	OutboundBudget getOutboundBudget();
+
+	OverloadController getOverloadController();
+
+	/**
+	 * @return minimal time in milliseconds between broadcasted availability
+	 *         changes of occupant when presences are coalesced.
+	 */
+	long getPresenceCoalesceWindow();
+
+	/**
+	 * @return filter of presence children used when
+	 *         {@linkplain #isPresenceFilterEnabled() presence filter} is
+	 *         enabled.
+	 */
+	ElementFilter getPresenceFilter();
+
+	RateLimiter getRateLimiter();
+
 	BareJID getServiceName();
 
 	/**
@@ -53,6 +95,12 @@ public interface MucContext extends Context {
 	 */
 	boolean isChatStateAllowed();
 
+	/**
+	 * @param domain
+	 * @return <code>true</code> if domain is served by this server.
+	 */
+	boolean isLocalDomain(String domain);
+
 	boolean isMessageFilterEnabled();
 
 	boolean isMultiItemMode();
@@ -0,0 +1,261 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+/**
+ * Support for sending single stanza to many recipients on remote server,
+ * as described in XEP-0033: Extended Stanza Addressing. Support of
+ * <code>http://jabber.org/protocol/address</code> feature is discovered per
+ * domain and cached.
+ */
+public class MulticastSupport implements StatisticsProvider {
+
+	private static final class DomainInfo {
+
+		private final long expires;
+
+		private final Boolean supported;
+
+		DomainInfo(Boolean supported, long expires) {
+			this.supported = supported;
+			this.expires = expires;
+		}
+	}
+
+	public static final String ADDRESS_XMLNS = "http://jabber.org/protocol/address";
+
+	private static final String DISCO_INFO_XMLNS = "http://jabber.org/protocol/disco#info";
+
+	private static final long PENDING_TIMEOUT = 60 * 1000;
+
+	private static final Logger log = Logger.getLogger(MulticastSupport.class.getName());
+
+	private volatile long cacheTime = 60 * 60 * 1000;
+
+	private final AtomicLong discoveries = new AtomicLong();
+
+	private final ConcurrentHashMap<String, DomainInfo> domains = new ConcurrentHashMap<String, DomainInfo>();
+
+	private volatile boolean enabled = false;
+
+	private volatile int maxAddresses = 50;
+
+	private final AtomicLong multicastRecipients = new AtomicLong();
+
+	private final AtomicLong multicastStanzas = new AtomicLong();
+
+	/**
+	 * Creates message addressed to remote server, with list of recipients in
+	 * <code>addresses</code> element. Recipients are added as
+	 * <code>bcc</code>, so they don't see addresses of each other.
+	 * 
+	 * @param domain
+	 *            remote domain.
+	 * @param type
+	 *            type of message.
+	 * @param id
+	 *            message id or <code>null</code>.
+	 * @param payload
+	 *            shared content of message.
+	 * @param fromJID
+	 *            sender address.
+	 * @param recipients
+	 *            recipients on remote domain.
+	 * @return packet ready to send.
+	 */
+	public Packet createMessage(final String domain, final String type, final String id, final List<Element> payload,
+			final JID fromJID, final List<JID> recipients) {
+		final JID toJID = JID.jidInstanceNS(domain);
+		Element message = new Element("message", new String[] { Packet.TYPE_ATT, Packet.FROM_ATT, Packet.TO_ATT },
+				new String[] { type, fromJID.toString(), domain });
+		if (id != null) {
+			message.setAttribute(Packet.ID_ATT, id);
+		}
+
+		Element addresses = new Element("addresses", new String[] { "xmlns" }, new String[] { ADDRESS_XMLNS });
+		for (JID jid : recipients) {
+			addresses.addChild(new Element("address", new String[] { "type", "jid" }, new String[] { "bcc",
+					jid.toString() }));
+		}
+		message.addChild(addresses);
+
+		if (payload != null) {
+			for (Element c : payload) {
+				message.addChild(c);
+			}
+		}
+
+		multicastStanzas.incrementAndGet();
+		multicastRecipients.addAndGet(recipients.size());
+
+		Packet packet = Packet.packetInstance(message, fromJID, toJID);
+		packet.setXMLNS(Packet.CLIENT_XMLNS);
+		return packet;
+	}
+
+	private void discover(final String domain, final JID fromJID, final PacketWriter writer) {
+		discoveries.incrementAndGet();
+
+		final JID toJID = JID.jidInstanceNS(domain);
+		final JID from = JID.jidInstanceNS(fromJID.getDomain());
+		Element iq = new Element("iq", new String[] { Packet.TYPE_ATT, Packet.FROM_ATT, Packet.TO_ATT, Packet.ID_ATT },
+				new String[] { "get", from.toString(), domain, "mc-" + discoveries.get() });
+		iq.addChild(new Element("query", new String[] { "xmlns" }, new String[] { DISCO_INFO_XMLNS }));
+
+		Packet packet = Packet.packetInstance(iq, from, toJID);
+		packet.setXMLNS(Packet.CLIENT_XMLNS);
+
+		writer.write(packet, new AsyncCallback() {
+
+			@Override
+			public void onError(Packet responseStanza, String errorCondition) {
+				setSupported(domain, false);
+			}
+
+			@Override
+			public void onSuccess(Packet responseStanza) {
+				boolean supported = false;
+				Element query = responseStanza.getElement().getChild("query", DISCO_INFO_XMLNS);
+				List<Element> children = query == null ? null : query.getChildren();
+				if (children != null) {
+					for (Element c : children) {
+						if ("feature".equals(c.getName()) && ADDRESS_XMLNS.equals(c.getAttributeStaticStr("var"))) {
+							supported = true;
+							break;
+						}
+					}
+				}
+				setSupported(domain, supported);
+			}
+
+			@Override
+			public void onTimeout() {
+				setSupported(domain, false);
+			}
+		});
+	}
+
+	public long getCacheTime() {
+		return cacheTime;
+	}
+
+	public int getMaxAddresses() {
+		return maxAddresses;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Multicast stanzas", multicastStanzas.get(), Level.FINE);
+		list.add(compName, "Multicast recipients", multicastRecipients.get(), Level.FINE);
+		list.add(compName, "Multicast discoveries", discoveries.get(), Level.FINEST);
+		list.add(compName, "Multicast known domains", domains.size(), Level.FINEST);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Checks if remote domain supports multicast. If support is not known
+	 * yet, discovery is started and <code>false</code> is returned until
+	 * response arrives.
+	 * 
+	 * @param domain
+	 *            remote domain.
+	 * @param fromJID
+	 *            address used as sender of discovery request (only domain is
+	 *            used).
+	 * @param writer
+	 *            writer used to send discovery request.
+	 * @return <code>true</code> if domain is known to support multicast.
+	 */
+	public boolean isSupported(final String domain, final JID fromJID, final PacketWriter writer) {
+		final long now = System.currentTimeMillis();
+		final DomainInfo info = domains.get(domain);
+		if (info != null && info.expires > now) {
+			return info.supported == Boolean.TRUE;
+		}
+
+		final DomainInfo pending = new DomainInfo(null, now + PENDING_TIMEOUT);
+		final boolean start = info == null ? domains.putIfAbsent(domain, pending) == null : domains.replace(domain,
+				info, pending);
+		if (start) {
+			try {
+				discover(domain, fromJID, writer);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Can't discover multicast support of " + domain, e);
+				setSupported(domain, false);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param cacheTime
+	 *            time in milliseconds for which discovered support is
+	 *            remembered.
+	 */
+	public void setCacheTime(long cacheTime) {
+		this.cacheTime = cacheTime;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			domains.clear();
+		}
+	}
+
+	/**
+	 * @param maxAddresses
+	 *            maximum number of recipients in single multicast stanza.
+	 */
+	public void setMaxAddresses(int maxAddresses) {
+		this.maxAddresses = maxAddresses < 1 ? 1 : maxAddresses;
+	}
+
+	private void setSupported(String domain, boolean supported) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Multicast support of " + domain + ": " + supported);
+		}
+		domains.put(domain, new DomainInfo(supported, System.currentTimeMillis() + cacheTime));
+	}
+
+	@Override
+	public String toString() {
+		return "enabled=" + enabled + ", maxAddresses=" + maxAddresses + ", cacheTime=" + cacheTime;
+	}
+
+}
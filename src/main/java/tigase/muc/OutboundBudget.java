@@ -0,0 +1,487 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.server.Packet;
+import tigase.server.Priority;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+/**
+ * Detects slow consumers. Component doesn't see delivery of packets, so every
+ * recipient with outstanding packets is periodically probed with ping
+ * (XEP-0199). Stream delivers packets in order, so response to the probe
+ * (result or error) acknowledges all packets sent to recipient before it.
+ * Number of outstanding packets is number of packets sent and not
+ * acknowledged yet; recipient which consumes slowly, or doesn't respond at
+ * all, accumulates outstanding packets regardless of traffic in its rooms.
+ * 
+ * If this number exceeds threshold, low priority packets (presences which
+ * are not <code>unavailable</code>, and packets with
+ * {@linkplain Priority#LOW low priority}, like chat states) addressed to
+ * recipient are dropped. If it exceeds kick threshold, recipient is queued
+ * to be removed from rooms.
+ */
+public class OutboundBudget implements StatisticsProvider {
+
+	private static final class Bucket {
+
+		private long acked;
+
+		private final AtomicLong dropped = new AtomicLong();
+
+		private long lastSent = System.nanoTime();
+
+		/**
+		 * Value of {@linkplain #sent} when probe was sent, or <code>-1</code>
+		 * if there is no probe in flight.
+		 */
+		private long probeMark = -1;
+
+		private long sent;
+
+		synchronized void acknowledge() {
+			if (probeMark > acked) {
+				acked = probeMark;
+			}
+			probeMark = -1;
+		}
+
+		synchronized long add() {
+			++sent;
+			lastSent = System.nanoTime();
+			return sent - acked;
+		}
+
+		synchronized boolean isIdle(long now, long idleTime) {
+			return (sent == acked && probeMark < 0) || now - lastSent > idleTime;
+		}
+
+		synchronized void lost() {
+			probeMark = -1;
+		}
+
+		synchronized long outstanding() {
+			return sent - acked;
+		}
+
+		/**
+		 * @return <code>true</code> if probe should be sent after already sent
+		 *         packets.
+		 */
+		synchronized boolean startProbe(int interval) {
+			if (probeMark < 0 && sent - acked >= interval) {
+				probeMark = sent;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Snapshot of recipient state.
+	 */
+	public static final class SlowRecipient {
+
+		private final long dropped;
+
+		private final JID jid;
+
+		private final double outstanding;
+
+		SlowRecipient(JID jid, double outstanding, long dropped) {
+			this.jid = jid;
+			this.outstanding = outstanding;
+			this.dropped = dropped;
+		}
+
+		public long getDropped() {
+			return dropped;
+		}
+
+		public JID getJid() {
+			return jid;
+		}
+
+		/**
+		 * @return estimated number of packets not consumed yet.
+		 */
+		public double getOutstanding() {
+			return outstanding;
+		}
+
+		@Override
+		public String toString() {
+			return jid + " outstanding=" + Math.round(outstanding) + " dropped=" + dropped;
+		}
+	}
+
+	private class BudgetWriter implements PacketWriter {
+
+		private final PacketWriter writer;
+
+		BudgetWriter(PacketWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			List<Packet> admitted = null;
+			List<Packet> probes = null;
+			int i = 0;
+			for (Packet packet : packets) {
+				if (!admit(packet)) {
+					if (admitted == null) {
+						// passed collection is not modified
+						admitted = new ArrayList<Packet>(packets.size());
+						Iterator<Packet> it = packets.iterator();
+						for (int j = 0; j < i; j++) {
+							admitted.add(it.next());
+						}
+					}
+				} else {
+					if (admitted != null) {
+						admitted.add(packet);
+					}
+					final Packet probe = createProbe(packet);
+					if (probe != null) {
+						if (probes == null) {
+							probes = new ArrayList<Packet>();
+						}
+						probes.add(probe);
+					}
+				}
+				++i;
+			}
+			if (admitted == null) {
+				writer.write(packets);
+			} else if (!admitted.isEmpty()) {
+				writer.write(admitted);
+			}
+			if (probes != null) {
+				for (Packet probe : probes) {
+					sendProbe(writer, probe);
+				}
+			}
+		}
+
+		@Override
+		public void write(Packet packet) {
+			if (admit(packet)) {
+				writer.write(packet);
+				final Packet probe = createProbe(packet);
+				if (probe != null) {
+					sendProbe(writer, probe);
+				}
+			}
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			// responses are expected, so packet is never dropped
+			account(packet.getStanzaTo());
+			writer.write(packet, callback);
+		}
+	}
+
+	/**
+	 * Time after which recipient without sent packets is forgotten.
+	 */
+	private static final long IDLE_TIME = TimeUnit.MINUTES.toNanos(10);
+
+	private static final Logger log = Logger.getLogger(OutboundBudget.class.getName());
+
+	private final ConcurrentHashMap<JID, Bucket> buckets = new ConcurrentHashMap<JID, Bucket>();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Set<JID> kicked = Collections.newSetFromMap(new ConcurrentHashMap<JID, Boolean>());
+
+	private final AtomicLong kicks = new AtomicLong();
+
+	private volatile int kickThreshold = 0;
+
+	private final AtomicLong probeIds = new AtomicLong();
+
+	private final AtomicLong probes = new AtomicLong();
+
+	private volatile int threshold = 0;
+
+	private void account(JID recipient) {
+		if (recipient == null) {
+			return;
+		}
+		final long outstanding = getBucket(recipient).add();
+		final int kt = kickThreshold;
+		if (kt > 0 && outstanding >= kt && kicked.add(recipient)) {
+			kicks.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Checks if packet may be sent and accounts it.
+	 * 
+	 * @param packet
+	 * @return <code>false</code> if packet should be dropped.
+	 */
+	boolean admit(Packet packet) {
+		final JID recipient = packet.getStanzaTo();
+		if (recipient == null) {
+			return true;
+		}
+		if (isDroppable(packet)) {
+			final Bucket b = buckets.get(recipient);
+			if (b != null && b.outstanding() >= threshold) {
+				b.dropped.incrementAndGet();
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		account(recipient);
+		return true;
+	}
+
+	/**
+	 * Returns and forgets recipients which exceeded kick threshold.
+	 * 
+	 * @return recipients to remove from rooms.
+	 */
+	public List<JID> drainKicked() {
+		if (kicked.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<JID> result = new ArrayList<JID>(kicked);
+		kicked.removeAll(result);
+		for (JID jid : result) {
+			buckets.remove(jid);
+		}
+		return result;
+	}
+
+	private Bucket getBucket(JID recipient) {
+		Bucket b = buckets.get(recipient);
+		if (b == null) {
+			b = new Bucket();
+			Bucket x = buckets.putIfAbsent(recipient, b);
+			if (x != null) {
+				b = x;
+			}
+		}
+		return b;
+	}
+
+	public int getKickThreshold() {
+		return kickThreshold;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Outbound budget tracked recipients", buckets.size(), Level.FINE);
+		list.add(compName, "Outbound budget dropped packets", dropped.get(), Level.FINE);
+		list.add(compName, "Outbound budget kicked recipients", kicks.get(), Level.FINE);
+		list.add(compName, "Outbound budget probes", probes.get(), Level.FINE);
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Number of sent packets after which recipient is probed. Probe is sent
+	 * a few times before threshold is reached, so fast recipients never
+	 * exceed it.
+	 */
+	private int getProbeInterval() {
+		final int t = threshold;
+		return Math.max(1, t / 4);
+	}
+
+	/**
+	 * Returns recipients with highest number of outstanding packets.
+	 * 
+	 * @param count
+	 *            maximum number of returned recipients.
+	 * @return list sorted from the slowest recipient.
+	 */
+	public List<SlowRecipient> getTopSlowRecipients(int count) {
+		List<SlowRecipient> result = new ArrayList<SlowRecipient>();
+		for (Map.Entry<JID, Bucket> e : buckets.entrySet()) {
+			final long outstanding = e.getValue().outstanding();
+			final long dr = e.getValue().dropped.get();
+			if (outstanding >= 1 || dr > 0) {
+				result.add(new SlowRecipient(e.getKey(), outstanding, dr));
+			}
+		}
+		Collections.sort(result, new Comparator<SlowRecipient>() {
+
+			@Override
+			public int compare(SlowRecipient o1, SlowRecipient o2) {
+				return Double.compare(o2.outstanding, o1.outstanding);
+			}
+		});
+		return result.size() > count ? new ArrayList<SlowRecipient>(result.subList(0, count)) : result;
+	}
+
+	private boolean isDroppable(Packet packet) {
+		if (packet.getPriority() == Priority.LOW) {
+			return true;
+		}
+		return "presence".equals(packet.getElemName()) && !"unavailable".equals(packet.getAttributeStaticStr(Packet.TYPE_ATT));
+	}
+
+	/**
+	 * @return <code>true</code> if recipients are tracked.
+	 */
+	public boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	/**
+	 * @param kickThreshold
+	 *            number of outstanding packets after which recipient is
+	 *            removed from rooms. 0 disables kicking.
+	 */
+	public void setKickThreshold(int kickThreshold) {
+		this.kickThreshold = kickThreshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            number of outstanding packets after which low priority
+	 *            packets are dropped. 0 disables tracking.
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+		if (threshold <= 0) {
+			buckets.clear();
+			kicked.clear();
+		}
+	}
+
+	/**
+	 * Creates probe if recipient of packet has enough unacknowledged packets.
+	 * 
+	 * @param packet
+	 *            already sent packet.
+	 * @return probe to send after packet or <code>null</code>.
+	 */
+	private Packet createProbe(Packet packet) {
+		final JID recipient = packet.getStanzaTo();
+		final JID from = packet.getStanzaFrom();
+		if (recipient == null || from == null) {
+			return null;
+		}
+		final Bucket b = buckets.get(recipient);
+		if (b == null || !b.startProbe(getProbeInterval())) {
+			return null;
+		}
+		final JID roomJID = JID.jidInstanceNS(from.getBareJID());
+		Element ping = new Element("iq", new String[] { Packet.TYPE_ATT, Packet.ID_ATT }, new String[] { "get",
+				"ob-" + probeIds.incrementAndGet() });
+		ping.addChild(new Element("ping", new String[] { "xmlns" }, new String[] { "urn:xmpp:ping" }));
+
+		Packet probe = Packet.packetInstance(ping, roomJID, recipient);
+		probe.setXMLNS(Packet.CLIENT_XMLNS);
+		return probe;
+	}
+
+	private void sendProbe(PacketWriter writer, final Packet probe) {
+		final JID recipient = probe.getStanzaTo();
+		probes.incrementAndGet();
+		writer.write(probe, new AsyncCallback() {
+
+			@Override
+			public void onError(Packet responseStanza, String errorCondition) {
+				// error is also sent after all previous packets were consumed
+				acknowledge(recipient);
+			}
+
+			@Override
+			public void onSuccess(Packet responseStanza) {
+				acknowledge(recipient);
+			}
+
+			@Override
+			public void onTimeout() {
+				final Bucket b = buckets.get(recipient);
+				if (b != null) {
+					b.lost();
+				}
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest("Probe to " + recipient + " timed out");
+				}
+			}
+		});
+	}
+
+	private void acknowledge(JID recipient) {
+		final Bucket b = buckets.get(recipient);
+		if (b != null) {
+			b.acknowledge();
+		}
+	}
+
+	/**
+	 * Removes recipients which consumed all packets or didn't receive
+	 * anything for a long time.
+	 */
+	public void sweep() {
+		final long now = System.nanoTime();
+		Iterator<Bucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isIdle(now, IDLE_TIME)) {
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "threshold=" + threshold + ", kickThreshold=" + kickThreshold;
+	}
+
+	/**
+	 * @param writer
+	 * @return writer passing packets through this budget.
+	 */
+	public PacketWriter wrap(PacketWriter writer) {
+		return new BudgetWriter(writer);
+	}
+
+}
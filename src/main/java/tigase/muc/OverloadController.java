@@ -0,0 +1,337 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.stats.StatisticsList;
+
+/**
+ * Decides which traffic should be shed when component is overloaded. Load is
+ * measured as number of packets waiting in component queues and as average
+ * packet processing time. Each of them is compared with thresholds of
+ * {@linkplain SheddingLevel shedding levels}, and the higher level wins.
+ * 
+ * Live groupchat messages are never shed.
+ */
+public class OverloadController implements StatisticsProvider {
+
+	/**
+	 * Shedding levels. Each level sheds also traffic of all lower levels.
+	 */
+	public static enum SheddingLevel {
+		/**
+		 * Nothing is shed.
+		 */
+		none,
+		/**
+		 * Chat state notifications are dropped.
+		 */
+		chatStates,
+		/**
+		 * Repeated availability changes of occupant are coalesced.
+		 */
+		presences,
+		/**
+		 * History is not sent to joining occupants.
+		 */
+		historyReplay,
+		/**
+		 * New occupants can't join rooms.
+		 */
+		joins
+	}
+
+	/**
+	 * Minimal time between evaluations done by {@linkplain #tick()}.
+	 */
+	private static final long TICK_INTERVAL = 1000;
+
+	/**
+	 * Time without queued and dequeued packets after which queue is assumed
+	 * to be empty.
+	 */
+	private static final long IDLE_RESET_TIME = 5000;
+
+	private static final Logger log = Logger.getLogger(OverloadController.class.getName());
+
+	/**
+	 * Parses thresholds for levels above {@linkplain SheddingLevel#none none},
+	 * given as comma separated list or as array of strings (configuration
+	 * value of type <code>String[]</code>).
+	 */
+	static long[] parseThresholds(Object value, long[] def) {
+		final String[] parts;
+		if (value instanceof String[]) {
+			parts = (String[]) value;
+		} else if (value instanceof String && !((String) value).trim().isEmpty()) {
+			parts = ((String) value).split(",");
+		} else {
+			return def;
+		}
+		if (parts.length == 0) {
+			return def;
+		}
+		long[] result = new long[SheddingLevel.values().length - 1];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = i < parts.length ? Long.parseLong(parts[i].trim()) : Long.MAX_VALUE;
+		}
+		return result;
+	}
+
+	/**
+	 * Average packet processing time in microseconds, multiplied by 16.
+	 */
+	private final AtomicLong avgProcessingTime16 = new AtomicLong();
+
+	private final AtomicLong[] dropped = new AtomicLong[SheddingLevel.values().length];
+
+	private volatile long lastActivity = System.currentTimeMillis();
+
+	private final AtomicLong lastTick = new AtomicLong();
+
+	private volatile SheddingLevel level = SheddingLevel.none;
+
+	/**
+	 * Thresholds of average processing time in microseconds.
+	 */
+	private volatile long[] latencyThresholds = new long[] { 50000, 100000, 250000, 500000 };
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile long[] queueThresholds = new long[] { 5000, 10000, 20000, 40000 };
+
+	public OverloadController() {
+		for (int i = 0; i < dropped.length; i++) {
+			dropped[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Counts item of given class dropped because of overload.
+	 * 
+	 * @param cls
+	 */
+	public void addDropped(SheddingLevel cls) {
+		dropped[cls.ordinal()].incrementAndGet();
+	}
+
+	private SheddingLevel calculateLevel() {
+		final int depth = pending.get();
+		final long latency = avgProcessingTime16.get() >> 4;
+		final long[] qt = queueThresholds;
+		final long[] lt = latencyThresholds;
+		int result = 0;
+		for (int i = qt.length - 1; i >= 0; i--) {
+			if (depth >= qt[i]) {
+				result = i + 1;
+				break;
+			}
+		}
+		for (int i = lt.length - 1; i >= result; i--) {
+			if (latency >= lt[i]) {
+				result = i + 1;
+				break;
+			}
+		}
+		return SheddingLevel.values()[result];
+	}
+
+	/**
+	 * Recalculates current shedding level.
+	 * 
+	 * @return current level.
+	 */
+	public SheddingLevel evaluate() {
+		resetIfIdle();
+		final SheddingLevel l = calculateLevel();
+		if (l != level) {
+			if (log.isLoggable(Level.CONFIG)) {
+				log.config("Overload shedding level changed from " + level + " to " + l + "; queue=" + pending.get()
+						+ "; avgProcessingTime=" + (avgProcessingTime16.get() >> 4) + "us");
+			}
+			level = l;
+		}
+		return l;
+	}
+
+	public long getDropped(SheddingLevel cls) {
+		return dropped[cls.ordinal()].get();
+	}
+
+	public SheddingLevel getLevel() {
+		return level;
+	}
+
+	public int getPending() {
+		return pending.get();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Overload shedding level", level.ordinal(), Level.INFO);
+		list.add(compName, "Overload queue depth", pending.get(), Level.FINE);
+		list.add(compName, "Overload avg processing time [us]", avgProcessingTime16.get() >> 4, Level.FINE);
+		list.add(compName, "Overload dropped chat states", getDropped(SheddingLevel.chatStates), Level.FINE);
+		list.add(compName, "Overload coalesced presences", getDropped(SheddingLevel.presences), Level.FINE);
+		list.add(compName, "Overload skipped history replays", getDropped(SheddingLevel.historyReplay), Level.FINE);
+		list.add(compName, "Overload rejected joins", getDropped(SheddingLevel.joins), Level.FINE);
+	}
+
+	/**
+	 * Checks if traffic of given class should be shed now.
+	 * 
+	 * @param cls
+	 * @return <code>true</code> if current level sheds given class.
+	 */
+	public boolean isShedding(SheddingLevel cls) {
+		return cls != SheddingLevel.none && level.ordinal() >= cls.ordinal();
+	}
+
+	/**
+	 * Must be called when packet is accepted to component queue.
+	 */
+	public void packetQueued() {
+		lastActivity = System.currentTimeMillis();
+		if (pending.incrementAndGet() >= queueThresholds[0] && level == SheddingLevel.none) {
+			evaluate();
+		}
+	}
+
+	/**
+	 * Must be called when packet is rejected by full queue after
+	 * {@linkplain #packetQueued()}.
+	 */
+	public void packetRejected() {
+		pending.decrementAndGet();
+	}
+
+	/**
+	 * Must be called on every path consuming packet from component queue,
+	 * when packet processing is started.
+	 */
+	public void packetDequeued() {
+		lastActivity = System.currentTimeMillis();
+		if (pending.decrementAndGet() < 0) {
+			// packet was queued other way than addPacket()/addPacketNB()
+			pending.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Corrects queue depth which drifted because of packets consumed by
+	 * path not calling {@linkplain #packetDequeued()}: if nothing was queued
+	 * nor dequeued for a while, queue is empty.
+	 */
+	private void resetIfIdle() {
+		final int depth = pending.get();
+		if (depth > 0 && System.currentTimeMillis() - lastActivity >= IDLE_RESET_TIME && pending.compareAndSet(depth, 0)) {
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Reset queue depth " + depth + " of idle component");
+			}
+		}
+	}
+
+	/**
+	 * Must be called when packet is processed.
+	 * 
+	 * @param nanos
+	 *            processing time in nanoseconds.
+	 */
+	public void packetProcessed(long nanos) {
+		final long micros = nanos / 1000;
+		long avg16;
+		// exponentially weighted moving average, alpha = 1/16
+		do {
+			avg16 = avgProcessingTime16.get();
+		} while (!avgProcessingTime16.compareAndSet(avg16, avg16 + micros - (avg16 >> 4)));
+	}
+
+	/**
+	 * Shortcut for {@linkplain #isShedding(SheddingLevel)} and
+	 * {@linkplain #addDropped(SheddingLevel)}.
+	 * 
+	 * @param cls
+	 * @return <code>true</code> if item should be dropped.
+	 */
+	public boolean shed(SheddingLevel cls) {
+		if (isShedding(cls)) {
+			addDropped(cls);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param latencyThresholds
+	 *            average processing time thresholds in milliseconds for each
+	 *            level above {@linkplain SheddingLevel#none none}.
+	 */
+	public void setLatencyThresholds(long[] latencyThresholds) {
+		long[] t = new long[latencyThresholds.length];
+		for (int i = 0; i < t.length; i++) {
+			t[i] = latencyThresholds[i] == Long.MAX_VALUE ? Long.MAX_VALUE : latencyThresholds[i] * 1000;
+		}
+		this.latencyThresholds = t;
+	}
+
+	/**
+	 * @param queueThresholds
+	 *            queue depth thresholds for each level above
+	 *            {@linkplain SheddingLevel#none none}.
+	 */
+	public void setQueueThresholds(long[] queueThresholds) {
+		this.queueThresholds = queueThresholds;
+	}
+
+	/**
+	 * Evaluates level if it wasn't evaluated for a second.
+	 * 
+	 * @return <code>true</code> if level was evaluated by this call.
+	 */
+	public boolean tick() {
+		final long now = System.currentTimeMillis();
+		final long last = lastTick.get();
+		if (now - last < TICK_INTERVAL || !lastTick.compareAndSet(last, now)) {
+			return false;
+		}
+		evaluate();
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("queueThresholds=");
+		for (long t : queueThresholds) {
+			sb.append(t).append(' ');
+		}
+		sb.append("latencyThresholds[us]=");
+		for (long t : latencyThresholds) {
+			sb.append(t).append(' ');
+		}
+		return sb.toString().trim();
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.ArrayList;
+
+import tigase.component.PacketWriter;
+import tigase.server.Packet;
+
+/**
+ * Collects packets produced by room fan-out and hands them off to
+ * {@linkplain PacketWriter} in chunks using
+ * {@linkplain PacketWriter#write(java.util.Collection)}. Internal list is
+ * reused between chunks, so writer must not keep reference to passed
+ * collection.
+ * 
+ * Instance is not thread safe.
+ */
+public class PacketBatch {
+
+	private final int chunkSize;
+
+	private final ArrayList<Packet> packets;
+
+	private final PacketWriter writer;
+
+	public PacketBatch(PacketWriter writer, int chunkSize) {
+		this.writer = writer;
+		this.chunkSize = chunkSize < 1 ? 1 : chunkSize;
+		this.packets = new ArrayList<Packet>(this.chunkSize);
+	}
+
+	public void add(Packet packet) {
+		packets.add(packet);
+		if (packets.size() >= chunkSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends all collected packets.
+	 */
+	public void flush() {
+		if (packets.isEmpty()) {
+			return;
+		}
+		writer.write(packets);
+		packets.clear();
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+}
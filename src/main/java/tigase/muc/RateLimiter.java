@@ -0,0 +1,250 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * Token-bucket limits of groupchat messages per room, per occupant and per
+ * sender bare JID. Buckets are implemented as generic cell rate algorithm:
+ * each bucket keeps only theoretical arrival time in {@link AtomicLong}, so
+ * checks are lock-free.
+ */
+public class RateLimiter implements StatisticsProvider {
+
+	private static final class Bucket {
+
+		private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+		boolean tryAcquire(final Limit limit, final long now) {
+			while (true) {
+				final long t = tat.get();
+				final long newTat = Math.max(t, now) + limit.interval;
+				if (newTat - now > limit.tolerance) {
+					return false;
+				}
+				if (tat.compareAndSet(t, newTat)) {
+					return true;
+				}
+			}
+		}
+
+		void release(final Limit limit) {
+			tat.addAndGet(-limit.interval);
+		}
+
+		boolean isIdle(final long now) {
+			return tat.get() <= now;
+		}
+	}
+
+	/**
+	 * Rate limit definition.
+	 */
+	public static final class Limit {
+
+		/**
+		 * Nanoseconds needed to refill one token.
+		 */
+		private final long interval;
+
+		private final double rate;
+
+		private final long tolerance;
+
+		private final int burst;
+
+		/**
+		 * @param rate
+		 *            allowed messages per second. Value lower or equal 0
+		 *            disables limit.
+		 * @param burst
+		 *            bucket capacity.
+		 */
+		public Limit(double rate, int burst) {
+			this.rate = rate;
+			this.burst = burst < 1 ? 1 : burst;
+			this.interval = rate > 0 ? (long) (1000000000L / rate) : 0;
+			this.tolerance = this.interval * this.burst;
+		}
+
+		public boolean isEnabled() {
+			return interval > 0;
+		}
+
+		@Override
+		public String toString() {
+			return isEnabled() ? rate + "/s, burst " + burst : "disabled";
+		}
+	}
+
+	public static final Limit DISABLED = new Limit(0, 1);
+
+	private static Bucket getBucket(ConcurrentHashMap<Object, Bucket> buckets, Object key) {
+		Bucket b = buckets.get(key);
+		if (b == null) {
+			b = new Bucket();
+			Bucket x = buckets.putIfAbsent(key, b);
+			if (x != null) {
+				b = x;
+			}
+		}
+		return b;
+	}
+
+	private static void sweep(Map<Object, Bucket> buckets, long now) {
+		Iterator<Bucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isIdle(now)) {
+				it.remove();
+			}
+		}
+	}
+
+	private final AtomicLong accepted = new AtomicLong();
+
+	private volatile Limit occupantLimit = DISABLED;
+
+	private final ConcurrentHashMap<Object, Bucket> occupants = new ConcurrentHashMap<Object, Bucket>();
+
+	private final AtomicLong rejectedOccupant = new AtomicLong();
+
+	private final AtomicLong rejectedRoom = new AtomicLong();
+
+	private final AtomicLong rejectedSender = new AtomicLong();
+
+	private volatile Limit roomLimit = DISABLED;
+
+	private final ConcurrentHashMap<Object, Bucket> rooms = new ConcurrentHashMap<Object, Bucket>();
+
+	private volatile Limit senderLimit = DISABLED;
+
+	private final ConcurrentHashMap<Object, Bucket> senders = new ConcurrentHashMap<Object, Bucket>();
+
+	/**
+	 * Takes one token from room, occupant and sender buckets.
+	 * 
+	 * @param roomJID
+	 *            room address.
+	 * @param occupantJID
+	 *            occupant address in room (room/nickname).
+	 * @param senderJID
+	 *            real address of sender.
+	 * @return <code>true</code> if message may be sent.
+	 */
+	public boolean tryAcquire(final BareJID roomJID, final JID occupantJID, final BareJID senderJID) {
+		final Limit room = roomLimit;
+		final Limit occupant = occupantLimit;
+		final Limit sender = senderLimit;
+
+		if (!room.isEnabled() && !occupant.isEnabled() && !sender.isEnabled()) {
+			return true;
+		}
+
+		final long now = System.nanoTime();
+
+		Bucket roomBucket = null;
+		if (room.isEnabled()) {
+			roomBucket = getBucket(rooms, roomJID);
+			if (!roomBucket.tryAcquire(room, now)) {
+				rejectedRoom.incrementAndGet();
+				return false;
+			}
+		}
+
+		Bucket occupantBucket = null;
+		if (occupant.isEnabled()) {
+			occupantBucket = getBucket(occupants, occupantJID);
+			if (!occupantBucket.tryAcquire(occupant, now)) {
+				if (roomBucket != null) {
+					roomBucket.release(room);
+				}
+				rejectedOccupant.incrementAndGet();
+				return false;
+			}
+		}
+
+		if (sender.isEnabled()) {
+			if (!getBucket(senders, senderJID).tryAcquire(sender, now)) {
+				if (roomBucket != null) {
+					roomBucket.release(room);
+				}
+				if (occupantBucket != null) {
+					occupantBucket.release(occupant);
+				}
+				rejectedSender.incrementAndGet();
+				return false;
+			}
+		}
+
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Rate limit accepted messages", accepted.get(), Level.FINE);
+		list.add(compName, "Rate limit rejected by room", rejectedRoom.get(), Level.FINE);
+		list.add(compName, "Rate limit rejected by occupant", rejectedOccupant.get(), Level.FINE);
+		list.add(compName, "Rate limit rejected by sender", rejectedSender.get(), Level.FINE);
+		list.add(compName, "Rate limit buckets", rooms.size() + occupants.size() + senders.size(), Level.FINEST);
+	}
+
+	public void setOccupantLimit(Limit occupantLimit) {
+		this.occupantLimit = occupantLimit;
+		occupants.clear();
+	}
+
+	public void setRoomLimit(Limit roomLimit) {
+		this.roomLimit = roomLimit;
+		rooms.clear();
+	}
+
+	public void setSenderLimit(Limit senderLimit) {
+		this.senderLimit = senderLimit;
+		senders.clear();
+	}
+
+	/**
+	 * Removes buckets which are full again. Such bucket behaves exactly like
+	 * new one, so it doesn't need to be kept.
+	 */
+	public void sweep() {
+		final long now = System.nanoTime();
+		sweep(rooms, now);
+		sweep(occupants, now);
+		sweep(senders, now);
+	}
+
+	@Override
+	public String toString() {
+		return "room: " + roomLimit + "; occupant: " + occupantLimit + "; sender: " + senderLimit;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import tigase.xmpp.JID;
+
+/**
+ * Resolves route used by server to deliver packet to recipient, for example
+ * cluster node or connection manager holding session of user. Room fan-out
+ * groups recipients by route, so packets going the same way are handed off
+ * together.
+ * 
+ * Implementations must be thread safe and fast, as resolver is called for
+ * each recipient of each broadcasted stanza.
+ */
+public interface RecipientRouteResolver {
+
+	/**
+	 * @param recipient
+	 *            full JID of recipient.
+	 * @return identifier of route. Must not be <code>null</code>.
+	 */
+	String getRoute(JID recipient);
+
+}
@@ -72,6 +72,11 @@ public class Room implements RoomConfig.RoomConfigListener {
 	public static interface RoomListener {
 		void onChangeSubject(Room room, String nick, String newSubject, Date changeDate);
 
+		/**
+		 * Called when message was sent to occupants. Child elements of
+		 * <code>msg</code> are shared by packets sent to occupants, so it
+		 * must not be modified.
+		 */
 		void onMessageToOccupants(Room room, JID from, Packet msg);
 
 		void onSetAffiliation(Room room, BareJID jid, Affiliation newAffiliation);
@@ -0,0 +1,41 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import tigase.stats.StatisticsList;
+
+/**
+ * Implemented by parts of MUC component which export own statistics.
+ */
+public interface StatisticsProvider {
+
+	/**
+	 * Adds statistics to list.
+	 * 
+	 * @param compName
+	 *            name of component.
+	 * @param list
+	 *            list of statistics.
+	 */
+	void getStatistics(String compName, StatisticsList list);
+
+}
@@ -21,11 +21,16 @@
  */
 package tigase.muc.history;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.Queue;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import tigase.muc.Affiliation;
 import tigase.muc.DateUtil;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig.Anonymity;
 import tigase.server.Packet;
 import tigase.util.TigaseStringprepException;
 import tigase.xml.DomBuilderHandler;
@@ -45,40 +50,74 @@ public abstract class AbstractHistoryProvider implements HistoryProvider {
 
 	protected final Logger log = Logger.getLogger(this.getClass().getName());
 
+	/**
+	 * Checks if real JIDs of senders may be revealed to recipient of history.
+	 * 
+	 * @param room
+	 * @param recipientJID
+	 * @return
+	 */
+	protected static boolean isAddRealJids(Room room, JID recipientJID) {
+		Affiliation recipientAffiliation = room.getAffiliation(recipientJID.getBareJID());
+		return room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous
+				|| room.getConfig().getRoomAnonymity() == Anonymity.semianonymous
+				&& (recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+	}
+
 	protected Packet createMessage(BareJID roomJID, JID senderJID, String msgSenderNickname, String originalMessage,
 			String body, String msgSenderJid, boolean addRealJids, Date msgTimestamp) throws TigaseStringprepException {
+		return parseMessage(roomJID, msgSenderNickname, originalMessage, body, msgSenderJid, msgTimestamp).createPacket(
+				senderJID, addRealJids);
+	}
+
+	/**
+	 * Parses stored history message and prepares its variants with and
+	 * without real JID of sender. Result may be cached and used to create
+	 * packets for many recipients.
+	 */
+	protected ParsedHistoryMessage parseMessage(BareJID roomJID, String msgSenderNickname, String originalMessage,
+			String body, String msgSenderJid, Date msgTimestamp) throws TigaseStringprepException {
+		final JID from = JID.jidInstance(roomJID, msgSenderNickname);
 
-		Packet message = null;
+		Element m = null;
 
-		if (originalMessage != null) {
+		if (HistoryRecordCodec.isEncoded(originalMessage)) {
+			try {
+				m = HistoryRecordCodec.decode(originalMessage);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Can't decode history message of room " + roomJID + ", using body only", e);
+			}
+			if (m != null) {
+				m.setAttribute("type", "groupchat");
+				m.setAttribute("from", from.toString());
+				m.removeAttribute("to");
+			}
+		} else if (originalMessage != null) {
 			DomBuilderHandler domHandler = new DomBuilderHandler();
 			parser.parse(domHandler, originalMessage.toCharArray(), 0, originalMessage.length());
 			Queue<Element> queue = domHandler.getParsedElements();
 
-			Element m = queue.poll();
+			m = queue.poll();
 			if (m != null) {
 				m.setAttribute("type", "groupchat");
-				m.setAttribute("from", JID.jidInstance(roomJID, msgSenderNickname).toString());
-				m.setAttribute("to", senderJID.toString());
-				
-				message = Packet.packetInstance(m);
-				message.setXMLNS(Packet.CLIENT_XMLNS);
+				m.setAttribute("from", from.toString());
+				m.removeAttribute("to");
 			}
 		}
 
-		if (message == null) {
-			message = Packet.packetInstance(new Element("message", new String[] { "type", "from", "to" }, new String[] {
-					"groupchat", JID.jidInstance(roomJID, msgSenderNickname).toString(), senderJID.toString() }));
-			message.setXMLNS(Packet.CLIENT_XMLNS);
-			message.getElement().addChild(new Element("body", body));
+		if (m == null) {
+			m = new Element("message", new String[] { "type", "from" }, new String[] { "groupchat", from.toString() });
+			m.addChild(new Element("body", body));
 		}
 
-		String from = addRealJids ? msgSenderJid : roomJID + "/" + msgSenderNickname;
-		Element delay = new Element("delay", new String[] { "xmlns", "from", "stamp" }, new String[] { "urn:xmpp:delay", from,
-				DateUtil.formatDatetime(msgTimestamp) });
-		message.getElement().addChild(delay);
+		final String stamp = DateUtil.formatDatetime(msgTimestamp);
+		Element withRealJid = m.clone();
+		withRealJid.addChild(new Element("delay", new String[] { "xmlns", "from", "stamp" }, new String[] {
+				"urn:xmpp:delay", msgSenderJid, stamp }));
+		m.addChild(new Element("delay", new String[] { "xmlns", "from", "stamp" }, new String[] { "urn:xmpp:delay",
+				roomJID + "/" + msgSenderNickname, stamp }));
 
-		return message;
+		return new ParsedHistoryMessage(from, m, withRealJid);
 	}
 
 }
@@ -21,11 +21,22 @@
  */
 package tigase.muc.history;
 
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Level;
 
 import tigase.component.PacketWriter;
@@ -34,28 +45,137 @@ import tigase.db.DataRepository;
 import tigase.db.RepositoryFactory;
 import tigase.muc.Affiliation;
 import tigase.muc.Room;
+import tigase.muc.StatisticsProvider;
 import tigase.muc.RoomConfig.Anonymity;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
+import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
 
 /**
  * @author bmalkow
  * 
  */
-public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvider {
+public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvider implements StatisticsProvider {
 
 	public static final String ADD_MESSAGE_QUERY_KEY = "ADD_MESSAGE_QUERY_KEY";
 
+	public static final String DELETE_EXPIRED_QUERY_KEY = "DELETE_EXPIRED_QUERY_KEY";
+
 	public static final String DELETE_MESSAGES_QUERY_KEY = "DELETE_MESSAGES_QUERY_KEY";
 
+	public static final String GET_ARCHIVE_LAST_QUERY_KEY = "GET_ARCHIVE_LAST_QUERY_KEY";
+
+	public static final String GET_ARCHIVE_QUERY_KEY = "GET_ARCHIVE_QUERY_KEY";
+
 	public static final String GET_MESSAGES_MAXSTANZAS_QUERY_KEY = "GET_MESSAGES_MAXSTANZAS_QUERY_KEY";
 
 	public static final String GET_MESSAGES_SINCE_QUERY_KEY = "GET_MESSAGES_SINCE_QUERY_KEY";
 
+	public static final String HISTORY_BATCH_BUFFER_KEY = "history-batch-buffer";
+
+	public static final String HISTORY_BATCH_DELAY_KEY = "history-batch-delay";
+
+	public static final String HISTORY_BATCH_SIZE_KEY = "history-batch-size";
+
+	public static final String HISTORY_CACHE_SIZE_KEY = "history-cache-size";
+
+	public static final String HISTORY_COMPACT_FORMAT_KEY = "history-compact-format";
+
+	public static final String HISTORY_PURGE_CHUNK_KEY = "history-purge-chunk";
+
+	public static final String HISTORY_PURGE_PAUSE_KEY = "history-purge-pause";
+
+	public static final String HISTORY_RETENTION_KEY = "history-retention";
+
+	/**
+	 * Name of index on <code>(room_name, timestamp)</code> columns.
+	 */
+	public static final String HISTORY_INDEX_NAME = "muc_history_room_ts";
+
+	/**
+	 * Name of index on <code>timestamp</code> column, used by retention.
+	 */
+	public static final String HISTORY_TS_INDEX_NAME = "muc_history_ts";
+
+	private static final String CREATE_SCHEMA_TABLE_VAL = "create table muc_history_schema (version int not null)";
+
+	private static final String CREATE_PURGE_TABLE_VAL = "create table muc_history_purge (room_name varchar(128) not null, purge_before bigint not null)";
+
+	private static final String PURGE_ADD_QUERY_KEY = "PURGE_ADD_QUERY_KEY";
+
+	private static final String PURGE_ADD_QUERY_VAL = "insert into muc_history_purge (room_name, purge_before) values (?, ?)";
+
+	private static final String PURGE_CLEAR_QUERY_KEY = "PURGE_CLEAR_QUERY_KEY";
+
+	private static final String PURGE_CLEAR_QUERY_VAL = "delete from muc_history_purge where room_name=? and purge_before <= ?";
+
+	private static final String PURGE_GET_QUERY_VAL = "select room_name, purge_before from muc_history_purge";
+
+	private static final String PURGE_REMOVE_QUERY_KEY = "PURGE_REMOVE_QUERY_KEY";
+
+	private static final String PURGE_REMOVE_QUERY_VAL = "delete from muc_history_purge where room_name=?";
+
+	/**
+	 * Marks (as the first statement) schema upgrade which doesn't block writes
+	 * but may run for long time, i.e. online index build. On table with more
+	 * than {@linkplain #OFFLINE_UPGRADE_MAX_ROWS} rows it is applied after
+	 * startup by background thread, using own database connection.
+	 */
+	protected static final String BACKGROUND_UPGRADE = "-- background";
+
+	/**
+	 * Schema version with <code>id</code> column, required by archive queries.
+	 * Index upgrades precede it, as it may have to be applied offline and
+	 * upgrading stops there.
+	 */
+	public static final int ID_SCHEMA_VERSION = 3;
+
+	/**
+	 * Marks (as the first statement) schema upgrade which rewrites whole
+	 * <code>muc_history</code> table or blocks writes to it. It is applied at startup only if table
+	 * has at most {@linkplain #OFFLINE_UPGRADE_MAX_ROWS} rows, otherwise it has
+	 * to be applied by {@linkplain HistorySchemaUpgrade}.
+	 */
+	protected static final String OFFLINE_UPGRADE = "-- offline";
+
+	private static final int OFFLINE_UPGRADE_MAX_ROWS = 100000;
+
+	/**
+	 * Interval in milliseconds of progress messages of running schema
+	 * upgrade.
+	 */
+	private static final long UPGRADE_PROGRESS_INTERVAL = 60000;
+
+	/**
+	 * If <code>true</code>, messages are stored in
+	 * {@linkplain HistoryRecordCodec compact format}.
+	 */
+	protected boolean compactFormat;
+
 	protected DataRepository dataRepository;
 
+	protected GroupCommitWriter groupCommitWriter;
+
+	protected RecentHistoryCache historyCache;
+
+	protected HistoryPurger historyPurger;
+
+	/**
+	 * Maximum number of rows deleted by single statement.
+	 */
+	protected int purgeChunkSize = 5000;
+
+	protected String resourceUri;
+
+	/**
+	 * Version of <code>muc_history</code> schema after
+	 * {@linkplain #upgradeSchema(String[][], boolean) upgrade}.
+	 */
+	protected volatile int schemaVersion;
+
 	/**
 	 * @param dataRepository
 	 */
@@ -64,6 +184,7 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 	
 	@Override
 	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+		this.resourceUri = resource_uri;
 		try {
 			dataRepository = RepositoryFactory.getDataRepository(null, resource_uri, params);
 		} catch (Exception ex) {
@@ -74,18 +195,25 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 	/** {@inheritDoc} */
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
+		final String msg = message == null ? null : (compactFormat ? HistoryRecordCodec.encode(message) : message
+				.toString());
+		final GroupCommitWriter.Row row = new GroupCommitWriter.Row(room.getRoomJID().toString(), time == null ? null
+				: time.getTime(), senderJid.toString(), senderNickname, body, room.getConfig().isLoggingEnabled(), msg);
+		final GroupCommitWriter writer = groupCommitWriter;
+		if (writer != null) {
+			if (!writer.add(row)) {
+				throw new HistoryOverloadException("History write buffer is full");
+			}
+			appendToCache(room, senderJid, senderNickname, body, time, msg);
+			return;
+		}
+
 		PreparedStatement st = null;
 		try {
 			st = this.dataRepository.getPreparedStatement(null, ADD_MESSAGE_QUERY_KEY);
 
 			synchronized (st) {
-				st.setString(1, room.getRoomJID().toString());
-				st.setLong(2, time == null ? null : time.getTime());
-				st.setString(3, senderJid.toString());
-				st.setString(4, senderNickname);
-				st.setString(5, body);
-				st.setBoolean(6, room.getConfig().isLoggingEnabled());
-				st.setString(7, message == null ? null : message.toString());
+				row.setParameters(st);
 
 				st.executeUpdate();
 			}
@@ -95,18 +223,148 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 		} finally {
 			dataRepository.release(null, null);
 		}
+		appendToCache(room, senderJid, senderNickname, body, time, msg);
+	}
+
+	private void appendToCache(Room room, JID senderJid, String senderNickname, String body, Date time, String msg) {
+		if (historyCache != null) {
+			historyCache.append(room.getRoomJID(), new RecentHistoryCache.Item(time == null ? 0 : time.getTime(),
+					senderNickname, senderJid.toString(), body, msg));
+		}
 	}
 
 	@Override
 	public void destroy() {
-		// we have nothing to release as we use DataRepository instance which is
-		// cached by RepositoryFactory and may be used in other places
+		// we have nothing else to release as we use DataRepository instance
+		// which is cached by RepositoryFactory and may be used in other places
+		if (historyPurger != null) {
+			historyPurger.shutdown();
+			historyPurger = null;
+		}
+		if (groupCommitWriter != null) {
+			groupCommitWriter.shutdown();
+			groupCommitWriter = null;
+		}
+	}
+
+	/**
+	 * Deletes chunk of rows older than given time.
+	 * 
+	 * @return number of deleted rows.
+	 */
+	protected int deleteExpired(long before, int limit) throws SQLException {
+		PreparedStatement st = null;
+		try {
+			st = this.dataRepository.getPreparedStatement(null, DELETE_EXPIRED_QUERY_KEY);
+
+			synchronized (st) {
+				setExpiredParameters(st, before, limit);
+				return st.executeUpdate();
+			}
+		} finally {
+			dataRepository.release(null, null);
+		}
+	}
+
+	/**
+	 * Loads rooms queued for removal from <code>muc_history_purge</code>
+	 * table.
+	 * 
+	 * @return room JIDs with time of removal.
+	 */
+	protected Map<String, Long> loadRemovals() throws SQLException {
+		final Map<String, Long> result = new LinkedHashMap<String, Long>();
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			st = this.dataRepository.createStatement(null);
+			rs = st.executeQuery(PURGE_GET_QUERY_VAL);
+			while (rs.next()) {
+				final String roomJID = rs.getString(1);
+				final long before = rs.getLong(2);
+				final Long current = result.get(roomJID);
+				if (current == null || current < before) {
+					result.put(roomJID, before);
+				}
+			}
+		} finally {
+			dataRepository.release(st, rs);
+		}
+		return result;
+	}
+
+	/**
+	 * Saves room queued for removal to <code>muc_history_purge</code> table.
+	 */
+	protected void saveRemoval(String roomJID, long before) throws SQLException {
+		PreparedStatement st = null;
+		try {
+			st = this.dataRepository.getPreparedStatement(null, PURGE_REMOVE_QUERY_KEY);
+			synchronized (st) {
+				st.setString(1, roomJID);
+				st.executeUpdate();
+			}
+			st = this.dataRepository.getPreparedStatement(null, PURGE_ADD_QUERY_KEY);
+			synchronized (st) {
+				st.setString(1, roomJID);
+				st.setLong(2, before);
+				st.executeUpdate();
+			}
+		} finally {
+			dataRepository.release(null, null);
+		}
+	}
+
+	/**
+	 * Removes room from <code>muc_history_purge</code> table, unless it was
+	 * queued again with later time of removal.
+	 */
+	protected void clearRemoval(String roomJID, long before) throws SQLException {
+		PreparedStatement st = null;
+		try {
+			st = this.dataRepository.getPreparedStatement(null, PURGE_CLEAR_QUERY_KEY);
+			synchronized (st) {
+				st.setString(1, roomJID);
+				st.setLong(2, before);
+				st.executeUpdate();
+			}
+		} finally {
+			dataRepository.release(null, null);
+		}
+	}
+
+	/**
+	 * Deletes chunk of rows of room not newer than given time.
+	 * 
+	 * @return number of deleted rows.
+	 */
+	protected int deleteRoomMessages(String roomJID, long before, int limit) throws SQLException {
+		PreparedStatement st = null;
+		try {
+			st = this.dataRepository.getPreparedStatement(null, DELETE_MESSAGES_QUERY_KEY);
+
+			synchronized (st) {
+				setDeleteMessagesParameters(st, roomJID, before, limit);
+				return st.executeUpdate();
+			}
+		} finally {
+			dataRepository.release(null, null);
+		}
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds, Date since,
 			PacketWriter writer) {
+		final RecentHistoryCache cache = historyCache;
+		if (cache != null) {
+			List<RecentHistoryCache.Item> items = getCachedHistory(cache, room);
+			if (items != null) {
+				writeCachedHistory(room, senderJID, maxstanzas, seconds, since, items, writer);
+				return;
+			}
+		}
+
 		ResultSet rs = null;
 		final String roomJID = room.getRoomJID().toString();
 
@@ -118,9 +376,7 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 				}
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(), GET_MESSAGES_SINCE_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setLong(2, since.getTime());
-					st.setInt(3, maxMessages);
+					setSinceParameters(st, roomJID, since.getTime(), maxMessages);
 					rs = st.executeQuery();
 					processResultSet(room, senderJID, writer, rs);
 				}
@@ -131,8 +387,7 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
 						GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setInt(2, Math.min(maxstanzas, maxMessages));
+					setMaxStanzasParameters(st, roomJID, Math.min(maxstanzas, maxMessages));
 					rs = st.executeQuery();
 					processResultSet(room, senderJID, writer, rs);
 				}
@@ -142,9 +397,7 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 				}
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(), GET_MESSAGES_SINCE_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setLong(2, new Date().getTime() - seconds * 1000);
-					st.setInt(3, maxMessages);
+					setSinceParameters(st, roomJID, new Date().getTime() - seconds * 1000, maxMessages);
 					rs = st.executeQuery();
 					processResultSet(room, senderJID, writer, rs);
 				}
@@ -155,8 +408,7 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
 						GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
 				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setInt(2, maxMessages);
+					setMaxStanzasParameters(st, roomJID, maxMessages);
 					rs = st.executeQuery();
 					processResultSet(room, senderJID, writer, rs);
 				}
@@ -171,6 +423,279 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 		}
 	}
 
+	/**
+	 * Returns recent history of room from cache. If room is not cached yet,
+	 * the last <code>max history</code> messages are loaded from database,
+	 * unless {@linkplain GroupCommitWriter batched writer} has unwritten rows.
+	 * 
+	 * @return messages ordered from the oldest or <code>null</code> if history
+	 *         must be read from database.
+	 */
+	private List<RecentHistoryCache.Item> getCachedHistory(RecentHistoryCache cache, Room room) {
+		final BareJID roomJID = room.getRoomJID();
+		final int maxMessages = room.getConfig().getMaxHistory();
+
+		List<RecentHistoryCache.Item> items = cache.getRecent(roomJID, maxMessages);
+		if (items != null || !cache.startLoading(roomJID)) {
+			return items;
+		}
+
+		final GroupCommitWriter commitWriter = groupCommitWriter;
+		if (commitWriter != null && !commitWriter.isFlushed()) {
+			// buffered messages wouldn't be cached; room is loaded on later
+			// request, packet thread doesn't wait for writer
+			cache.cancelLoading(roomJID);
+			return null;
+		}
+
+		ResultSet rs = null;
+		try {
+			List<RecentHistoryCache.Item> loaded = new ArrayList<RecentHistoryCache.Item>();
+			PreparedStatement st = dataRepository.getPreparedStatement(roomJID, GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
+			synchronized (st) {
+				setMaxStanzasParameters(st, roomJID.toString(), maxMessages);
+				rs = st.executeQuery();
+				while (rs.next()) {
+					loaded.add(new RecentHistoryCache.Item(rs.getLong("timestamp"), rs.getString("sender_nickname"),
+							rs.getString("sender_jid"), rs.getString("body"), rs.getString("msg")));
+				}
+			}
+			cache.finishLoading(roomJID, maxMessages, loaded);
+			return loaded;
+		} catch (SQLException e) {
+			cache.cancelLoading(roomJID);
+			if (log.isLoggable(Level.WARNING))
+				log.log(Level.WARNING, "Can't load history of room " + roomJID + " to cache", e);
+			return null;
+		} finally {
+			dataRepository.release(null, rs);
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		final GroupCommitWriter writer = groupCommitWriter;
+		if (writer != null) {
+			writer.getStatistics(compName, list);
+		}
+		final RecentHistoryCache cache = historyCache;
+		if (cache != null) {
+			cache.getStatistics(compName, list);
+		}
+		final HistoryPurger purger = historyPurger;
+		if (purger != null) {
+			purger.getStatistics(compName, list);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean queryArchive(Room room, JID senderJID, ArchiveQuery query, ArchiveQuery.Handler handler) {
+		if (!isArchiveSupported()) {
+			throw new UnsupportedOperationException("muc_history schema version " + schemaVersion
+					+ " doesn't support archive queries");
+		}
+		final boolean addRealJids = isAddRealJids(room, senderJID);
+		final int limit = query.getLimit();
+
+		ResultSet rs = null;
+		try {
+			PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
+					query.isLastPage() ? GET_ARCHIVE_LAST_QUERY_KEY : GET_ARCHIVE_QUERY_KEY);
+			synchronized (st) {
+				// one more row to check if there is next page
+				setArchiveParameters(st, room.getRoomJID().toString(), query, limit + 1);
+				rs = st.executeQuery();
+
+				if (!query.isLastPage()) {
+					int count = 0;
+					while (rs.next()) {
+						if (count == limit) {
+							return false;
+						}
+						handler.item(ArchiveQuery.createId(rs.getLong("timestamp"), rs.getLong("id")),
+								createArchiveMessage(room, senderJID, addRealJids, rs));
+						++count;
+					}
+					return true;
+				}
+
+				// rows are ordered from the newest
+				final String[] ids = new String[limit];
+				final Packet[] messages = new Packet[limit];
+				int count = 0;
+				boolean complete = true;
+				while (rs.next()) {
+					if (count == limit) {
+						complete = false;
+						break;
+					}
+					ids[count] = ArchiveQuery.createId(rs.getLong("timestamp"), rs.getLong("id"));
+					messages[count] = createArchiveMessage(room, senderJID, addRealJids, rs);
+					++count;
+				}
+				for (int i = count - 1; i >= 0; i--) {
+					handler.item(ids[i], messages[i]);
+				}
+				return complete;
+			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't query archive", e);
+			throw new RuntimeException(e);
+		} finally {
+			dataRepository.release(null, rs);
+		}
+	}
+
+	private Packet createArchiveMessage(Room room, JID senderJID, boolean addRealJids, ResultSet rs) throws SQLException,
+			TigaseStringprepException {
+		return createMessage(room.getRoomJID(), senderJID, rs.getString("sender_nickname"), rs.getString("msg"),
+				rs.getString("body"), rs.getString("sender_jid"), addRealJids, new Date(rs.getLong("timestamp")));
+	}
+
+	/**
+	 * Starts {@linkplain GroupCommitWriter batched writer} if batch size is
+	 * greater than 1. Must be called after insert statement is prepared.
+	 * 
+	 * @param props
+	 */
+	protected void initGroupCommit(Map<String, Object> props) {
+		if (groupCommitWriter != null) {
+			groupCommitWriter.shutdown();
+			groupCommitWriter = null;
+		}
+		final int size = props.containsKey(HISTORY_BATCH_SIZE_KEY) ? (Integer) props.get(HISTORY_BATCH_SIZE_KEY) : 1;
+		if (size > 1) {
+			final long delay = props.containsKey(HISTORY_BATCH_DELAY_KEY) ? ((Number) props.get(HISTORY_BATCH_DELAY_KEY))
+					.longValue() : 20;
+			final int buffer = props.containsKey(HISTORY_BATCH_BUFFER_KEY) ? (Integer) props.get(HISTORY_BATCH_BUFFER_KEY)
+					: 10000;
+			groupCommitWriter = new GroupCommitWriter(dataRepository, ADD_MESSAGE_QUERY_KEY, size, delay, buffer);
+		}
+		if (log.isLoggable(Level.CONFIG)) {
+			log.config("History batch size: " + size);
+		}
+	}
+
+	/**
+	 * Sets file to which {@linkplain GroupCommitWriter batched writer} saves
+	 * rows not written before shutdown. Rows saved by previous instance are
+	 * written again.
+	 * 
+	 * @param spoolFile
+	 */
+	public void setWriterSpoolFile(File spoolFile) {
+		final GroupCommitWriter writer = groupCommitWriter;
+		if (writer != null) {
+			writer.setSpoolFile(spoolFile);
+		}
+	}
+
+	/**
+	 * Creates {@linkplain RecentHistoryCache cache of recent history} if cache
+	 * size is greater than 0.
+	 * 
+	 * @param props
+	 */
+	protected void initHistoryCache(Map<String, Object> props) {
+		final long size = props.containsKey(HISTORY_CACHE_SIZE_KEY) ? ((Number) props.get(HISTORY_CACHE_SIZE_KEY))
+				.longValue() : 0;
+		historyCache = size > 0 ? new RecentHistoryCache(size * 1024 * 1024) : null;
+		if (log.isLoggable(Level.CONFIG)) {
+			log.config("History cache size: " + size + " MB");
+		}
+	}
+
+	/**
+	 * Starts {@linkplain HistoryPurger purger} which deletes history of
+	 * removed rooms and expired messages. Must be called after delete
+	 * statements are prepared. Rooms queued for removal are kept in
+	 * <code>muc_history_purge</code> table, so their history is deleted after
+	 * restart too.
+	 * 
+	 * @param props
+	 */
+	protected void initPurger(Map<String, Object> props) {
+		if (historyPurger != null) {
+			historyPurger.shutdown();
+			historyPurger = null;
+		}
+		purgeChunkSize = props.containsKey(HISTORY_PURGE_CHUNK_KEY) ? (Integer) props.get(HISTORY_PURGE_CHUNK_KEY) : 5000;
+		final long pause = props.containsKey(HISTORY_PURGE_PAUSE_KEY) ? ((Number) props.get(HISTORY_PURGE_PAUSE_KEY))
+				.longValue() : 100;
+		final long retention = props.containsKey(HISTORY_RETENTION_KEY) ? ((Number) props.get(HISTORY_RETENTION_KEY))
+				.longValue() * 24 * 60 * 60 * 1000 : 0;
+		try {
+			this.dataRepository.checkTable("muc_history_purge", CREATE_PURGE_TABLE_VAL);
+			this.dataRepository.initPreparedStatement(PURGE_ADD_QUERY_KEY, PURGE_ADD_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(PURGE_CLEAR_QUERY_KEY, PURGE_CLEAR_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(PURGE_REMOVE_QUERY_KEY, PURGE_REMOVE_QUERY_VAL);
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Can't initialize muc_history_purge table, history of removed rooms will not be"
+					+ " deleted after restart", e);
+		}
+		historyPurger = new HistoryPurger(new HistoryPurger.Target() {
+
+			@Override
+			public int deleteExpired(long before, int limit) throws SQLException {
+				return AbstractJDBCHistoryProvider.this.deleteExpired(before, limit);
+			}
+
+			@Override
+			public int deleteRoom(String roomJID, long before, int limit) throws SQLException {
+				final int deleted = deleteRoomMessages(roomJID, before, limit);
+				final RecentHistoryCache cache = historyCache;
+				if (deleted < limit && cache != null) {
+					// history might be loaded again before it was deleted
+					cache.remove(BareJID.bareJIDInstanceNS(roomJID));
+				}
+				return deleted;
+			}
+
+			@Override
+			public void flush() {
+				final GroupCommitWriter writer = groupCommitWriter;
+				if (writer != null) {
+					writer.flush(10000);
+				}
+			}
+
+			@Override
+			public Map<String, Long> loadRemovals() throws SQLException {
+				return AbstractJDBCHistoryProvider.this.loadRemovals();
+			}
+
+			@Override
+			public void saveRemoval(String roomJID, long before) throws SQLException {
+				AbstractJDBCHistoryProvider.this.saveRemoval(roomJID, before);
+			}
+
+			@Override
+			public void clearRemoval(String roomJID, long before) throws SQLException {
+				AbstractJDBCHistoryProvider.this.clearRemoval(roomJID, before);
+			}
+		}, purgeChunkSize, pause, retention);
+		if (log.isLoggable(Level.CONFIG)) {
+			log.config("History purge chunk: " + purgeChunkSize + ", pause: " + pause + " ms, retention: " + retention
+					+ " ms");
+		}
+	}
+
+	/**
+	 * Reads format in which new messages are stored. Messages in both formats
+	 * are always readable.
+	 * 
+	 * @param props
+	 */
+	protected void initRecordFormat(Map<String, Object> props) {
+		compactFormat = props.containsKey(HISTORY_COMPACT_FORMAT_KEY) ? (Boolean) props.get(HISTORY_COMPACT_FORMAT_KEY)
+				: false;
+		if (log.isLoggable(Level.CONFIG)) {
+			log.config("History compact format: " + compactFormat);
+		}
+	}
+
 	@Override
 	public final boolean isPersistent() {
 		return true;
@@ -200,23 +725,422 @@ public abstract class AbstractJDBCHistoryProvider extends AbstractHistoryProvide
 		}
 	}
 
-	@Override
-	public void removeHistory(Room room) {
-		PreparedStatement st = null;
+	/**
+	 * @return <code>true</code> if <code>muc_history</code> table has
+	 *         <code>id</code> column required by archive queries.
+	 */
+	public boolean isArchiveSupported() {
+		return schemaVersion >= ID_SCHEMA_VERSION;
+	}
+
+	/**
+	 * @return schema upgrades of database, see
+	 *         {@linkplain #upgradeSchema(String[][], boolean)}.
+	 */
+	protected abstract String[][] getSchemaUpgrades();
+
+	/**
+	 * Applies all schema upgrades, including {@linkplain #OFFLINE_UPGRADE
+	 * offline} ones. Should be called while MUC component isn't running.
+	 * 
+	 * @return schema version.
+	 * @throws SQLException
+	 */
+	public int upgradeSchemaOffline() throws SQLException {
+		return upgradeSchema(getSchemaUpgrades(), true);
+	}
+
+	/**
+	 * Brings <code>muc_history</code> table to the newest version of schema.
+	 * Version is kept in <code>muc_history_schema</code> table.
+	 * 
+	 * @param upgrades
+	 *            DDL statements; statements with index <code>n</code> upgrade
+	 *            schema from version <code>n</code> to <code>n + 1</code>.
+	 * @param offline
+	 *            if <code>false</code>, upgrades marked as
+	 *            {@linkplain #OFFLINE_UPGRADE offline} are applied only to
+	 *            small table; upgrading stops at the first skipped one.
+	 *            Upgrades marked as {@linkplain #BACKGROUND_UPGRADE background}
+	 *            of large table are continued by background thread.
+	 * @return schema version.
+	 * @throws SQLException
+	 */
+	protected int upgradeSchema(String[][] upgrades, boolean offline) throws SQLException {
+		this.dataRepository.checkTable("muc_history_schema", CREATE_SCHEMA_TABLE_VAL);
+
+		Statement st = this.dataRepository.createStatement(null);
+		ResultSet rs = null;
 		try {
-			st = this.dataRepository.getPreparedStatement(null, DELETE_MESSAGES_QUERY_KEY);
+			int version = 0;
+			rs = st.executeQuery("select version from muc_history_schema");
+			if (rs.next()) {
+				version = rs.getInt(1);
+			} else {
+				st.executeUpdate("insert into muc_history_schema (version) values (0)");
+			}
+			rs.close();
+			rs = null;
+			schemaVersion = version;
 
-			synchronized (st) {
-				st.setString(1, room.getRoomJID().toString());
+			for (int v = version; v < upgrades.length; v++) {
+				final String mode = upgrades[v][0];
+				if (!offline && (OFFLINE_UPGRADE.equals(mode) || BACKGROUND_UPGRADE.equals(mode)) && !isSmallTable(st)) {
+					if (BACKGROUND_UPGRADE.equals(mode)) {
+						startBackgroundUpgrade(upgrades);
+					} else {
+						warnOfflineUpgrade(v);
+					}
+					break;
+				}
+				if (!applyUpgrade(st, upgrades, v)) {
+					break;
+				}
+			}
+			return schemaVersion;
+		} finally {
+			dataRepository.release(st, rs);
+		}
+	}
 
-				st.executeUpdate();
+	/**
+	 * Executes statements of single schema upgrade. While statement is
+	 * running, its progress is logged every
+	 * {@linkplain #UPGRADE_PROGRESS_INTERVAL}.
+	 * 
+	 * @return <code>false</code> if upgrade failed.
+	 */
+	private boolean applyUpgrade(Statement st, String[][] upgrades, final int v) throws SQLException {
+		final Timer progress = new Timer("muc-history-schema-upgrade-progress", true);
+		try {
+			for (final String sql : upgrades[v]) {
+				if (OFFLINE_UPGRADE.equals(sql) || BACKGROUND_UPGRADE.equals(sql))
+					continue;
+				if (log.isLoggable(Level.INFO))
+					log.info("Upgrading muc_history schema to version " + (v + 1) + ": " + sql);
+				final long start = System.currentTimeMillis();
+				final TimerTask task = new TimerTask() {
+
+					@Override
+					public void run() {
+						log.info("Upgrading muc_history schema to version " + (v + 1) + ", running for "
+								+ ((System.currentTimeMillis() - start) / 1000) + "s: " + sql);
+					}
+				};
+				progress.schedule(task, UPGRADE_PROGRESS_INTERVAL, UPGRADE_PROGRESS_INTERVAL);
+				try {
+					st.execute(sql);
+				} finally {
+					task.cancel();
+				}
+				if (log.isLoggable(Level.INFO))
+					log.info("Statement finished in " + ((System.currentTimeMillis() - start) / 1000) + "s");
 			}
 		} catch (SQLException e) {
+			// i.e. other cluster node is upgrading schema at the same time
 			if (log.isLoggable(Level.WARNING))
-				log.log(Level.WARNING, "Can't delete MUC messages from database", e);
-			throw new RuntimeException(e);
+				log.log(Level.WARNING, "Can't upgrade muc_history schema to version " + (v + 1), e);
+			return false;
 		} finally {
-			dataRepository.release(null, null);
+			progress.cancel();
+		}
+		st.executeUpdate("update muc_history_schema set version=" + (v + 1) + " where version=" + v);
+		schemaVersion = v + 1;
+		return true;
+	}
+
+	/**
+	 * Continues schema upgrade in background thread, so startup isn't stalled
+	 * by long index builds. Thread uses own connection, because statements of
+	 * shared connection would wait for upgrade. Upgrading stops at the first
+	 * {@linkplain #OFFLINE_UPGRADE offline} upgrade.
+	 */
+	private void startBackgroundUpgrade(final String[][] upgrades) {
+		if (log.isLoggable(Level.INFO))
+			log.info("muc_history table is large, schema upgrade to version " + (schemaVersion + 1)
+					+ " continues in background");
+		Thread worker = new Thread("muc-history-schema-upgrade") {
+
+			@Override
+			public void run() {
+				Connection conn = null;
+				try {
+					conn = DriverManager.getConnection(resourceUri);
+					Statement st = conn.createStatement();
+					for (int v = schemaVersion; v < upgrades.length; v++) {
+						if (OFFLINE_UPGRADE.equals(upgrades[v][0])) {
+							warnOfflineUpgrade(v);
+							break;
+						}
+						if (!applyUpgrade(st, upgrades, v)) {
+							break;
+						}
+					}
+				} catch (SQLException e) {
+					log.log(Level.WARNING, "Can't upgrade muc_history schema in background", e);
+				} finally {
+					if (conn != null) {
+						try {
+							conn.close();
+						} catch (SQLException e) {
+						}
+					}
+				}
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private void warnOfflineUpgrade(int v) {
+		if (log.isLoggable(Level.WARNING))
+			log.warning("muc_history schema upgrade to version " + (v + 1)
+					+ " blocks writes to large table and has to be applied offline: java "
+					+ HistorySchemaUpgrade.class.getName() + " <history-db-uri>."
+					+ (v < ID_SCHEMA_VERSION ? " Archive queries are disabled." : ""));
+	}
+
+	private boolean isSmallTable(Statement st) throws SQLException {
+		ResultSet rs = null;
+		int maxRows = st.getMaxRows();
+		try {
+			st.setMaxRows(OFFLINE_UPGRADE_MAX_ROWS + 1);
+			rs = st.executeQuery("select 1 from muc_history");
+			int count = 0;
+			while (rs.next()) {
+				if (++count > OFFLINE_UPGRADE_MAX_ROWS)
+					return false;
+			}
+			return true;
+		} finally {
+			if (rs != null)
+				rs.close();
+			st.setMaxRows(maxRows);
+		}
+	}
+
+	/**
+	 * Checks if history queries use {@linkplain #HISTORY_INDEX_NAME index}.
+	 * Problems are only logged.
+	 * 
+	 * @param explainPrefix
+	 *            prefix turning query into query plan request (i.e.
+	 *            <code>explain </code>) or <code>null</code> if database
+	 *            doesn't support it. In such case only existence of index is
+	 *            checked.
+	 * @param maxStanzasQuery
+	 * @param sinceQuery
+	 */
+	protected void verifyQueryPlans(String explainPrefix, String maxStanzasQuery, String sinceQuery) {
+		if (explainPrefix == null) {
+			verifyIndex();
+		} else {
+			verifyQueryPlan(GET_MESSAGES_MAXSTANZAS_QUERY_KEY, explainPrefix + maxStanzasQuery, false);
+			verifyQueryPlan(GET_MESSAGES_SINCE_QUERY_KEY, explainPrefix + sinceQuery, true);
+		}
+	}
+
+	private void verifyIndex() {
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			st = this.dataRepository.createStatement(null);
+			DatabaseMetaData meta = st.getConnection().getMetaData();
+			boolean found = false;
+			for (String table : new String[] { "muc_history", "MUC_HISTORY" }) {
+				rs = meta.getIndexInfo(null, null, table, false, true);
+				while (rs.next()) {
+					found |= HISTORY_INDEX_NAME.equalsIgnoreCase(rs.getString("INDEX_NAME"));
+				}
+				rs.close();
+				rs = null;
+			}
+			if (!found) {
+				log.warning("Index " + HISTORY_INDEX_NAME + " doesn't exist, history queries will scan muc_history table");
+			}
+		} catch (SQLException e) {
+			if (log.isLoggable(Level.WARNING))
+				log.log(Level.WARNING, "Can't check indexes of muc_history", e);
+		} finally {
+			dataRepository.release(st, rs);
+		}
+	}
+
+	private void verifyQueryPlan(String queryKey, String query, boolean since) {
+		final String key = "EXPLAIN_" + queryKey;
+		ResultSet rs = null;
+		try {
+			this.dataRepository.initPreparedStatement(key, query);
+			PreparedStatement st = this.dataRepository.getPreparedStatement(null, key);
+			StringBuilder plan = new StringBuilder();
+			synchronized (st) {
+				if (since) {
+					setSinceParameters(st, "", 0, 1);
+				} else {
+					setMaxStanzasParameters(st, "", 1);
+				}
+				rs = st.executeQuery();
+				final int columns = rs.getMetaData().getColumnCount();
+				while (rs.next()) {
+					for (int i = 1; i <= columns; i++) {
+						plan.append(rs.getString(i)).append(' ');
+					}
+					plan.append('\n');
+				}
+			}
+			if (plan.toString().toLowerCase().contains(HISTORY_INDEX_NAME)) {
+				if (log.isLoggable(Level.CONFIG))
+					log.config("Query " + queryKey + " uses index " + HISTORY_INDEX_NAME);
+			} else {
+				log.warning("Query " + queryKey + " doesn't use index " + HISTORY_INDEX_NAME
+						+ " (it is expected only for small table), plan:\n" + plan);
+			}
+		} catch (SQLException e) {
+			if (log.isLoggable(Level.WARNING))
+				log.log(Level.WARNING, "Can't check query plan of " + queryKey, e);
+		} finally {
+			dataRepository.release(null, rs);
+		}
+	}
+
+	/**
+	 * Sets parameters of {@linkplain #GET_ARCHIVE_QUERY_KEY} and
+	 * {@linkplain #GET_ARCHIVE_LAST_QUERY_KEY} statements.
+	 * 
+	 * @param st
+	 * @param roomJID
+	 * @param query
+	 * @param limit
+	 *            maximum number of returned messages.
+	 * @throws SQLException
+	 */
+	protected void setArchiveParameters(PreparedStatement st, String roomJID, ArchiveQuery query, int limit)
+			throws SQLException {
+		st.setString(1, roomJID);
+		st.setLong(2, query.getLowTimestamp());
+		st.setLong(3, query.getHighTimestamp());
+		st.setLong(4, query.getLowTimestamp());
+		st.setLong(5, query.getLowId());
+		st.setLong(6, query.getHighTimestamp());
+		st.setLong(7, query.getHighId());
+		st.setInt(8, limit);
+	}
+
+	/**
+	 * Sets parameters of {@linkplain #DELETE_MESSAGES_QUERY_KEY} statement.
+	 * 
+	 * @param st
+	 * @param roomJID
+	 * @param before
+	 *            time of the newest deleted row.
+	 * @param limit
+	 *            maximum number of deleted rows.
+	 * @throws SQLException
+	 */
+	protected void setDeleteMessagesParameters(PreparedStatement st, String roomJID, long before, int limit)
+			throws SQLException {
+		st.setString(1, roomJID);
+		st.setLong(2, before);
+		st.setInt(3, limit);
+	}
+
+	/**
+	 * Sets parameters of {@linkplain #DELETE_EXPIRED_QUERY_KEY} statement.
+	 * 
+	 * @param st
+	 * @param before
+	 *            rows older than this time are deleted.
+	 * @param limit
+	 *            maximum number of deleted rows.
+	 * @throws SQLException
+	 */
+	protected void setExpiredParameters(PreparedStatement st, long before, int limit) throws SQLException {
+		st.setLong(1, before);
+		st.setInt(2, limit);
+	}
+
+	/**
+	 * Sets parameters of {@linkplain #GET_MESSAGES_MAXSTANZAS_QUERY_KEY}
+	 * statement.
+	 * 
+	 * @param st
+	 * @param roomJID
+	 * @param limit
+	 *            maximum number of returned messages.
+	 * @throws SQLException
+	 */
+	protected void setMaxStanzasParameters(PreparedStatement st, String roomJID, int limit) throws SQLException {
+		st.setString(1, roomJID);
+		st.setInt(2, limit);
+	}
+
+	/**
+	 * Sets parameters of {@linkplain #GET_MESSAGES_SINCE_QUERY_KEY} statement.
+	 * 
+	 * @param st
+	 * @param roomJID
+	 * @param since
+	 *            timestamp of the oldest returned message.
+	 * @param limit
+	 *            maximum number of returned messages.
+	 * @throws SQLException
+	 */
+	protected void setSinceParameters(PreparedStatement st, String roomJID, long since, int limit) throws SQLException {
+		st.setString(1, roomJID);
+		st.setLong(2, since);
+		st.setInt(3, limit);
+	}
+
+	@Override
+	public void removeHistory(Room room) {
+		final String roomJID = room.getRoomJID().toString();
+		final long now = System.currentTimeMillis();
+		if (historyCache != null) {
+			historyCache.remove(room.getRoomJID());
+		}
+
+		synchronized (this) {
+			if (historyPurger == null) {
+				// buffered messages are deleted by purger after they are
+				// written, not waited for here
+				initPurger(Collections.<String, Object> emptyMap());
+			}
+		}
+		historyPurger.removeRoom(roomJID, now);
+	}
+
+	private void writeCachedHistory(Room room, JID senderJID, Integer maxstanzas, Integer seconds, Date since,
+			List<RecentHistoryCache.Item> items, PacketWriter writer) {
+		int from = 0;
+		if (since != null || seconds != null) {
+			final long t = since != null ? since.getTime() : new Date().getTime() - seconds * 1000;
+			while (from < items.size() && items.get(from).timestamp < t) {
+				++from;
+			}
+		} else if (maxstanzas != null) {
+			from = Math.max(0, items.size() - maxstanzas);
+		}
+
+		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID());
+		boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous
+				|| room.getConfig().getRoomAnonymity() == Anonymity.semianonymous
+				&& (recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+
+		try {
+			for (int i = from; i < items.size(); i++) {
+				RecentHistoryCache.Item item = items.get(i);
+				ParsedHistoryMessage parsed = item.parsed;
+				if (parsed == null) {
+					parsed = parseMessage(room.getRoomJID(), item.senderNickname, item.msg, item.body, item.senderJid,
+							new Date(item.timestamp));
+					item.parsed = parsed;
+				}
+				writer.write(parsed.createPacket(senderJID, addRealJids));
+			}
+		} catch (TigaseStringprepException e) {
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't get history", e);
+			throw new RuntimeException(e);
 		}
 	}
 
@@ -0,0 +1,175 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.util.Date;
+
+import tigase.server.Packet;
+
+/**
+ * Query of room message archive (XEP-0313) with paging (XEP-0059).
+ * 
+ * Archived messages are ordered by key <code>(timestamp, id)</code>. Query
+ * selects messages with key between {@linkplain #getLowTimestamp() lower}
+ * and {@linkplain #getHighTimestamp() upper} bound (both exclusive), which
+ * are computed from time range and paging cursors. If <code>before</code>
+ * cursor is set, the newest matching messages are selected (page before
+ * cursor), otherwise the oldest ones.
+ * 
+ * Identifiers of messages have form <code>timestamp-id</code>.
+ */
+public class ArchiveQuery {
+
+	/**
+	 * Receives messages selected by query.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called for each selected message, from the oldest.
+		 * 
+		 * @param id
+		 *            identifier of message in archive.
+		 * @param message
+		 *            message with <code>delay</code> element.
+		 */
+		void item(String id, Packet message);
+
+	}
+
+	/**
+	 * Creates identifier of archived message.
+	 * 
+	 * @param timestamp
+	 * @param id
+	 *            unique (in room) number of message.
+	 * @return identifier.
+	 */
+	public static String createId(long timestamp, long id) {
+		return timestamp + "-" + id;
+	}
+
+	private static long[] parseId(String id) {
+		final int i = id.indexOf('-', 1);
+		if (i < 0) {
+			throw new IllegalArgumentException("Invalid archive id: " + id);
+		}
+		return new long[] { Long.parseLong(id.substring(0, i)), Long.parseLong(id.substring(i + 1)) };
+	}
+
+	private long highId = Long.MAX_VALUE;
+
+	private long highTimestamp = Long.MAX_VALUE;
+
+	private final boolean lastPage;
+
+	private final int limit;
+
+	private long lowId = Long.MIN_VALUE;
+
+	private long lowTimestamp = Long.MIN_VALUE;
+
+	/**
+	 * @param start
+	 *            the oldest time of message or <code>null</code>.
+	 * @param end
+	 *            the newest time of message or <code>null</code>.
+	 * @param after
+	 *            id of message after which page starts or <code>null</code>.
+	 * @param before
+	 *            id of message before which page ends, empty string to get
+	 *            the last page or <code>null</code>.
+	 * @param limit
+	 *            maximum number of messages in page.
+	 * @throws IllegalArgumentException
+	 *             if cursor is not valid archive id.
+	 */
+	public ArchiveQuery(Date start, Date end, String after, String before, int limit) {
+		this.limit = limit;
+		this.lastPage = before != null;
+		if (start != null) {
+			lower(start.getTime(), Long.MIN_VALUE);
+		}
+		if (after != null) {
+			long[] k = parseId(after);
+			lower(k[0], k[1]);
+		}
+		if (end != null) {
+			upper(end.getTime(), Long.MAX_VALUE);
+		}
+		if (before != null && before.length() > 0) {
+			long[] k = parseId(before);
+			upper(k[0], k[1]);
+		}
+	}
+
+	/**
+	 * @return checks if key is between bounds.
+	 */
+	public boolean matches(long timestamp, long id) {
+		return (timestamp > lowTimestamp || timestamp == lowTimestamp && id > lowId)
+				&& (timestamp < highTimestamp || timestamp == highTimestamp && id < highId);
+	}
+
+	public long getHighId() {
+		return highId;
+	}
+
+	public long getHighTimestamp() {
+		return highTimestamp;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public long getLowId() {
+		return lowId;
+	}
+
+	public long getLowTimestamp() {
+		return lowTimestamp;
+	}
+
+	/**
+	 * @return <code>true</code> if the newest matching messages should be
+	 *         selected.
+	 */
+	public boolean isLastPage() {
+		return lastPage;
+	}
+
+	private void lower(long timestamp, long id) {
+		if (timestamp > lowTimestamp || timestamp == lowTimestamp && id > lowId) {
+			lowTimestamp = timestamp;
+			lowId = id;
+		}
+	}
+
+	private void upper(long timestamp, long id) {
+		if (timestamp < highTimestamp || timestamp == highTimestamp && id < highId) {
+			highTimestamp = timestamp;
+			highId = id;
+		}
+	}
+
+}
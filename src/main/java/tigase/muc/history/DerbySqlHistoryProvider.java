@@ -22,22 +22,15 @@
 package tigase.muc.history;
 
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
 import java.util.logging.Level;
 
-import tigase.component.PacketWriter;
 import tigase.db.DataRepository;
 import tigase.db.Repository;
-import tigase.muc.Affiliation;
 import tigase.muc.Room;
-import tigase.muc.RoomConfig.Anonymity;
-import tigase.server.Packet;
-import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.JID;
 
@@ -54,11 +47,43 @@ public class DerbySqlHistoryProvider extends AbstractJDBCHistoryProvider {
 			+ "event_type int, \n" + "timestamp bigint,\n" + "sender_jid varchar(2049),\n" + "sender_nickname char(128),\n"
 			+ "body varchar(4096),\n " + "public_event BOOLEAN,\n " + "msg varchar(32672) " + ")";
 
-	public static final String DELETE_MESSAGES_QUERY_VAL = "delete from muc_history where room_name=?";
+	/**
+	 * Schema upgrades, see {@linkplain #upgradeSchema(String[][], boolean)}.
+	 */
+	private static final String[][] SCHEMA_UPGRADES = {
+			// index build blocks writes
+			{ OFFLINE_UPGRADE, "create index " + HISTORY_INDEX_NAME + " on muc_history (room_name, timestamp)" },
+			{ OFFLINE_UPGRADE, "create index " + HISTORY_TS_INDEX_NAME + " on muc_history (timestamp)" },
+			// identity column can't be added to existing table
+			{
+					OFFLINE_UPGRADE,
+					"create table muc_history_v2 (id bigint generated always as identity, room_name char(128) NOT NULL, "
+							+ "event_type int, timestamp bigint, sender_jid varchar(2049), sender_nickname char(128), "
+							+ "body varchar(4096), public_event BOOLEAN, msg varchar(32672))",
+					"insert into muc_history_v2 (room_name, event_type, timestamp, sender_jid, sender_nickname, body, public_event, msg) "
+							+ "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, public_event, msg "
+							+ "from muc_history order by timestamp", "drop table muc_history",
+					"rename table muc_history_v2 to muc_history",
+					"create index " + HISTORY_INDEX_NAME + " on muc_history (room_name, timestamp)",
+					"create index " + HISTORY_TS_INDEX_NAME + " on muc_history (timestamp)" } };
+
+	public static final String DELETE_EXPIRED_QUERY_VAL = "delete from muc_history where id in (select id from muc_history where timestamp < ? fetch first ? rows only)";
+
+	public static final String DELETE_MESSAGES_QUERY_VAL = "delete from muc_history where id in (select id from muc_history where room_name=? and (timestamp is null or timestamp <= ?) fetch first ? rows only)";
+
+	// Derby can't limit delete without id column, so rows are deleted at once
+	// until HistorySchemaUpgrade is run
+	private static final String DELETE_EXPIRED_ALL_QUERY_VAL = "delete from muc_history where timestamp < ?";
+
+	private static final String DELETE_MESSAGES_ALL_QUERY_VAL = "delete from muc_history where room_name=? and (timestamp is null or timestamp <= ?)";
+
+	public static final String GET_ARCHIVE_LAST_QUERY_VAL = "select id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp desc, id desc fetch first ? rows only";
 
-	public static final String GET_MESSAGES_MAXSTANZAS_QUERY_VAL = "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? order by timestamp desc";
+	public static final String GET_ARCHIVE_QUERY_VAL = "select id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp, id fetch first ? rows only";
 
-	public static final String GET_MESSAGES_SINCE_QUERY_VAL = "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? order by timestamp desc";
+	public static final String GET_MESSAGES_MAXSTANZAS_QUERY_VAL = "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, msg from (select * from muc_history where room_name=? order by timestamp desc fetch first ? rows only) AS t order by t.timestamp";
+
+	public static final String GET_MESSAGES_SINCE_QUERY_VAL = "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, msg from (select * from muc_history where room_name=? and timestamp >= ? order by timestamp desc fetch first ? rows only) AS t order by t.timestamp";
 
 	/**
 	 * @param dataRepository
@@ -87,59 +112,6 @@ public class DerbySqlHistoryProvider extends AbstractJDBCHistoryProvider {
 
 	}
 
-	/** {@inheritDoc} */
-	@Override
-	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds, Date since,
-			PacketWriter writer) {
-		ResultSet rs = null;
-		final String roomJID = room.getRoomJID().toString();
-		try {
-			Integer maxStanzas = null;
-			if (since != null) {
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(), GET_MESSAGES_SINCE_QUERY_KEY);
-				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setLong(2, since.getTime());
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
-				}
-			} else if (maxstanzas != null) {
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
-						GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
-				synchronized (st) {
-					st.setString(1, roomJID);
-					maxStanzas = maxstanzas;
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
-				}
-			} else if (seconds != null) {
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(), GET_MESSAGES_SINCE_QUERY_KEY);
-				synchronized (st) {
-					st.setString(1, roomJID);
-					st.setLong(2, new Date().getTime() - seconds * 1000);
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
-				}
-			} else {
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
-						GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
-				synchronized (st) {
-					st.setString(1, roomJID);
-					maxStanzas = 20;
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, maxStanzas, rs);
-				}
-			}
-
-		} catch (Exception e) {
-			if (log.isLoggable(Level.SEVERE))
-				log.log(Level.SEVERE, "Can't get history", e);
-			throw new RuntimeException(e);
-		} finally {
-			dataRepository.release(null, rs);
-		}
-	}
-
 	/** {@inheritDoc} */
 	@Override
 	public void init(Map<String, Object> props) {
@@ -163,41 +135,57 @@ public class DerbySqlHistoryProvider extends AbstractJDBCHistoryProvider {
 				throw new RuntimeException(e1);
 			}
 		}
+		verifyQueryPlans(null, GET_MESSAGES_MAXSTANZAS_QUERY_VAL, GET_MESSAGES_SINCE_QUERY_VAL);
+		initRecordFormat(props);
+		initGroupCommit(props);
+		initHistoryCache(props);
+		initPurger(props);
 	}
 
 	private void internalInit() throws SQLException {
+		upgradeSchema(SCHEMA_UPGRADES, false);
+
 		this.dataRepository.initPreparedStatement(ADD_MESSAGE_QUERY_KEY, ADD_MESSAGE_QUERY_VAL);
-		this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_QUERY_VAL);
+		if (isArchiveSupported()) {
+			this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(DELETE_EXPIRED_QUERY_KEY, DELETE_EXPIRED_QUERY_VAL);
+		} else {
+			if (log.isLoggable(Level.WARNING))
+				log.warning("muc_history has no id column, history is purged without chunks until HistorySchemaUpgrade is run");
+			this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_ALL_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(DELETE_EXPIRED_QUERY_KEY, DELETE_EXPIRED_ALL_QUERY_VAL);
+		}
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_SINCE_QUERY_KEY, GET_MESSAGES_SINCE_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_MAXSTANZAS_QUERY_KEY, GET_MESSAGES_MAXSTANZAS_QUERY_VAL);
+		if (isArchiveSupported()) {
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_QUERY_KEY, GET_ARCHIVE_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_LAST_QUERY_KEY, GET_ARCHIVE_LAST_QUERY_VAL);
+		}
 	}
 
-	protected void processResultSet(Room room, JID senderJID, PacketWriter writer, Integer maxStanzas, ResultSet rs)
-			throws SQLException, TigaseStringprepException {
-		int i = 0;
-
-		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID());
-		boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous
-				|| room.getConfig().getRoomAnonymity() == Anonymity.semianonymous
-				&& (recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
-
-		ArrayList<Packet> result = new ArrayList<Packet>();
-		for (; rs.next() && (maxStanzas == null || maxStanzas > i); i++) {
-			String msgSenderNickname = rs.getString("sender_nickname");
-			Date msgTimestamp = new Date(rs.getLong("timestamp"));
-			String msgSenderJid = rs.getString("sender_jid");
-			String body = rs.getString("body");
-			String msg = rs.getString("msg");
-
-			Packet m = createMessage(room.getRoomJID(), senderJID, msgSenderNickname, msg, body, msgSenderJid, addRealJids,
-					msgTimestamp);
-			result.add(0, m);
+	@Override
+	protected void setDeleteMessagesParameters(PreparedStatement st, String roomJID, long before, int limit)
+			throws SQLException {
+		if (isArchiveSupported()) {
+			super.setDeleteMessagesParameters(st, roomJID, before, limit);
+		} else {
+			st.setString(1, roomJID);
+			st.setLong(2, before);
 		}
+	}
 
-		for (Packet element : result) {
-			writer.write(element);
+	@Override
+	protected void setExpiredParameters(PreparedStatement st, long before, int limit) throws SQLException {
+		if (isArchiveSupported()) {
+			super.setExpiredParameters(st, before, limit);
+		} else {
+			st.setLong(1, before);
 		}
+	}
 
+	@Override
+	protected String[][] getSchemaUpgrades() {
+		return SCHEMA_UPGRADES;
 	}
 
 }
@@ -0,0 +1,995 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import tigase.component.PacketWriter;
+import tigase.db.DBInitException;
+import tigase.db.Repository;
+import tigase.muc.Room;
+import tigase.muc.StatisticsProvider;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * History provider storing messages in local files, for deployments without
+ * database.
+ * 
+ * Each room has own directory with append-only segment files. Records are
+ * appended to the last segment of room until it reaches segment size, then
+ * segment is sealed and new one is started. Sealed segments are memory mapped
+ * (read only) when they are read for the first time. Record is
+ * <code>[length][timestamp][id][payload][length]</code>, so segment may be
+ * read in both directions. For every segment sparse index of record
+ * timestamps is kept in memory, and used to find position of time by binary
+ * search. Segments older than retention time are removed periodically.
+ * 
+ * URI of repository has form <code>file:/path/to/directory</code>.
+ */
+@Repository.Meta( supportedUris = { "file:.*" } )
+public class FileHistoryProvider extends AbstractHistoryProvider implements StatisticsProvider {
+
+	/**
+	 * Position of record in room log.
+	 */
+	private static final class Position {
+
+		private final int offset;
+
+		private final int segment;
+
+		Position(int segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	private class PurgeWorker extends Thread {
+
+		PurgeWorker() {
+			super("muc-history-file-purge");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (purgeRunning) {
+				try {
+					purgeExpired(System.currentTimeMillis());
+				} catch (Exception e) {
+					errors.incrementAndGet();
+					log.log(Level.WARNING, "Can't purge MUC history files", e);
+				}
+				try {
+					Thread.sleep(PURGE_INTERVAL);
+				} catch (InterruptedException e) {
+					// checking if we are still running
+				}
+			}
+		}
+	}
+
+	/**
+	 * Segments of single room. Access is guarded by its monitor.
+	 */
+	private final class RoomLog {
+
+		/**
+		 * Set when log is removed from open rooms; records must not be
+		 * appended to closed log.
+		 */
+		boolean closed;
+
+		private final File directory;
+
+		/**
+		 * Set when segments are opened. It is done on first use of log, so
+		 * files aren't read under lock of open rooms.
+		 */
+		boolean loaded;
+
+		private long nextId = 1;
+
+		private final List<Segment> segments = new ArrayList<Segment>();
+
+		RoomLog(File directory) {
+			this.directory = directory;
+		}
+
+		void append(long timestamp, byte[] payload) throws IOException {
+			load();
+			final int size = payload.length + RECORD_OVERHEAD;
+			Segment s = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (s == null || (s.end > 0 && s.end + size > segmentSize)) {
+				if (s != null) {
+					s.seal();
+				}
+				if (!directory.exists() && !directory.mkdirs()) {
+					throw new IOException("Can't create directory " + directory);
+				}
+				s = new Segment(new File(directory, String.format("%020d", nextId) + SEGMENT_SUFFIX), false);
+				segments.add(s);
+				segmentsCreated.incrementAndGet();
+				purge(System.currentTimeMillis());
+			}
+			s.append(timestamp, nextId++, payload);
+		}
+
+		void close() {
+			closed = true;
+			for (Segment s : segments) {
+				s.close();
+			}
+		}
+
+		/**
+		 * Opens segments of room, if it wasn't done yet. Only the last segment
+		 * is scanned; bounds of sealed segments are read from their first and
+		 * last record.
+		 */
+		void load() throws IOException {
+			if (loaded) {
+				return;
+			}
+			File[] files = directory.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				final List<File> segmentFiles = new ArrayList<File>();
+				for (File f : files) {
+					if (f.getName().endsWith(SEGMENT_SUFFIX)) {
+						segmentFiles.add(f);
+					}
+				}
+				try {
+					for (int i = 0; i < segmentFiles.size(); i++) {
+						File f = segmentFiles.get(i);
+						Segment s = new Segment(f, i < segmentFiles.size() - 1);
+						segments.add(s);
+						// segment is named by id of its first record
+						String name = f.getName();
+						nextId = Math.max(nextId, Long.parseLong(name.substring(0,
+								name.length() - SEGMENT_SUFFIX.length())));
+						if (s.end > 0) {
+							nextId = Math.max(nextId, s.lastId + 1);
+						}
+					}
+				} catch (IOException e) {
+					for (Segment s : segments) {
+						s.close();
+					}
+					segments.clear();
+					throw e;
+				}
+			}
+			loaded = true;
+			purge(System.currentTimeMillis());
+		}
+
+		/**
+		 * Returns position of the first record with timestamp not lower than
+		 * given.
+		 */
+		Position seek(long timestamp) throws IOException {
+			int si = 0;
+			// the last segment starting before timestamp
+			int lo = 0;
+			int hi = segments.size() - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				Segment s = segments.get(mid);
+				if (s.end > 0 && s.firstTimestamp < timestamp) {
+					si = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			for (; si < segments.size(); si++) {
+				Segment s = segments.get(si);
+				int offset = s.seek(timestamp);
+				if (offset < s.end) {
+					return new Position(si, offset);
+				}
+			}
+			return end();
+		}
+
+		Position end() {
+			return segments.isEmpty() ? new Position(0, 0) : new Position(segments.size() - 1,
+					segments.get(segments.size() - 1).end);
+		}
+
+		/**
+		 * @return position of previous record or <code>null</code>.
+		 */
+		Position previous(Position p) throws IOException {
+			int si = p.segment;
+			int offset = p.offset;
+			while (offset == 0) {
+				if (--si < 0) {
+					return null;
+				}
+				offset = segments.get(si).end;
+			}
+			return new Position(si, offset - segments.get(si).getInt(offset - 4) - RECORD_OVERHEAD);
+		}
+
+		/**
+		 * @return position of next record or <code>null</code>.
+		 */
+		Position next(Position p) throws IOException {
+			Segment s = segments.get(p.segment);
+			int offset = p.offset + s.getInt(p.offset) + RECORD_OVERHEAD;
+			int si = p.segment;
+			while (offset >= segments.get(si).end) {
+				if (++si >= segments.size()) {
+					return null;
+				}
+				offset = 0;
+			}
+			return new Position(si, offset);
+		}
+
+		/**
+		 * @return <code>true</code> if position points to record.
+		 */
+		boolean valid(Position p) {
+			return p != null && p.segment < segments.size() && p.offset < segments.get(p.segment).end;
+		}
+
+		/**
+		 * Removes segments with all records older than retention time, except
+		 * the last one.
+		 */
+		void purge(long now) {
+			if (retentionTime <= 0) {
+				return;
+			}
+			Iterator<Segment> it = segments.iterator();
+			while (it.hasNext() && segments.size() > 1) {
+				Segment s = it.next();
+				if (s.end > 0 && s.lastTimestamp >= now - retentionTime) {
+					break;
+				}
+				it.remove();
+				s.close();
+				if (!s.file.delete()) {
+					log.warning("Can't delete history segment " + s.file);
+				}
+				segmentsRemoved.incrementAndGet();
+			}
+		}
+
+		HistoryRecord read(Position p) throws IOException {
+			return segments.get(p.segment).read(p.offset);
+		}
+
+		long timestamp(Position p) throws IOException {
+			return segments.get(p.segment).getLong(p.offset + 4);
+		}
+	}
+
+	/**
+	 * Segment file. Records are written to the last segment of room by file
+	 * channel. Sealed segments don't change, so they are memory mapped (read
+	 * only) when they are read for the first time, and their index is built
+	 * then too.
+	 */
+	private static final class Segment {
+
+		private FileChannel channel;
+
+		/**
+		 * Offset after the last record.
+		 */
+		int end;
+
+		final File file;
+
+		long firstTimestamp;
+
+		/**
+		 * Set when index of records is built.
+		 */
+		private boolean indexed;
+
+		int[] indexOffsets = new int[16];
+
+		int indexSize;
+
+		long[] indexTimestamps = new long[16];
+
+		long lastId;
+
+		long lastTimestamp;
+
+		private MappedByteBuffer mapped;
+
+		int records;
+
+		private boolean sealed;
+
+		Segment(File file, boolean sealed) throws IOException {
+			this.file = file;
+			if (!sealed || !readBounds()) {
+				// segment written by older version was preallocated, so it
+				// is scanned to find the end of records as the last one
+				recover();
+			}
+			this.sealed = sealed;
+			if (sealed) {
+				close();
+			}
+		}
+
+		private void added(int offset, long timestamp, long id, int length) {
+			if (records % INDEX_INTERVAL == 0) {
+				if (indexSize == indexOffsets.length) {
+					indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+					indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+				}
+				indexOffsets[indexSize] = offset;
+				indexTimestamps[indexSize] = timestamp;
+				++indexSize;
+			}
+			if (records == 0) {
+				firstTimestamp = timestamp;
+			}
+			++records;
+			lastId = id;
+			lastTimestamp = timestamp;
+			end = offset + length + RECORD_OVERHEAD;
+		}
+
+		void append(long timestamp, long id, byte[] payload) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(payload.length + RECORD_OVERHEAD);
+			b.putInt(payload.length).putLong(timestamp).putLong(id).put(payload).putInt(payload.length);
+			b.flip();
+			final int offset = end;
+			long position = offset;
+			while (b.hasRemaining()) {
+				position += channel().write(b, position);
+			}
+			// partially written record is overwritten by next one, or
+			// truncated by recovery
+			added(offset, timestamp, id, payload.length);
+		}
+
+		/**
+		 * @return <code>length</code> bytes starting at <code>offset</code>.
+		 */
+		private ByteBuffer bytes(int offset, int length) throws IOException {
+			if (sealed) {
+				ByteBuffer b = map().duplicate();
+				b.position(offset);
+				b.limit(offset + length);
+				return b.slice();
+			}
+			ByteBuffer b = ByteBuffer.allocate(length);
+			while (b.hasRemaining()) {
+				if (channel().read(b, offset + b.position()) < 0) {
+					throw new EOFException("Unexpected end of history segment " + file);
+				}
+			}
+			b.flip();
+			return b;
+		}
+
+		private FileChannel channel() throws IOException {
+			if (channel == null) {
+				channel = new RandomAccessFile(file, "rw").getChannel();
+			}
+			return channel;
+		}
+
+		void close() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// nothing to do, written data is in page cache already
+				}
+				channel = null;
+			}
+			// mapping is released when buffer is collected
+			mapped = null;
+		}
+
+		int getInt(int offset) throws IOException {
+			return bytes(offset, 4).getInt();
+		}
+
+		long getLong(int offset) throws IOException {
+			return bytes(offset, 8).getLong();
+		}
+
+		/**
+		 * Builds index of sealed segment.
+		 */
+		private void index() throws IOException {
+			if (indexed) {
+				return;
+			}
+			final int limit = end;
+			records = 0;
+			indexSize = 0;
+			int offset = 0;
+			while (offset < limit) {
+				int length = getInt(offset);
+				if (length <= 0) {
+					throw new IOException("Corrupted history segment " + file + " at " + offset);
+				}
+				added(offset, getLong(offset + 4), getLong(offset + 12), length);
+				offset = end;
+			}
+			end = limit;
+			indexed = true;
+		}
+
+		private MappedByteBuffer map() throws IOException {
+			if (mapped == null) {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, end);
+				} finally {
+					raf.close();
+				}
+			}
+			return mapped;
+		}
+
+		HistoryRecord read(int offset) throws IOException {
+			final int length = getInt(offset);
+			ByteBuffer b = bytes(offset, length + 20);
+			b.position(20);
+			HistoryRecord r = HistoryRecord.decode(b);
+			r.timestamp = b.getLong(4);
+			r.id = b.getLong(12);
+			return r;
+		}
+
+		/**
+		 * Reads bounds of sealed segment from its first and last record.
+		 * 
+		 * @return <code>false</code> if segment has to be scanned.
+		 */
+		private boolean readBounds() throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final long length = raf.length();
+				if (length == 0) {
+					indexed = true;
+					return true;
+				}
+				if (length < RECORD_OVERHEAD || length > Integer.MAX_VALUE) {
+					return false;
+				}
+				raf.seek(length - 4);
+				final int last = raf.readInt();
+				final long start = length - last - RECORD_OVERHEAD;
+				if (last <= 0 || start < 0) {
+					return false;
+				}
+				raf.seek(start);
+				if (raf.readInt() != last) {
+					return false;
+				}
+				lastTimestamp = raf.readLong();
+				lastId = raf.readLong();
+				raf.seek(4);
+				firstTimestamp = raf.readLong();
+				end = (int) length;
+				return true;
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * Finds the end of written records, builds index and truncates
+		 * anything after the last record.
+		 */
+		private void recover() throws IOException {
+			final long length = channel().size();
+			int offset = 0;
+			while (offset + RECORD_OVERHEAD <= length) {
+				int len = getInt(offset);
+				if (len <= 0 || offset + len + RECORD_OVERHEAD > length || getInt(offset + 20 + len) != len) {
+					break;
+				}
+				added(offset, getLong(offset + 4), getLong(offset + 12), len);
+				offset = end;
+			}
+			indexed = true;
+			if (length > end) {
+				channel().truncate(end);
+			}
+		}
+
+		void seal() {
+			sealed = true;
+			close();
+		}
+
+		/**
+		 * @return offset of the first record with timestamp not lower than
+		 *         given, or end of segment.
+		 */
+		int seek(long timestamp) throws IOException {
+			index();
+			// the last indexed record older than timestamp
+			int lo = 0;
+			int hi = indexSize - 1;
+			int from = 0;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (indexTimestamps[mid] < timestamp) {
+					from = indexOffsets[mid];
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			int offset = from;
+			while (offset < end && getLong(offset + 4) < timestamp) {
+				offset += getInt(offset) + RECORD_OVERHEAD;
+			}
+			return offset;
+		}
+	}
+
+	public static final String HISTORY_FILE_RETENTION_KEY = "history-file-retention";
+
+	public static final String HISTORY_FILE_SEGMENT_SIZE_KEY = "history-file-segment-size";
+
+	/**
+	 * Every n-th record of segment is indexed.
+	 */
+	private static final int INDEX_INTERVAL = 32;
+
+	/**
+	 * Maximum number of rooms with open segment files.
+	 */
+	private static final int MAX_OPEN_ROOMS = 1000;
+
+	/**
+	 * Time between removals of expired segments in milliseconds.
+	 */
+	private static final long PURGE_INTERVAL = 60 * 60 * 1000;
+
+	/**
+	 * Size of record header and footer.
+	 */
+	private static final int RECORD_OVERHEAD = 24;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private File directory;
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private volatile boolean purgeRunning;
+
+	private PurgeWorker purgeWorker;
+
+	private final LinkedHashMap<BareJID, RoomLog> rooms = new LinkedHashMap<BareJID, RoomLog>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BareJID, RoomLog> eldest) {
+			if (size() > MAX_OPEN_ROOMS) {
+				// log must be closed before it may be opened again
+				synchronized (eldest.getValue()) {
+					eldest.getValue().close();
+				}
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Time after which segments are removed, in milliseconds.
+	 */
+	private long retentionTime = 0;
+
+	/**
+	 * Size after which segment is sealed.
+	 */
+	private int segmentSize = 4 * 1024 * 1024;
+
+	private final AtomicLong segmentsCreated = new AtomicLong();
+
+	private final AtomicLong segmentsRemoved = new AtomicLong();
+
+	public FileHistoryProvider() {
+	}
+
+	@Override
+	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
+	}
+
+	@Override
+	public void addLeaveEvent(Room room, Date date, JID senderJID, String nickName) {
+	}
+
+	@Override
+	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
+		final byte[] payload = new HistoryRecord(senderNickname, senderJid == null ? null : senderJid.toString(), body,
+				message == null ? null : message.toString()).encode();
+
+		try {
+			while (true) {
+				RoomLog roomLog = getRoomLog(room.getRoomJID(), true);
+				synchronized (roomLog) {
+					if (!roomLog.closed) {
+						roomLog.append(time == null ? System.currentTimeMillis() : time.getTime(), payload);
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			errors.incrementAndGet();
+			log.log(Level.WARNING, "Can't add MUC message to history of room " + room.getRoomJID(), e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void addSubjectChange(Room room, Element message, String subject, JID senderJid, String senderNickname, Date time) {
+	}
+
+	@Override
+	public void destroy() {
+		stopPurgeWorker();
+		synchronized (rooms) {
+			for (RoomLog roomLog : rooms.values()) {
+				synchronized (roomLog) {
+					roomLog.close();
+				}
+			}
+			rooms.clear();
+		}
+	}
+
+	@Override
+	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
+			Date since, PacketWriter writer) {
+		int limit = room.getConfig().getMaxHistory();
+		if (maxstanzas != null) {
+			limit = Math.min(limit, maxstanzas);
+		}
+		Long from = null;
+		if (since != null) {
+			from = since.getTime();
+		} else if (seconds != null) {
+			from = System.currentTimeMillis() - seconds * 1000L;
+		}
+		if (limit <= 0) {
+			return;
+		}
+
+		final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		try {
+			while (true) {
+				RoomLog roomLog = getRoomLog(room.getRoomJID(), false);
+				if (roomLog == null) {
+					return;
+				}
+				synchronized (roomLog) {
+					if (roomLog.closed) {
+						continue;
+					}
+					roomLog.load();
+					// history is bounded by max history, so it is read from
+					// the end
+					Position p = roomLog.previous(roomLog.end());
+					while (p != null && records.size() < limit && (from == null || roomLog.timestamp(p) >= from)) {
+						records.add(roomLog.read(p));
+						p = roomLog.previous(p);
+					}
+					break;
+				}
+			}
+
+			final boolean addRealJids = isAddRealJids(room, senderJID);
+			for (int i = records.size() - 1; i >= 0; i--) {
+				HistoryRecord r = records.get(i);
+				writer.write(createMessage(room.getRoomJID(), senderJID, r.senderNickname, r.msg, r.body, r.senderJid,
+						addRealJids, new Date(r.timestamp)));
+			}
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't get history", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns log of room. Segments are opened by {@linkplain RoomLog#load()}
+	 * under lock of room log, not here.
+	 * 
+	 * @param create
+	 *            if <code>false</code> and room has no history,
+	 *            <code>null</code> is returned.
+	 */
+	private RoomLog getRoomLog(BareJID roomJID, boolean create) throws IOException {
+		RoomLog roomLog;
+		synchronized (rooms) {
+			roomLog = rooms.get(roomJID);
+		}
+		if (roomLog != null) {
+			return roomLog;
+		}
+		final File dir = getRoomDirectory(roomJID);
+		if (!create && !dir.exists()) {
+			return null;
+		}
+		synchronized (rooms) {
+			roomLog = rooms.get(roomJID);
+			if (roomLog == null) {
+				roomLog = new RoomLog(dir);
+				rooms.put(roomJID, roomLog);
+			}
+			return roomLog;
+		}
+	}
+
+	private File getRoomDirectory(BareJID roomJID) throws UnsupportedEncodingException {
+		return new File(directory, URLEncoder.encode(roomJID.toString(), "UTF-8"));
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		synchronized (rooms) {
+			list.add(compName, "History file open rooms", rooms.size(), Level.FINE);
+		}
+		list.add(compName, "History file segments created", segmentsCreated.get(), Level.FINE);
+		list.add(compName, "History file segments removed", segmentsRemoved.get(), Level.FINE);
+		list.add(compName, "History file errors", errors.get(), Level.FINE);
+	}
+
+	@Override
+	public void init(Map<String, Object> props) {
+		if (props.containsKey(HISTORY_FILE_SEGMENT_SIZE_KEY)) {
+			segmentSize = (Integer) props.get(HISTORY_FILE_SEGMENT_SIZE_KEY) * 1024;
+		}
+		if (props.containsKey(HISTORY_FILE_RETENTION_KEY)) {
+			retentionTime = ((Number) props.get(HISTORY_FILE_RETENTION_KEY)).longValue() * 24 * 60 * 60 * 1000;
+		}
+		stopPurgeWorker();
+		if (retentionTime > 0) {
+			purgeRunning = true;
+			purgeWorker = new PurgeWorker();
+			purgeWorker.start();
+		}
+		if (log.isLoggable(Level.CONFIG)) {
+			log.config("History directory: " + directory + ", segment size: " + segmentSize + " bytes, retention: "
+					+ retentionTime + " ms");
+		}
+	}
+
+	@Override
+	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+		directory = new File(resource_uri.substring("file:".length()));
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new DBInitException("Can't create history directory " + directory);
+		}
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return true;
+	}
+
+	/**
+	 * Removes expired segments of all rooms. Segments of open rooms are
+	 * removed by their log; for other rooms time of the last record of
+	 * segment is taken from modification time of its file.
+	 */
+	private void purgeExpired(long now) throws IOException {
+		final List<RoomLog> open;
+		synchronized (rooms) {
+			open = new ArrayList<RoomLog>(rooms.values());
+		}
+		for (RoomLog roomLog : open) {
+			synchronized (roomLog) {
+				if (roomLog.loaded && !roomLog.closed) {
+					roomLog.purge(now);
+				}
+			}
+		}
+
+		File[] dirs = directory.listFiles();
+		if (dirs == null) {
+			return;
+		}
+		for (File dir : dirs) {
+			if (!purgeRunning) {
+				return;
+			}
+			File[] files = dir.listFiles();
+			if (files == null) {
+				continue;
+			}
+			Arrays.sort(files);
+			final List<File> expired = new ArrayList<File>();
+			// the last segment is kept
+			for (int i = 0; i < files.length - 1; i++) {
+				if (files[i].getName().endsWith(SEGMENT_SUFFIX) && files[i].lastModified() < now - retentionTime) {
+					expired.add(files[i]);
+				}
+			}
+			if (expired.isEmpty()) {
+				continue;
+			}
+			final BareJID roomJID = BareJID.bareJIDInstanceNS(URLDecoder.decode(dir.getName(), "UTF-8"));
+			synchronized (rooms) {
+				// containsKey doesn't change order of open rooms
+				if (rooms.containsKey(roomJID)) {
+					continue;
+				}
+				for (File f : expired) {
+					if (f.delete()) {
+						segmentsRemoved.incrementAndGet();
+					} else {
+						log.warning("Can't delete history segment " + f);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean queryArchive(Room room, JID senderJID, ArchiveQuery query, ArchiveQuery.Handler handler) {
+		final int limit = query.getLimit();
+		final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		boolean complete = true;
+		try {
+			while (true) {
+				RoomLog roomLog = getRoomLog(room.getRoomJID(), false);
+				if (roomLog == null) {
+					return true;
+				}
+				synchronized (roomLog) {
+					if (roomLog.closed) {
+						continue;
+					}
+					roomLog.load();
+					if (!query.isLastPage()) {
+						Position p = roomLog.seek(query.getLowTimestamp());
+						for (; roomLog.valid(p); p = roomLog.next(p)) {
+							HistoryRecord r = roomLog.read(p);
+							if (r.timestamp > query.getHighTimestamp()) {
+								break;
+							}
+							if (!query.matches(r.timestamp, r.id)) {
+								continue;
+							}
+							if (records.size() == limit) {
+								complete = false;
+								break;
+							}
+							records.add(r);
+						}
+					} else {
+						Position p = query.getHighTimestamp() == Long.MAX_VALUE ? roomLog.end() : roomLog.seek(query
+								.getHighTimestamp() + 1);
+						for (p = roomLog.previous(p); p != null; p = roomLog.previous(p)) {
+							HistoryRecord r = roomLog.read(p);
+							if (r.timestamp < query.getLowTimestamp()) {
+								break;
+							}
+							if (!query.matches(r.timestamp, r.id)) {
+								continue;
+							}
+							if (records.size() == limit) {
+								complete = false;
+								break;
+							}
+							records.add(0, r);
+						}
+					}
+					break;
+				}
+			}
+
+			final boolean addRealJids = isAddRealJids(room, senderJID);
+			for (HistoryRecord r : records) {
+				handler.item(ArchiveQuery.createId(r.timestamp, r.id), createMessage(room.getRoomJID(), senderJID,
+						r.senderNickname, r.msg, r.body, r.senderJid, addRealJids, new Date(r.timestamp)));
+			}
+			return complete;
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't query archive", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void removeHistory(Room room) {
+		final BareJID roomJID = room.getRoomJID();
+		try {
+			synchronized (rooms) {
+				RoomLog roomLog = rooms.remove(roomJID);
+				if (roomLog != null) {
+					synchronized (roomLog) {
+						roomLog.close();
+					}
+				}
+				File dir = getRoomDirectory(roomJID);
+				File[] files = dir.listFiles();
+				if (files != null) {
+					for (File f : files) {
+						if (!f.delete()) {
+							log.warning("Can't delete history segment " + f);
+						}
+					}
+				}
+				dir.delete();
+			}
+		} catch (IOException e) {
+			errors.incrementAndGet();
+			log.log(Level.WARNING, "Can't remove history of room " + roomJID, e);
+		}
+	}
+
+	private void stopPurgeWorker() {
+		final PurgeWorker worker = purgeWorker;
+		if (worker == null) {
+			return;
+		}
+		purgeRunning = false;
+		worker.interrupt();
+		try {
+			worker.join(15000);
+		} catch (InterruptedException e) {
+		}
+		purgeWorker = null;
+	}
+
+}
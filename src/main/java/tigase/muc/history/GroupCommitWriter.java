@@ -0,0 +1,619 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.db.DataRepository;
+import tigase.muc.StatisticsProvider;
+import tigase.stats.StatisticsList;
+
+/**
+ * Writes history rows in batches. Rows are collected for up to
+ * <code>maxDelay</code> milliseconds or <code>maxRows</code> rows and then
+ * inserted using {@linkplain PreparedStatement#addBatch() addBatch()} and
+ * {@linkplain PreparedStatement#executeBatch() executeBatch()}.
+ * 
+ * Connection of {@linkplain DataRepository} is shared with other users, so
+ * batch is executed in auto-commit mode; rows reported as inserted by failed
+ * batch are not inserted again. Some drivers send batch as separate
+ * statements, each committed on its own; MySQL Connector/J sends single
+ * multi-row insert only if <code>rewriteBatchedStatements=true</code> is set
+ * in connection URI.
+ * 
+ * Failed batch is retried with growing delay. Rows added in meantime are kept
+ * in bounded buffer; if buffer is full, {@linkplain #add(Row) add()} rejects
+ * row immediately. If batch fails repeatedly, rows are inserted one by one,
+ * and rows which can't be inserted while others can are dropped. Rows not
+ * written before {@linkplain #shutdown() shutdown} are saved to spool file,
+ * if it is set, and written after next start.
+ */
+public class GroupCommitWriter implements StatisticsProvider {
+
+	/**
+	 * Single row of <code>muc_history</code> table.
+	 */
+	public static final class Row {
+
+		static Row read(DataInputStream in) throws IOException {
+			final String roomJID;
+			try {
+				roomJID = readString(in);
+			} catch (EOFException e) {
+				return null;
+			}
+			final long timestamp = in.readLong();
+			final boolean hasTimestamp = in.readBoolean();
+			final String senderJid = readString(in);
+			final String senderNickname = readString(in);
+			final String body = readString(in);
+			final boolean publicEvent = in.readBoolean();
+			final String msg = readString(in);
+			return new Row(roomJID, hasTimestamp ? timestamp : null, senderJid, senderNickname, body, publicEvent, msg);
+		}
+
+		private final String body;
+
+		private final String msg;
+
+		private final boolean publicEvent;
+
+		private final String roomJID;
+
+		private final String senderJid;
+
+		private final String senderNickname;
+
+		private final Long timestamp;
+
+		public Row(String roomJID, Long timestamp, String senderJid, String senderNickname, String body,
+				boolean publicEvent, String msg) {
+			this.roomJID = roomJID;
+			this.timestamp = timestamp;
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.body = body;
+			this.publicEvent = publicEvent;
+			this.msg = msg;
+		}
+
+		/**
+		 * Sets parameters of <code>ADD_MESSAGE_QUERY</code>.
+		 * 
+		 * @param st
+		 * @throws SQLException
+		 */
+		public void setParameters(PreparedStatement st) throws SQLException {
+			st.setString(1, roomJID);
+			if (timestamp == null) {
+				st.setNull(2, Types.BIGINT);
+			} else {
+				st.setLong(2, timestamp);
+			}
+			st.setString(3, senderJid);
+			st.setString(4, senderNickname);
+			st.setString(5, body);
+			st.setBoolean(6, publicEvent);
+			st.setString(7, msg);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			writeString(out, roomJID);
+			out.writeLong(timestamp == null ? 0 : timestamp);
+			out.writeBoolean(timestamp != null);
+			writeString(out, senderJid);
+			writeString(out, senderNickname);
+			writeString(out, body);
+			out.writeBoolean(publicEvent);
+			writeString(out, msg);
+		}
+	}
+
+	private class Worker extends Thread {
+
+		Worker() {
+			super("muc-history-group-commit");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running || !batch.isEmpty() || !buffer.isEmpty()) {
+				try {
+					if (batch.isEmpty()) {
+						synchronized (recovered) {
+							while (!recovered.isEmpty() && batch.size() < maxRows) {
+								batch.add(recovered.poll());
+							}
+						}
+					}
+					if (batch.isEmpty()) {
+						Row first = buffer.poll(1, TimeUnit.SECONDS);
+						if (first == null) {
+							continue;
+						}
+						batch.add(first);
+					}
+					final long deadline = System.currentTimeMillis() + maxDelay;
+					while (batch.size() < maxRows) {
+						long wait = deadline - System.currentTimeMillis();
+						Row r = wait > 0 ? buffer.poll(wait, TimeUnit.MILLISECONDS) : buffer.poll();
+						if (r == null) {
+							break;
+						}
+						batch.add(r);
+					}
+					if (!write(batch) && !running) {
+						// rows are spooled by shutdown()
+						return;
+					}
+				} catch (InterruptedException e) {
+					// checking if we are still running
+				}
+			}
+		}
+	}
+
+	private static final int FALLBACK_AFTER_FAILURES = 3;
+
+	private static final long MAX_RETRY_DELAY = 10000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Logger log = Logger.getLogger(GroupCommitWriter.class.getName());
+
+	private static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] data = new byte[len];
+		in.readFully(data);
+		return new String(data, UTF8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes(UTF8);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	/**
+	 * Rows taken from buffer and not written yet. Accessed by worker thread,
+	 * and by {@linkplain #shutdown()} after worker is stopped.
+	 */
+	private final List<Row> batch;
+
+	private final AtomicLong batches = new AtomicLong();
+
+	private final BlockingQueue<Row> buffer;
+
+	private final DataRepository dataRepository;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private final Object lock = new Object();
+
+	private final long maxDelay;
+
+	private final int maxRows;
+
+	/**
+	 * Rows added and not written (or dropped) yet.
+	 */
+	private final AtomicLong pending = new AtomicLong();
+
+	private final String queryKey;
+
+	/**
+	 * Rows read from spool file, written before buffered rows. Guarded by own
+	 * monitor.
+	 */
+	private final ArrayDeque<Row> recovered = new ArrayDeque<Row>();
+
+	/**
+	 * Maximum number of rows in {@linkplain #recovered}. Guarded by its
+	 * monitor.
+	 */
+	private int recoveredLimit;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	private final AtomicLong rows = new AtomicLong();
+
+	private volatile File spoolFile;
+
+	private final Worker worker = new Worker();
+
+	/**
+	 * @param dataRepository
+	 *            repository with prepared insert statement.
+	 * @param queryKey
+	 *            key of prepared insert statement.
+	 * @param maxRows
+	 *            maximum number of rows in single batch.
+	 * @param maxDelay
+	 *            maximum time in milliseconds for which row waits for other
+	 *            rows.
+	 * @param bufferSize
+	 *            maximum number of rows waiting for insert.
+	 */
+	public GroupCommitWriter(DataRepository dataRepository, String queryKey, int maxRows, long maxDelay, int bufferSize) {
+		this.dataRepository = dataRepository;
+		this.queryKey = queryKey;
+		this.maxRows = maxRows < 1 ? 1 : maxRows;
+		this.maxDelay = maxDelay < 0 ? 0 : maxDelay;
+		this.batch = new ArrayList<Row>(this.maxRows);
+		this.buffer = new ArrayBlockingQueue<Row>(bufferSize < this.maxRows ? this.maxRows : bufferSize);
+		worker.start();
+	}
+
+	/**
+	 * Adds row to buffer without waiting.
+	 * 
+	 * @param row
+	 * @return <code>false</code> if buffer is full or writer is stopped; row
+	 *         is not stored then.
+	 */
+	public boolean add(Row row) {
+		if (running) {
+			// counted before worker can take it
+			pending.incrementAndGet();
+			synchronized (recovered) {
+				// rows read from spool are older, so new rows wait behind them
+				if (!recovered.isEmpty()) {
+					if (recovered.size() < recoveredLimit) {
+						recovered.add(row);
+						return true;
+					}
+					pending.decrementAndGet();
+					rejected.incrementAndGet();
+					return false;
+				}
+			}
+			if (buffer.offer(row)) {
+				return true;
+			}
+			pending.decrementAndGet();
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Inserts batch. If batch fails, rows reported by driver as inserted are
+	 * removed from batch.
+	 */
+	private void executeBatch(List<Row> batch) throws SQLException {
+		PreparedStatement st = dataRepository.getPreparedStatement(null, queryKey);
+		synchronized (st) {
+			try {
+				for (Row r : batch) {
+					r.setParameters(st);
+					st.addBatch();
+				}
+				st.executeBatch();
+			} catch (BatchUpdateException e) {
+				st.clearBatch();
+				final int inserted = removeInserted(batch, e.getUpdateCounts());
+				rows.addAndGet(inserted);
+				throw e;
+			} catch (SQLException e) {
+				st.clearBatch();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Inserts rows one by one. Rows inserted successfully are removed from
+	 * batch.
+	 * 
+	 * @return number of inserted rows.
+	 */
+	private int executeOneByOne(List<Row> batch) {
+		int inserted = 0;
+		Iterator<Row> it = batch.iterator();
+		while (it.hasNext()) {
+			Row r = it.next();
+			try {
+				PreparedStatement st = dataRepository.getPreparedStatement(null, queryKey);
+				synchronized (st) {
+					r.setParameters(st);
+					st.executeUpdate();
+				}
+				it.remove();
+				++inserted;
+			} catch (SQLException e) {
+				log.log(Level.FINE, "Can't insert history row of room " + r.roomJID, e);
+			}
+		}
+		return inserted;
+	}
+
+	/**
+	 * Waits until rows added before this call are written, but not longer
+	 * than given time.
+	 * 
+	 * @param timeout
+	 *            time in milliseconds.
+	 * @return <code>true</code> if all rows were written.
+	 */
+	public boolean flush(long timeout) {
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			while (pending.get() > 0 && worker.isAlive()) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					log.warning("Timeout while waiting for history writes");
+					return false;
+				}
+				try {
+					lock.wait(Math.min(wait, 100));
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		final long b = batches.get();
+		final long r = rows.get();
+		list.add(compName, "History batches", b, Level.FINE);
+		list.add(compName, "History average batch size", b == 0 ? 0f : ((float) r / b), Level.FINE);
+		list.add(compName, "History write buffer", buffer.size(), Level.FINE);
+		list.add(compName, "History write failures", failures.get(), Level.FINE);
+		list.add(compName, "History rejected rows", rejected.get(), Level.FINE);
+		list.add(compName, "History dropped rows", dropped.get(), Level.FINE);
+	}
+
+	/**
+	 * @return <code>true</code> if all added rows are written (or dropped);
+	 *         doesn't wait.
+	 */
+	public boolean isFlushed() {
+		return pending.get() == 0;
+	}
+
+	/**
+	 * @return number of rows inserted.
+	 */
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * Removes rows inserted by failed batch.
+	 * 
+	 * @param counts
+	 *            update counts of failed batch.
+	 * @return number of removed rows.
+	 */
+	private static int removeInserted(List<Row> batch, int[] counts) {
+		if (counts == null) {
+			return 0;
+		}
+		final int processed = Math.min(counts.length, batch.size());
+		final List<Row> failed = new ArrayList<Row>();
+		for (int i = 0; i < processed; i++) {
+			if (counts[i] == Statement.EXECUTE_FAILED) {
+				failed.add(batch.get(i));
+			}
+		}
+		final int inserted = processed - failed.size();
+		// driver stopped on first failed row
+		failed.addAll(batch.subList(processed, batch.size()));
+		batch.clear();
+		batch.addAll(failed);
+		return inserted;
+	}
+
+	/**
+	 * Sets file to which rows not written before shutdown are saved. Rows
+	 * saved by previous instance are read from it and written before new
+	 * rows.
+	 * 
+	 * @param spoolFile
+	 */
+	public void setSpoolFile(File spoolFile) {
+		this.spoolFile = spoolFile;
+		if (!spoolFile.exists()) {
+			return;
+		}
+		int count = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile)));
+			try {
+				Row r;
+				synchronized (recovered) {
+					while ((r = readRow(in)) != null) {
+						recovered.add(r);
+						++count;
+					}
+					pending.addAndGet(count);
+					recoveredLimit = recovered.size() + buffer.remainingCapacity();
+				}
+			} finally {
+				in.close();
+			}
+			if (!spoolFile.delete()) {
+				log.warning("Can't delete history rows spool file " + spoolFile.getAbsolutePath());
+			}
+			log.info("Read " + count + " history rows not written before last shutdown");
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Can't read history rows spool file " + spoolFile.getAbsolutePath(), e);
+		}
+	}
+
+	private static Row readRow(DataInputStream in) throws IOException {
+		try {
+			return Row.read(in);
+		} catch (EOFException e) {
+			log.warning("Truncated record in history rows spool file, skipping rest");
+			return null;
+		}
+	}
+
+	/**
+	 * Stops writer. Buffered rows are written before worker thread exits if
+	 * database is available; otherwise they are saved to spool file.
+	 */
+	public void shutdown() {
+		running = false;
+		worker.interrupt();
+		try {
+			worker.join(15000);
+		} catch (InterruptedException e) {
+		}
+		if (worker.isAlive()) {
+			log.warning("History writer is still running, unwritten rows are not saved");
+			return;
+		}
+
+		final List<Row> rest = new ArrayList<Row>();
+		synchronized (recovered) {
+			rest.addAll(recovered);
+			recovered.clear();
+		}
+		rest.addAll(batch);
+		batch.clear();
+		buffer.drainTo(rest);
+		if (rest.isEmpty()) {
+			return;
+		}
+
+		final File file = spoolFile;
+		if (file != null) {
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+				try {
+					for (Row r : rest) {
+						r.write(out);
+					}
+				} finally {
+					out.close();
+				}
+				log.warning("Saved " + rest.size() + " unwritten history rows to " + file.getAbsolutePath());
+				return;
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Can't save history rows to " + file.getAbsolutePath(), e);
+			}
+		}
+		dropped.addAndGet(rest.size());
+		log.severe("History writer stopped, " + rest.size() + " history rows were not written");
+	}
+
+	/**
+	 * Writes batch, retrying while writer is running.
+	 * 
+	 * @return <code>true</code> if batch was written (or its invalid rows
+	 *         dropped).
+	 */
+	private boolean write(List<Row> batch) throws InterruptedException {
+		final int size = batch.size();
+		boolean written = false;
+		try {
+			int attempt = 0;
+			long delay = 100;
+			while (!batch.isEmpty()) {
+				try {
+					executeBatch(batch);
+					batches.incrementAndGet();
+					rows.addAndGet(batch.size());
+					batch.clear();
+					written = true;
+					return true;
+				} catch (SQLException e) {
+					failures.incrementAndGet();
+					++attempt;
+					log.log(attempt < FALLBACK_AFTER_FAILURES ? Level.WARNING : Level.SEVERE,
+							"Can't write batch of " + batch.size() + " history rows, attempt " + attempt, e);
+				}
+
+				if (attempt >= FALLBACK_AFTER_FAILURES) {
+					final int left = batch.size();
+					final int inserted = executeOneByOne(batch);
+					rows.addAndGet(inserted);
+					if (inserted > 0) {
+						// database works, remaining rows are invalid
+						dropped.addAndGet(batch.size());
+						log.warning("Dropped " + batch.size() + " of " + left + " history rows which can't be inserted");
+						batch.clear();
+						written = true;
+						return true;
+					}
+				}
+
+				if (!running) {
+					return false;
+				}
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+			}
+			written = true;
+			return true;
+		} finally {
+			if (written) {
+				pending.addAndGet(-size);
+			}
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+		}
+	}
+
+}
@@ -60,6 +60,8 @@ public class HistoryManagerFactory {
 					return new NoneHistoryProvider();
 				} else if (cl.trim().equals("memory")) {
 					return new MemoryHistoryProvider();
+				} else if (cl.trim().equals("offheap")) {
+					return new OffHeapHistoryProvider();
 				} else if (cl.contains("mysql")) {
 					cls = MySqlHistoryProvider.class;
 				} else if (cl.contains("derby")) {
@@ -68,8 +70,13 @@ public class HistoryManagerFactory {
 					cls = PostgreSqlHistoryProvider.class;
 				} else if (cl.contains("sqlserver")) {
 					cls = SqlserverSqlHistoryProvider.class;
+				} else if (cl.trim().equals("file")) {
+					cls = FileHistoryProvider.class;
 				}
 			}
+			if (cls == null && uri != null && uri.startsWith("file:")) {
+				cls = FileHistoryProvider.class;
+			}
 			if (cls == null) {
 				cls = RepositoryFactory.getRepoClass(HistoryProvider.class, uri);
 			}
@@ -103,6 +103,20 @@ public interface HistoryProvider extends Repository {
 	 */
 	boolean isPersistent();
 
+	/**
+	 * Selects messages from archive of room (XEP-0313).
+	 * 
+	 * @param room
+	 * @param senderJID
+	 *            JID of requester.
+	 * @param query
+	 * @param handler
+	 *            receives selected messages, ordered from the oldest.
+	 * @return <code>true</code> if there are no more matching messages in
+	 *         direction of query.
+	 */
+	boolean queryArchive(Room room, JID senderJID, ArchiveQuery query, ArchiveQuery.Handler handler);
+
 	void removeHistory(Room room);
 
 }
@@ -0,0 +1,333 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.muc.StatisticsProvider;
+import tigase.stats.StatisticsList;
+
+/**
+ * Deletes history rows in background, in chunks of limited size with pause
+ * between them, so large deletes don't lock history table for long time.
+ * 
+ * Rows of removed rooms are deleted when room is queued by
+ * {@linkplain #removeRoom(String, long) removeRoom()}; only rows not newer
+ * than time of removal are deleted, so history of room created again with
+ * the same name is kept. Queued rooms are saved by {@linkplain Target target},
+ * so their rows are deleted after restart too. If retention time is set, rows
+ * older than it are deleted periodically.
+ */
+public class HistoryPurger implements StatisticsProvider {
+
+	/**
+	 * Storage from which rows are deleted.
+	 */
+	public interface Target {
+
+		/**
+		 * Deletes chunk of rows older than given time.
+		 * 
+		 * @return number of deleted rows.
+		 */
+		int deleteExpired(long before, int limit) throws SQLException;
+
+		/**
+		 * Deletes chunk of rows of room, not newer than given time.
+		 * 
+		 * @return number of deleted rows.
+		 */
+		int deleteRoom(String roomJID, long before, int limit) throws SQLException;
+
+		/**
+		 * Waits until buffered rows are written, so they are deleted too.
+		 */
+		void flush();
+
+		/**
+		 * Loads rooms which were queued for removal before restart.
+		 * 
+		 * @return room JIDs with time of removal.
+		 */
+		Map<String, Long> loadRemovals() throws SQLException;
+
+		/**
+		 * Saves room queued for removal.
+		 */
+		void saveRemoval(String roomJID, long before) throws SQLException;
+
+		/**
+		 * Forgets room whose rows were deleted.
+		 */
+		void clearRemoval(String roomJID, long before) throws SQLException;
+	}
+
+	private class Worker extends Thread {
+
+		Worker() {
+			super("muc-history-purger");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			loadRemovals();
+			while (running) {
+				try {
+					String roomJID = null;
+					long before = 0;
+					synchronized (pendingRooms) {
+						Iterator<Map.Entry<String, Long>> it = pendingRooms.entrySet().iterator();
+						if (it.hasNext()) {
+							Map.Entry<String, Long> e = it.next();
+							roomJID = e.getKey();
+							before = e.getValue();
+						} else if (System.currentTimeMillis() < nextRetention) {
+							pendingRooms.wait(Math.max(1, nextRetention - System.currentTimeMillis()));
+							continue;
+						}
+					}
+
+					if (roomJID != null) {
+						purgeRoom(roomJID, before);
+					} else {
+						nextRetention = System.currentTimeMillis() + RETENTION_INTERVAL;
+						purgeExpired(System.currentTimeMillis() - retentionTime);
+					}
+				} catch (InterruptedException e) {
+					// checking if we are still running
+				} catch (SQLException e) {
+					failures.incrementAndGet();
+					log.log(Level.WARNING, "Can't purge MUC history", e);
+					try {
+						Thread.sleep(RETRY_DELAY);
+					} catch (InterruptedException e1) {
+					}
+				}
+			}
+		}
+	}
+
+	private static final Logger log = Logger.getLogger(HistoryPurger.class.getName());
+
+	/**
+	 * Time between deletions of expired rows in milliseconds.
+	 */
+	private static final long RETENTION_INTERVAL = 60 * 60 * 1000;
+
+	private static final long RETRY_DELAY = 10000;
+
+	private final int chunkSize;
+
+	private final AtomicLong expiredRows = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private volatile long nextRetention;
+
+	private final long pause;
+
+	/**
+	 * Rooms waiting for removal with time of removal. Guarded by own monitor.
+	 */
+	private final LinkedHashMap<String, Long> pendingRooms = new LinkedHashMap<String, Long>();
+
+	private final AtomicLong purgeTime = new AtomicLong();
+
+	private final long retentionTime;
+
+	private final AtomicLong roomRows = new AtomicLong();
+
+	private final AtomicLong rooms = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	private final Target target;
+
+	private final Worker worker = new Worker();
+
+	/**
+	 * @param target
+	 *            storage from which rows are deleted.
+	 * @param chunkSize
+	 *            maximum number of rows deleted by single statement.
+	 * @param pause
+	 *            pause between chunks in milliseconds.
+	 * @param retentionTime
+	 *            time in milliseconds after which rows are deleted, or 0 if
+	 *            rows are kept forever.
+	 */
+	public HistoryPurger(Target target, int chunkSize, long pause, long retentionTime) {
+		this.target = target;
+		this.chunkSize = chunkSize < 1 ? 1 : chunkSize;
+		this.pause = pause < 0 ? 0 : pause;
+		this.retentionTime = retentionTime;
+		this.nextRetention = retentionTime > 0 ? System.currentTimeMillis() : Long.MAX_VALUE;
+		worker.start();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		synchronized (pendingRooms) {
+			list.add(compName, "History pending room removals", pendingRooms.size(), Level.FINE);
+		}
+		list.add(compName, "History removed rooms", rooms.get(), Level.FINE);
+		list.add(compName, "History purged rows of removed rooms", roomRows.get(), Level.FINE);
+		list.add(compName, "History purged expired rows", expiredRows.get(), Level.FINE);
+		list.add(compName, "History purge time [ms]", purgeTime.get(), Level.FINE);
+		list.add(compName, "History purge failures", failures.get(), Level.FINE);
+	}
+
+	private void loadRemovals() {
+		try {
+			Map<String, Long> removals = target.loadRemovals();
+			if (removals.isEmpty()) {
+				return;
+			}
+			synchronized (pendingRooms) {
+				for (Map.Entry<String, Long> e : removals.entrySet()) {
+					if (!pendingRooms.containsKey(e.getKey())) {
+						pendingRooms.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+			if (log.isLoggable(Level.INFO)) {
+				log.info("Resuming removal of history of " + removals.size() + " rooms");
+			}
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			log.log(Level.WARNING, "Can't load rooms waiting for history removal", e);
+		}
+	}
+
+	private void pause() throws InterruptedException {
+		if (pause > 0) {
+			Thread.sleep(pause);
+		}
+	}
+
+	private void purgeExpired(long before) throws SQLException, InterruptedException {
+		final long start = System.currentTimeMillis();
+		long total = 0;
+		try {
+			int deleted;
+			do {
+				deleted = target.deleteExpired(before, chunkSize);
+				total += deleted;
+				expiredRows.addAndGet(deleted);
+				if (deleted >= chunkSize) {
+					pause();
+				}
+			} while (deleted >= chunkSize && running);
+		} finally {
+			purgeTime.addAndGet(System.currentTimeMillis() - start);
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Purged " + total + " expired history rows in " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	private void purgeRoom(String roomJID, long before) throws SQLException, InterruptedException {
+		final long start = System.currentTimeMillis();
+		try {
+			target.flush();
+			int deleted;
+			do {
+				deleted = target.deleteRoom(roomJID, before, chunkSize);
+				roomRows.addAndGet(deleted);
+				if (deleted >= chunkSize) {
+					pause();
+				}
+			} while (deleted >= chunkSize && running);
+		} finally {
+			purgeTime.addAndGet(System.currentTimeMillis() - start);
+		}
+		if (deleted(roomJID, before)) {
+			rooms.incrementAndGet();
+			target.clearRemoval(roomJID, before);
+		}
+	}
+
+	/**
+	 * Removes room from pending rooms, unless it was queued again in
+	 * meantime.
+	 * 
+	 * @return <code>true</code> if room was removed.
+	 */
+	private boolean deleted(String roomJID, long before) {
+		synchronized (pendingRooms) {
+			Long current = pendingRooms.get(roomJID);
+			if (current != null && current == before && running) {
+				pendingRooms.remove(roomJID);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Queues deletion of rows of room.
+	 * 
+	 * @param roomJID
+	 * @param before
+	 *            time of removal; newer rows are kept.
+	 */
+	public void removeRoom(String roomJID, long before) {
+		try {
+			target.saveRemoval(roomJID, before);
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			log.log(Level.WARNING, "Can't save removal of history of room " + roomJID
+					+ ", it will not be deleted after restart", e);
+		}
+		synchronized (pendingRooms) {
+			pendingRooms.remove(roomJID);
+			pendingRooms.put(roomJID, before);
+			pendingRooms.notifyAll();
+		}
+	}
+
+	/**
+	 * Stops purger. Rows of rooms waiting for removal are deleted after
+	 * restart.
+	 */
+	public void shutdown() {
+		running = false;
+		worker.interrupt();
+		try {
+			worker.join(15000);
+		} catch (InterruptedException e) {
+		}
+		synchronized (pendingRooms) {
+			if (!pendingRooms.isEmpty()) {
+				log.info("History of " + pendingRooms.size() + " removed rooms will be deleted after restart");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * History message stored outside of Java heap. Fields are written as UTF-8
+ * strings prefixed by length (<code>-1</code> for <code>null</code>);
+ * timestamp and identifier are kept by storage itself.
+ */
+final class HistoryRecord {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Reads record from remaining bytes of buffer.
+	 */
+	static HistoryRecord decode(ByteBuffer b) {
+		HistoryRecord r = new HistoryRecord();
+		r.senderNickname = readString(b);
+		r.senderJid = readString(b);
+		r.body = readString(b);
+		r.msg = readString(b);
+		return r;
+	}
+
+	private static int length(byte[] data) {
+		return data == null ? 0 : data.length;
+	}
+
+	private static String readString(ByteBuffer b) {
+		int len = b.getInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] data = new byte[len];
+		b.get(data);
+		return new String(data, UTF8);
+	}
+
+	private static byte[] utf8(String s) {
+		return s == null ? null : s.getBytes(UTF8);
+	}
+
+	private static void writeString(ByteBuffer b, byte[] data) {
+		if (data == null) {
+			b.putInt(-1);
+		} else {
+			b.putInt(data.length);
+			b.put(data);
+		}
+	}
+
+	String body;
+
+	long id;
+
+	String msg;
+
+	String senderJid;
+
+	String senderNickname;
+
+	long timestamp;
+
+	HistoryRecord() {
+	}
+
+	HistoryRecord(String senderNickname, String senderJid, String body, String msg) {
+		this.senderNickname = senderNickname;
+		this.senderJid = senderJid;
+		this.body = body;
+		this.msg = msg;
+	}
+
+	byte[] encode() {
+		final byte[] nick = utf8(senderNickname);
+		final byte[] jid = utf8(senderJid);
+		final byte[] b = utf8(body);
+		final byte[] m = utf8(msg);
+		ByteBuffer result = ByteBuffer.allocate(16 + length(nick) + length(jid) + length(b) + length(m));
+		writeString(result, nick);
+		writeString(result, jid);
+		writeString(result, b);
+		writeString(result, m);
+		return result.array();
+	}
+
+}
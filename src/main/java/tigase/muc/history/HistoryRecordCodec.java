@@ -0,0 +1,338 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+/**
+ * Compact format of history record stored in <code>msg</code> column.
+ * 
+ * Element tree is written in length-prefixed binary form. Element and
+ * attribute names, namespaces and other frequent strings are coded as
+ * indexes of static dictionary. Element with mixed content (text and child
+ * elements, i.e. XHTML-IM) is stored as XML text, because the tree form
+ * keeps text separately from children and would lose their order. Record is compressed with deflate (using the
+ * same dictionary as preset) if it makes it shorter, and stored as Base64
+ * text with {@linkplain #PREFIX prefix}, so it can't be mistaken for XML.
+ */
+public class HistoryRecordCodec {
+
+	private static final String[] DICTIONARY = { "message", "body", "type", "groupchat", "from", "to", "id", "xmlns",
+			"jabber:client", "subject", "thread", "html", "http://jabber.org/protocol/xhtml-im",
+			"http://www.w3.org/1999/xhtml", "p", "span", "style", "br", "a", "href", "x", "jabber:x:oob", "url", "desc",
+			"delay", "urn:xmpp:delay", "stamp", "active", "composing", "paused", "inactive", "gone",
+			"http://jabber.org/protocol/chatstates", "request", "received", "urn:xmpp:receipts", "markable", "displayed",
+			"acknowledged", "urn:xmpp:chat-markers:0", "origin-id", "stanza-id", "by", "urn:xmpp:sid:0", "replace",
+			"urn:xmpp:message-correct:0", "nick", "http://jabber.org/protocol/nick", "store", "no-store",
+			"urn:xmpp:hints", "x-oob", "encrypted", "header", "key", "iv", "payload", "sid", "rid", "lang", "xml:lang",
+			"en", "true", "false", "chat", "normal", "headline", "error", "code", "text" };
+
+	private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<String, Integer>();
+
+	private static final int FORMAT_DEFLATE = 2;
+
+	private static final int FORMAT_RAW = 1;
+
+	/**
+	 * Prefix of encoded record. XML stanza always starts with
+	 * <code>&lt;</code>.
+	 */
+	public static final String PREFIX = "#1";
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	private static final byte[] PRESET;
+
+	static {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < DICTIONARY.length; i++) {
+			DICTIONARY_INDEX.put(DICTIONARY[i], i);
+			sb.append(DICTIONARY[i]);
+		}
+		PRESET = bytes(sb.toString());
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decodes record.
+	 * 
+	 * @param record
+	 *            encoded record.
+	 * @return decoded element.
+	 * @throws IOException
+	 *             if record is damaged.
+	 */
+	public static Element decode(String record) throws IOException {
+		byte[] data;
+		try {
+			data = Base64.getDecoder().decode(record.substring(PREFIX.length()));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Damaged history record", e);
+		}
+		if (data.length == 0) {
+			throw new EOFException("Empty history record");
+		}
+		byte[] tree;
+		if (data[0] == FORMAT_RAW) {
+			tree = new byte[data.length - 1];
+			System.arraycopy(data, 1, tree, 0, tree.length);
+		} else if (data[0] == FORMAT_DEFLATE) {
+			tree = inflate(data);
+		} else {
+			throw new IOException("Unknown history record format: " + data[0]);
+		}
+		return readElement(new DataInputStream(new ByteArrayInputStream(tree)));
+	}
+
+	private static byte[] inflate(byte[] data) throws IOException {
+		// raw inflater needs one dummy byte after compressed data
+		byte[] input = new byte[data.length];
+		System.arraycopy(data, 1, input, 0, data.length - 1);
+
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setDictionary(PRESET);
+			inflater.setInput(input);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+			byte[] buf = new byte[1024];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new EOFException("Truncated history record");
+				}
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Damaged history record", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Encodes element.
+	 * 
+	 * @param element
+	 *            element to encode.
+	 * @return encoded record.
+	 */
+	public static String encode(Element element) {
+		try {
+			ByteArrayOutputStream tree = new ByteArrayOutputStream(256);
+			writeElement(new DataOutputStream(tree), element);
+			byte[] raw = tree.toByteArray();
+
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+			byte[] compressed;
+			try {
+				deflater.setDictionary(PRESET);
+				deflater.setInput(raw);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 1);
+				out.write(FORMAT_DEFLATE);
+				byte[] buf = new byte[1024];
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buf);
+					out.write(buf, 0, n);
+				}
+				compressed = out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+
+			byte[] data;
+			if (compressed.length < raw.length + 1) {
+				data = compressed;
+			} else {
+				data = new byte[raw.length + 1];
+				data[0] = FORMAT_RAW;
+				System.arraycopy(raw, 0, data, 1, raw.length);
+			}
+			return PREFIX + Base64.getEncoder().encodeToString(data);
+		} catch (IOException e) {
+			// ByteArrayOutputStream doesn't throw it
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Checks if stored message is in compact format.
+	 * 
+	 * @param record
+	 *            content of <code>msg</code> column.
+	 * @return <code>true</code> if record is encoded by this codec.
+	 */
+	public static boolean isEncoded(String record) {
+		return record != null && record.startsWith(PREFIX);
+	}
+
+	private static boolean isMixed(Element e) {
+		final String cdata = e.getCData();
+		final List<Element> children = e.getChildren();
+		return cdata != null && !cdata.isEmpty() && children != null && !children.isEmpty();
+	}
+
+	private static Element parseElement(String xml) throws IOException {
+		if (xml == null) {
+			throw new IOException("Damaged history record");
+		}
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, xml.toCharArray(), 0, xml.length());
+		Queue<Element> queue = domHandler.getParsedElements();
+		Element e = queue.poll();
+		if (e == null) {
+			throw new IOException("Damaged history record");
+		}
+		return e;
+	}
+
+	private static Element readElement(DataInputStream in) throws IOException {
+		final String name = readString(in);
+		if (name == null) {
+			// element with mixed content
+			return parseElement(readString(in));
+		}
+		Element e = new Element(name);
+		int attrs = readVarInt(in);
+		for (int i = 0; i < attrs; i++) {
+			String attr = readString(in);
+			e.setAttribute(attr, readString(in));
+		}
+		String cdata = readString(in);
+		if (cdata != null) {
+			e.setCData(cdata);
+		}
+		int children = readVarInt(in);
+		for (int i = 0; i < children; i++) {
+			e.addChild(readElement(in));
+		}
+		return e;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int v = readVarInt(in);
+		if (v == 0) {
+			return null;
+		} else if (v <= DICTIONARY.length) {
+			return DICTIONARY[v - 1];
+		}
+		byte[] b = new byte[v - DICTIONARY.length - 1];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	private static int readVarInt(InputStream in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Truncated history record");
+			}
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("Damaged history record");
+	}
+
+	private static void writeElement(DataOutputStream out, Element e) throws IOException {
+		if (isMixed(e)) {
+			writeString(out, null);
+			writeString(out, e.toString());
+			return;
+		}
+		writeString(out, e.getName());
+		Map<String, String> attrs = e.getAttributes();
+		writeVarInt(out, attrs == null ? 0 : attrs.size());
+		if (attrs != null) {
+			for (Map.Entry<String, String> a : attrs.entrySet()) {
+				writeString(out, a.getKey());
+				writeString(out, a.getValue());
+			}
+		}
+		writeString(out, e.getCData());
+		List<Element> children = e.getChildren();
+		writeVarInt(out, children == null ? 0 : children.size());
+		if (children != null) {
+			for (Element c : children) {
+				writeElement(out, c);
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		Integer idx = DICTIONARY_INDEX.get(s);
+		if (idx != null) {
+			writeVarInt(out, idx + 1);
+			return;
+		}
+		byte[] b = bytes(s);
+		writeVarInt(out, DICTIONARY.length + 1 + b.length);
+		out.write(b);
+	}
+
+	private static void writeVarInt(OutputStream out, int v) throws IOException {
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private HistoryRecordCodec() {
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Queue;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+/**
+ * Converts <code>msg</code> column of <code>muc_history</code> table between
+ * XML and {@linkplain HistoryRecordCodec compact format}.
+ * 
+ * <pre>
+ * java -cp ... tigase.muc.history.HistoryRecordMigration &lt;jdbc-uri&gt; [encode|decode] [batch-size]
+ * </pre>
+ * 
+ * Rows are converted in batches, each committed separately, so migration may
+ * run while component is working and may be interrupted and started again.
+ * Rows are updated by <code>id</code> column, so schema must be upgraded to
+ * version {@value AbstractJDBCHistoryProvider#ID_SCHEMA_VERSION} first (see
+ * {@linkplain HistorySchemaUpgrade}).
+ * For MySQL add <code>useCursorFetch=true</code> to URI, to not load whole
+ * table into memory.
+ */
+public class HistoryRecordMigration {
+
+	private static final String SELECT_DECODE_QUERY = "select id, msg from muc_history where msg like '"
+			+ HistoryRecordCodec.PREFIX + "%'";
+
+	private static final String SELECT_ENCODE_QUERY = "select id, msg from muc_history where msg like '<%'";
+
+	private static final String UPDATE_QUERY = "update muc_history set msg=? where id=?";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: HistoryRecordMigration <jdbc-uri> [encode|decode] [batch-size]");
+			System.exit(1);
+		}
+		final boolean encode = args.length < 2 || "encode".equals(args[1]);
+		final int batchSize = args.length < 3 ? 1000 : Integer.parseInt(args[2]);
+
+		Connection readConnection = DriverManager.getConnection(args[0]);
+		Connection writeConnection = DriverManager.getConnection(args[0]);
+		try {
+			int version = getSchemaVersion(readConnection);
+			if (version < AbstractJDBCHistoryProvider.ID_SCHEMA_VERSION) {
+				// other columns don't identify row
+				System.out.println("muc_history schema version " + version + " has no id column, run "
+						+ HistorySchemaUpgrade.class.getName() + " first");
+				System.exit(1);
+			}
+			long converted = migrate(readConnection, writeConnection, encode, batchSize);
+			System.out.println("Converted messages: " + converted);
+		} finally {
+			readConnection.close();
+			writeConnection.close();
+		}
+	}
+
+	private static int getSchemaVersion(Connection connection) throws SQLException {
+		Statement st = connection.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("select version from muc_history_schema");
+			return rs.next() ? rs.getInt(1) : 0;
+		} catch (SQLException e) {
+			// schema table doesn't exist
+			return 0;
+		} finally {
+			st.close();
+		}
+	}
+
+	private static long migrate(Connection readConnection, Connection writeConnection, boolean encode, int batchSize)
+			throws SQLException {
+		final SimpleParser parser = SingletonFactory.getParserInstance();
+
+		readConnection.setAutoCommit(false);
+		writeConnection.setAutoCommit(false);
+
+		long converted = 0;
+		long failed = 0;
+		int pending = 0;
+		PreparedStatement select = readConnection.prepareStatement(encode ? SELECT_ENCODE_QUERY : SELECT_DECODE_QUERY);
+		PreparedStatement update = writeConnection.prepareStatement(UPDATE_QUERY);
+		try {
+			select.setFetchSize(batchSize);
+			ResultSet rs = select.executeQuery();
+			while (rs.next()) {
+				final String msg = rs.getString("msg");
+				String result;
+				if (encode) {
+					DomBuilderHandler domHandler = new DomBuilderHandler();
+					parser.parse(domHandler, msg.toCharArray(), 0, msg.length());
+					Queue<Element> queue = domHandler.getParsedElements();
+					Element m = queue.poll();
+					result = m == null ? null : HistoryRecordCodec.encode(m);
+				} else {
+					try {
+						result = HistoryRecordCodec.decode(msg).toString();
+					} catch (IOException e) {
+						result = null;
+					}
+				}
+				if (result == null) {
+					++failed;
+					continue;
+				}
+
+				update.setString(1, result);
+				update.setLong(2, rs.getLong("id"));
+				update.addBatch();
+				if (++pending >= batchSize) {
+					update.executeBatch();
+					writeConnection.commit();
+					converted += pending;
+					pending = 0;
+					System.out.println("Converted messages: " + converted);
+				}
+			}
+			rs.close();
+			if (pending > 0) {
+				update.executeBatch();
+				writeConnection.commit();
+				converted += pending;
+			}
+			readConnection.commit();
+		} finally {
+			select.close();
+			update.close();
+		}
+		if (failed > 0) {
+			System.out.println("Messages which can't be converted: " + failed);
+		}
+		return converted;
+	}
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tigase.xmpp.JID;
+
+/**
+ * Fixed-capacity ring buffer with history of single room.
+ * 
+ * Writes must be serialized by caller (single writer), but reads are
+ * lock-free and may run concurrently with write. Each entry remembers its
+ * sequence number, so reader detects slots overwritten in meantime and stops
+ * there.
+ */
+public class HistoryRing {
+
+	/**
+	 * Immutable history entry.
+	 */
+	public static final class Entry {
+
+		public final String body;
+
+		/**
+		 * Number of characters of this and all previous entries of ring.
+		 */
+		final long charsTotal;
+
+		/**
+		 * Identifier of message, unique in provider.
+		 */
+		public final long id;
+
+		/**
+		 * whole stanza
+		 */
+		public final String msg;
+
+		/**
+		 * Parsed message, created on first replay.
+		 */
+		volatile ParsedHistoryMessage parsed;
+
+		public final JID senderJid;
+
+		public final String senderNickname;
+
+		final long seq;
+
+		public final long timestamp;
+
+		Entry(long seq, long charsTotal, long id, long timestamp, JID senderJid, String senderNickname, String body,
+				String msg) {
+			this.seq = seq;
+			this.id = id;
+			this.charsTotal = charsTotal;
+			this.timestamp = timestamp;
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.body = body;
+			this.msg = msg;
+		}
+
+		/**
+		 * @return estimated memory used by entry in bytes, including parsed
+		 *         message variants.
+		 */
+		public int getEstimatedSize() {
+			return 96 + 2 * ((msg == null ? 0 : msg.length()) + (body == null ? 0 : body.length())
+					+ (senderNickname == null ? 0 : senderNickname.length())) + 8 * getChars();
+		}
+
+		/**
+		 * @return number of characters of stanza.
+		 */
+		public int getChars() {
+			return msg != null ? msg.length() : (body == null ? 0 : body.length());
+		}
+	}
+
+	/**
+	 * Estimated memory used by entries. Guarded by ring monitor.
+	 */
+	long bytes;
+
+	private final Entry[] entries;
+
+	/**
+	 * Set when ring is removed from provider. Guarded by ring monitor.
+	 */
+	boolean evicted;
+
+	/**
+	 * Sequence number of next entry. Written only by writer, after entry is
+	 * stored in array.
+	 */
+	private volatile long head;
+
+	/**
+	 * Time of last read or write.
+	 */
+	volatile long lastAccess;
+
+	public HistoryRing(int capacity) {
+		this.entries = new Entry[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Adds entry to ring, overwriting the oldest one if ring is full. Must not
+	 * be called concurrently.
+	 * 
+	 * @return overwritten entry or <code>null</code>.
+	 */
+	public Entry add(long id, long timestamp, JID senderJid, String senderNickname, String body, String msg) {
+		final long seq = head;
+		final int idx = (int) (seq % entries.length);
+		final Entry prev = seq == 0 ? null : entries[(int) ((seq - 1) % entries.length)];
+		final int chars = msg != null ? msg.length() : (body == null ? 0 : body.length());
+		final Entry old = entries[idx];
+		entries[idx] = new Entry(seq, (prev == null ? 0 : prev.charsTotal) + chars, id, timestamp, senderJid,
+				senderNickname, body, msg);
+		head = seq + 1;
+		bytes += entries[idx].getEstimatedSize() - (old == null ? 0 : old.getEstimatedSize());
+		return old;
+	}
+
+	public int capacity() {
+		return entries.length;
+	}
+
+	/**
+	 * Selects the newest entries matching all given limits.
+	 * 
+	 * @param maxstanzas
+	 *            maximum number of entries or <code>null</code>.
+	 * @param maxchars
+	 *            maximum total number of characters or <code>null</code>.
+	 * @param since
+	 *            timestamp of the oldest entry or <code>null</code>.
+	 * @return entries ordered from the oldest.
+	 */
+	public List<Entry> select(Integer maxstanzas, Integer maxchars, Long since) {
+		final long h = head;
+		final long lowest = Math.max(0, h - entries.length);
+		final int limit = maxstanzas == null ? entries.length : Math.min(maxstanzas, entries.length);
+
+		Entry newest = null;
+		int count = 0;
+		for (long seq = h - 1; seq >= lowest && count < limit; seq--) {
+			final Entry e = entries[(int) (seq % entries.length)];
+			if (e == null || e.seq != seq) {
+				// overwritten by writer in meantime
+				break;
+			}
+			if (newest == null) {
+				newest = e;
+			}
+			if (since != null && e.timestamp < since) {
+				break;
+			}
+			if (maxchars != null && newest.charsTotal - e.charsTotal + e.getChars() > maxchars) {
+				break;
+			}
+			++count;
+		}
+
+		List<Entry> result = new ArrayList<Entry>(count);
+		for (long seq = h - count; seq < h; seq++) {
+			final Entry e = entries[(int) (seq % entries.length)];
+			if (e.seq != seq) {
+				// the oldest selected entries were overwritten in meantime
+				continue;
+			}
+			result.add(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of entries in ring.
+	 */
+	public int size() {
+		return (int) Math.min(head, entries.length);
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Applies {@linkplain AbstractJDBCHistoryProvider#OFFLINE_UPGRADE offline}
+ * upgrades of <code>muc_history</code> schema, which rewrite whole table or
+ * block writes to it (i.e. index builds on some databases) and are not
+ * applied to large table at component startup. Progress of long statements
+ * is logged every minute.
+ * 
+ * <pre>
+ * java -cp ... tigase.muc.history.HistorySchemaUpgrade &lt;history-db-uri&gt;
+ * </pre>
+ * 
+ * Should be run while MUC component is stopped, as table is locked during
+ * upgrade.
+ */
+public class HistorySchemaUpgrade {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: HistorySchemaUpgrade <history-db-uri>");
+			System.exit(1);
+		}
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(HistoryManagerFactory.DB_URI_KEY, args[0]);
+		HistoryProvider provider = HistoryManagerFactory.getHistoryManager(params);
+		if (!(provider instanceof AbstractJDBCHistoryProvider)) {
+			System.out.println("Not a JDBC history provider: " + args[0]);
+			System.exit(1);
+		}
+
+		int version = ((AbstractJDBCHistoryProvider) provider).upgradeSchemaOffline();
+		System.out.println("muc_history schema version: " + version);
+	}
+
+}
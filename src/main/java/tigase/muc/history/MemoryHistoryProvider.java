@@ -21,18 +21,22 @@
  */
 package tigase.muc.history;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import tigase.component.PacketWriter;
 import tigase.db.DBInitException;
 import tigase.db.Repository;
 import tigase.muc.Affiliation;
 import tigase.muc.Room;
+import tigase.muc.StatisticsProvider;
 import tigase.muc.RoomConfig.Anonymity;
-import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
@@ -42,22 +46,47 @@ import tigase.xmpp.JID;
  * 
  */
 @Repository.Meta( supportedUris = { "memory" } )
-public class MemoryHistoryProvider extends AbstractHistoryProvider {
+public class MemoryHistoryProvider extends AbstractHistoryProvider implements StatisticsProvider {
 
-	private static class HItem {
-		String body;
-		/**
-		 * whole stanza
-		 */
-		String msg;
-		JID senderJid;
-		String senderNickname;
-		Date timestamp;
+	public static final String HISTORY_MEMORY_LIMIT_KEY = "history-memory-limit";
+
+	private static final class Candidate implements Comparable<Candidate> {
+
+		private final long lastAccess;
+
+		private final HistoryRing ring;
+
+		private final BareJID roomJID;
+
+		Candidate(BareJID roomJID, HistoryRing ring) {
+			this.roomJID = roomJID;
+			this.ring = ring;
+			this.lastAccess = ring.lastAccess;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			return lastAccess < o.lastAccess ? -1 : (lastAccess == o.lastAccess ? 0 : 1);
+		}
 	}
 
-	private final Map<BareJID, LinkedList<HItem>> history = new ConcurrentHashMap<BareJID, LinkedList<HItem>>();
+	private final AtomicLong evictedMessages = new AtomicLong();
+
+	private final AtomicLong evictedRooms = new AtomicLong();
+
+	/**
+	 * Source of message identifiers used in archive queries.
+	 */
+	private final AtomicLong ids = new AtomicLong();
+
+	private final ConcurrentHashMap<BareJID, HistoryRing> history = new ConcurrentHashMap<BareJID, HistoryRing>();
+
+	/**
+	 * Limit of memory used by history of all rooms, in bytes.
+	 */
+	private long memoryLimit = 64L * 1024 * 1024;
 
-	private int maxSize = 256;
+	private final AtomicLong usedBytes = new AtomicLong();
 
 	/**
 	 * @param dataRepository
@@ -79,24 +108,111 @@ public class MemoryHistoryProvider extends AbstractHistoryProvider {
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
-		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
+		final BareJID roomJID = room.getRoomJID();
+		final int capacity = room.getConfig().getMaxHistory();
+		if (capacity <= 0) {
+			removeHistory(room);
+			return;
+		}
+		final long timestamp = time == null ? System.currentTimeMillis() : time.getTime();
+		final String msg = message == null ? null : message.toString();
+
+		while (true) {
+			HistoryRing stanzas = this.history.get(roomJID);
+			if (stanzas == null) {
+				stanzas = new HistoryRing(capacity);
+				HistoryRing current = this.history.putIfAbsent(roomJID, stanzas);
+				if (current != null) {
+					stanzas = current;
+				}
+			}
+
+			synchronized (stanzas) {
+				if (stanzas.evicted) {
+					continue;
+				}
+				if (stanzas.capacity() != capacity) {
+					// max history of room was changed
+					resize(roomJID, stanzas, capacity);
+					continue;
+				}
+				final long before = stanzas.bytes;
+				stanzas.add(ids.incrementAndGet(), timestamp, senderJid, senderNickname, body, msg);
+				stanzas.lastAccess = System.currentTimeMillis();
+				usedBytes.addAndGet(stanzas.bytes - before);
+			}
+			break;
+		}
+
+		if (usedBytes.get() > memoryLimit) {
+			evict();
 		}
+	}
 
-		if (stanzas.size() >= this.maxSize) {
-			stanzas.poll();
+	/**
+	 * Removes history of the least recently used rooms until used memory drops
+	 * below 90% of limit.
+	 */
+	private synchronized void evict() {
+		if (usedBytes.get() <= memoryLimit) {
+			return;
 		}
 
-		HItem item = new HItem();
-		item.body = body;
-		item.senderJid = senderJid;
-		item.senderNickname = senderNickname;
-		item.timestamp = time;
-		item.msg = message == null ? null : message.toString();
+		final List<Candidate> candidates = new ArrayList<Candidate>(history.size());
+		for (Map.Entry<BareJID, HistoryRing> e : history.entrySet()) {
+			candidates.add(new Candidate(e.getKey(), e.getValue()));
+		}
+		Collections.sort(candidates);
 
-		stanzas.add(item);
+		final long target = memoryLimit / 10 * 9;
+		for (Candidate c : candidates) {
+			if (usedBytes.get() <= target) {
+				break;
+			}
+			if (history.remove(c.roomJID, c.ring)) {
+				evictedMessages.addAndGet(release(c.ring));
+				evictedRooms.incrementAndGet();
+			}
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("History evicted, used memory: " + usedBytes.get() + " bytes, rooms: " + history.size());
+		}
+	}
+
+	/**
+	 * Marks ring as removed and subtracts its size from used memory.
+	 * 
+	 * @return number of released messages.
+	 */
+	private int release(HistoryRing stanzas) {
+		synchronized (stanzas) {
+			if (stanzas.evicted) {
+				return 0;
+			}
+			stanzas.evicted = true;
+			usedBytes.addAndGet(-stanzas.bytes);
+			return stanzas.size();
+		}
+	}
+
+	/**
+	 * Replaces ring of room by new one with given capacity. The newest
+	 * messages are copied. Must be called with monitor of old ring held.
+	 */
+	private void resize(BareJID roomJID, HistoryRing old, int capacity) {
+		HistoryRing stanzas = new HistoryRing(capacity);
+		synchronized (stanzas) {
+			for (HistoryRing.Entry e : old.select(capacity, null, null)) {
+				stanzas.add(e.id, e.timestamp, e.senderJid, e.senderNickname, e.body, e.msg);
+			}
+			stanzas.lastAccess = old.lastAccess;
+			old.evicted = true;
+			usedBytes.addAndGet(stanzas.bytes - old.bytes);
+			if (!history.replace(roomJID, old, stanzas)) {
+				usedBytes.addAndGet(-stanzas.bytes);
+				stanzas.evicted = true;
+			}
+		}
 	}
 
 	@Override
@@ -111,52 +227,68 @@ public class MemoryHistoryProvider extends AbstractHistoryProvider {
 	@Override
 	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds, Date since,
 			PacketWriter writer) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
+		final HistoryRing stanzas = this.history.get(room.getRoomJID());
 		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
+			return;
+		}
+		stanzas.lastAccess = System.currentTimeMillis();
+
+		Long from = null;
+		if (since != null) {
+			from = since.getTime();
+		} else if (seconds != null) {
+			from = System.currentTimeMillis() - seconds * 1000L;
+		}
+		int limit = room.getConfig().getMaxHistory();
+		if (maxstanzas != null) {
+			limit = Math.min(limit, maxstanzas);
 		}
 
-		int c = 0;
-		final Date now = new Date();
-		for (HItem item : stanzas) {
+		List<HistoryRing.Entry> items = stanzas.select(limit, maxchars, from);
+		if (items.isEmpty()) {
+			return;
+		}
 
-			if (since != null) {
-				if (item.timestamp.before(since))
-					continue;
-			} else if (maxstanzas != null) {
-				if (c >= maxstanzas)
-					break;
-			} else if (seconds != null) {
-				if (item.timestamp.getTime() < now.getTime() - seconds * 1000)
-					continue;
-			} else {
-				if (c >= 25)
-					break;
-			}
+		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID());
+		boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous
+				|| room.getConfig().getRoomAnonymity() == Anonymity.semianonymous
+				&& (recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+
+		try {
+			for (HistoryRing.Entry item : items) {
+				ParsedHistoryMessage parsed = item.parsed;
+				if (parsed == null) {
+					parsed = parseMessage(room.getRoomJID(), item.senderNickname, item.msg, item.body,
+							item.senderJid.toString(), new Date(item.timestamp));
+					item.parsed = parsed;
+				}
 
-			Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID());
-			boolean addRealJids = room.getConfig().getRoomAnonymity() == Anonymity.nonanonymous
-					|| room.getConfig().getRoomAnonymity() == Anonymity.semianonymous
-					&& (recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
-
-			try {
-				Packet message = createMessage(room.getRoomJID(), senderJID, item.senderNickname, item.msg, item.body,
-						item.senderJid.toString(), addRealJids, item.timestamp);
-
-				writer.write(message);
-				++c;
-			} catch (Exception e) {
-				if (log.isLoggable(Level.SEVERE))
-					log.log(Level.SEVERE, "Can't get history", e);
-				throw new RuntimeException(e);
+				writer.write(parsed.createPacket(senderJID, addRealJids));
 			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't get history", e);
+			throw new RuntimeException(e);
 		}
 	}
 
 	@Override
-	public void init(Map<String, Object> props) {
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "History rooms in memory", history.size(), Level.FINE);
+		list.add(compName, "History memory used [bytes]", usedBytes.get(), Level.FINE);
+		list.add(compName, "History memory limit [bytes]", memoryLimit, Level.FINE);
+		list.add(compName, "History evicted rooms", evictedRooms.get(), Level.FINE);
+		list.add(compName, "History evicted messages", evictedMessages.get(), Level.FINE);
+	}
 
+	@Override
+	public void init(Map<String, Object> props) {
+		if (props.containsKey(HISTORY_MEMORY_LIMIT_KEY)) {
+			memoryLimit = ((Number) props.get(HISTORY_MEMORY_LIMIT_KEY)).longValue() * 1024 * 1024;
+		}
+		if (log.isLoggable(Level.CONFIG)) {
+			log.config("History memory limit: " + memoryLimit + " bytes");
+		}
 	}
 
 	/*
@@ -169,9 +301,58 @@ public class MemoryHistoryProvider extends AbstractHistoryProvider {
 		return false;
 	}
 
+	@Override
+	public boolean queryArchive(Room room, JID senderJID, ArchiveQuery query, ArchiveQuery.Handler handler) {
+		final HistoryRing stanzas = this.history.get(room.getRoomJID());
+		if (stanzas == null) {
+			return true;
+		}
+
+		final List<HistoryRing.Entry> items = stanzas.select(null, null, null);
+		int from = 0;
+		while (from < items.size() && !query.matches(items.get(from).timestamp, items.get(from).id)) {
+			++from;
+		}
+		int to = items.size();
+		while (to > from && !query.matches(items.get(to - 1).timestamp, items.get(to - 1).id)) {
+			--to;
+		}
+
+		boolean complete = to - from <= query.getLimit();
+		if (!complete) {
+			if (query.isLastPage()) {
+				from = to - query.getLimit();
+			} else {
+				to = from + query.getLimit();
+			}
+		}
+
+		final boolean addRealJids = isAddRealJids(room, senderJID);
+		try {
+			for (int i = from; i < to; i++) {
+				HistoryRing.Entry item = items.get(i);
+				ParsedHistoryMessage parsed = item.parsed;
+				if (parsed == null) {
+					parsed = parseMessage(room.getRoomJID(), item.senderNickname, item.msg, item.body,
+							item.senderJid.toString(), new Date(item.timestamp));
+					item.parsed = parsed;
+				}
+				handler.item(ArchiveQuery.createId(item.timestamp, item.id), parsed.createPacket(senderJID, addRealJids));
+			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't query archive", e);
+			throw new RuntimeException(e);
+		}
+		return complete;
+	}
+
 	@Override
 	public void removeHistory(Room room) {
-		this.history.remove(room.getRoomJID());
+		HistoryRing stanzas = this.history.remove(room.getRoomJID());
+		if (stanzas != null) {
+			release(stanzas);
+		}
 	}
 
 }
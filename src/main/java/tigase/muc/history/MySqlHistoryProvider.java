@@ -47,7 +47,23 @@ public class MySqlHistoryProvider extends AbstractJDBCHistoryProvider {
 			+ "event_type int, \n" + "timestamp bigint,\n" + "sender_jid varchar(2049),\n" + "sender_nickname char(128),\n"
 			+ "body text,\n" + "public_event boolean,\n " + "msg text " + ")";
 
-	public static final String DELETE_MESSAGES_QUERY_VAL = "delete from muc_history where room_name=?";
+	/**
+	 * Schema upgrades, see {@linkplain #upgradeSchema(String[][], boolean)}.
+	 */
+	private static final String[][] SCHEMA_UPGRADES = {
+			{ BACKGROUND_UPGRADE,
+					"alter table muc_history add index " + HISTORY_INDEX_NAME + " (room_name, timestamp), algorithm=inplace, lock=none" },
+			{ BACKGROUND_UPGRADE,
+					"alter table muc_history add index " + HISTORY_TS_INDEX_NAME + " (timestamp), algorithm=inplace, lock=none" },
+			{ OFFLINE_UPGRADE, "alter table muc_history add column id bigint not null auto_increment unique" } };
+
+	public static final String DELETE_EXPIRED_QUERY_VAL = "delete from muc_history where timestamp < ? limit ?";
+
+	public static final String DELETE_MESSAGES_QUERY_VAL = "delete from muc_history where room_name=? and (timestamp is null or timestamp <= ?) limit ?";
+
+	public static final String GET_ARCHIVE_LAST_QUERY_VAL = "select id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp desc, id desc limit ?";
+
+	public static final String GET_ARCHIVE_QUERY_VAL = "select id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp, id limit ?";
 
 	public static final String GET_MESSAGES_MAXSTANZAS_QUERY_VAL = "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, msg from (select * from muc_history where room_name=? order by timestamp desc limit ? ) AS t order by t.timestamp";
 
@@ -82,6 +98,19 @@ public class MySqlHistoryProvider extends AbstractJDBCHistoryProvider {
 
 	}
 
+	/**
+	 * Connector/J executes batch as separate inserts (each committed in
+	 * auto-commit mode) unless <code>rewriteBatchedStatements=true</code> is
+	 * set, so batched writer would not save anything.
+	 */
+	@Override
+	protected void initGroupCommit(Map<String, Object> props) {
+		super.initGroupCommit(props);
+		if (groupCommitWriter != null && (resourceUri == null || !resourceUri.contains("rewriteBatchedStatements=true"))) {
+			log.warning("History batches are inserted row by row, add rewriteBatchedStatements=true to database URI");
+		}
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public void init(Map<String, Object> props) {
@@ -106,13 +135,30 @@ public class MySqlHistoryProvider extends AbstractJDBCHistoryProvider {
 				throw new RuntimeException(e1);
 			}
 		}
+		verifyQueryPlans("explain ", GET_MESSAGES_MAXSTANZAS_QUERY_VAL, GET_MESSAGES_SINCE_QUERY_VAL);
+		initRecordFormat(props);
+		initGroupCommit(props);
+		initHistoryCache(props);
+		initPurger(props);
 	}
 
 	private void internalInit() throws SQLException {
+		upgradeSchema(SCHEMA_UPGRADES, false);
+
 		this.dataRepository.initPreparedStatement(ADD_MESSAGE_QUERY_KEY, ADD_MESSAGE_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_QUERY_VAL);
+		this.dataRepository.initPreparedStatement(DELETE_EXPIRED_QUERY_KEY, DELETE_EXPIRED_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_SINCE_QUERY_KEY, GET_MESSAGES_SINCE_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_MAXSTANZAS_QUERY_KEY, GET_MESSAGES_MAXSTANZAS_QUERY_VAL);
+		if (isArchiveSupported()) {
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_QUERY_KEY, GET_ARCHIVE_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_LAST_QUERY_KEY, GET_ARCHIVE_LAST_QUERY_VAL);
+		}
+	}
+
+	@Override
+	protected String[][] getSchemaUpgrades() {
+		return SCHEMA_UPGRADES;
 	}
 
 }
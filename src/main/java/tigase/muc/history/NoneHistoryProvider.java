@@ -120,6 +120,11 @@ public class NoneHistoryProvider implements HistoryProvider {
 		return false;
 	}
 
+	@Override
+	public boolean queryArchive(Room room, JID senderJID, ArchiveQuery query, ArchiveQuery.Handler handler) {
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,478 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import tigase.component.PacketWriter;
+import tigase.db.DBInitException;
+import tigase.db.Repository;
+import tigase.muc.Room;
+import tigase.muc.StatisticsProvider;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * In-memory history provider keeping messages outside of Java heap. Messages
+ * are serialized to blocks of direct buffers (see {@linkplain SlabAllocator})
+ * and every room has only small ring of block handles on heap. Messages are
+ * decoded when history is sent to occupant.
+ * 
+ * When memory limit is reached, history of the least recently used rooms is
+ * removed.
+ */
+@Repository.Meta( supportedUris = { "offheap" } )
+public class OffHeapHistoryProvider extends AbstractHistoryProvider implements StatisticsProvider {
+
+	/**
+	 * Ring of stored messages of room. Access is guarded by its monitor.
+	 */
+	private static final class RoomIndex {
+
+		private int capacity;
+
+		boolean evicted;
+
+		private long[] handles;
+
+		/**
+		 * Position of the oldest message.
+		 */
+		private int head;
+
+		private long[] ids;
+
+		volatile long lastAccess;
+
+		private int[] lengths;
+
+		private int size;
+
+		private long[] timestamps;
+
+		RoomIndex(int capacity) {
+			this.capacity = capacity;
+			this.handles = new long[capacity];
+			this.ids = new long[capacity];
+			this.lengths = new int[capacity];
+			this.timestamps = new long[capacity];
+		}
+
+		/**
+		 * @param i
+		 *            position counted from the oldest message.
+		 */
+		int slot(int i) {
+			return (head + i) % capacity;
+		}
+	}
+
+	private static final class Candidate implements Comparable<Candidate> {
+
+		private final long lastAccess;
+
+		private final RoomIndex index;
+
+		private final BareJID roomJID;
+
+		Candidate(BareJID roomJID, RoomIndex index) {
+			this.roomJID = roomJID;
+			this.index = index;
+			this.lastAccess = index.lastAccess;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			return lastAccess < o.lastAccess ? -1 : (lastAccess == o.lastAccess ? 0 : 1);
+		}
+	}
+
+	public static final String HISTORY_OFFHEAP_LIMIT_KEY = "history-offheap-limit";
+
+	public static final String HISTORY_OFFHEAP_SLAB_SIZE_KEY = "history-offheap-slab-size";
+
+	private SlabAllocator allocator;
+
+	private final AtomicLong droppedMessages = new AtomicLong();
+
+	private final AtomicLong evictedMessages = new AtomicLong();
+
+	private final AtomicLong evictedRooms = new AtomicLong();
+
+	private final ConcurrentHashMap<BareJID, RoomIndex> history = new ConcurrentHashMap<BareJID, RoomIndex>();
+
+	/**
+	 * Source of message identifiers used in archive queries.
+	 */
+	private final AtomicLong ids = new AtomicLong();
+
+	/**
+	 * Limit of direct memory used by history, in bytes.
+	 */
+	private long memoryLimit = 256L * 1024 * 1024;
+
+	private int slabSize = 1024 * 1024;
+
+	public OffHeapHistoryProvider() {
+	}
+
+	@Override
+	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
+	}
+
+	@Override
+	public void addLeaveEvent(Room room, Date date, JID senderJID, String nickName) {
+	}
+
+	@Override
+	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
+		final BareJID roomJID = room.getRoomJID();
+		final int capacity = room.getConfig().getMaxHistory();
+		if (capacity <= 0) {
+			removeHistory(room);
+			return;
+		}
+		final long timestamp = time == null ? System.currentTimeMillis() : time.getTime();
+		final byte[] data = new HistoryRecord(senderNickname, senderJid == null ? null : senderJid.toString(), body,
+				message == null ? null : message.toString()).encode();
+		if (data.length > allocator.getMaxBlockSize()) {
+			droppedMessages.incrementAndGet();
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Message of " + data.length + " bytes is too big to store in history of room " + roomJID);
+			}
+			return;
+		}
+
+		long handle = allocator.allocate(data.length);
+		if (handle < 0) {
+			evict(data.length);
+			handle = allocator.allocate(data.length);
+			if (handle < 0) {
+				droppedMessages.incrementAndGet();
+				return;
+			}
+		}
+		allocator.write(handle, data);
+
+		while (true) {
+			RoomIndex index = this.history.get(roomJID);
+			if (index == null) {
+				index = new RoomIndex(capacity);
+				RoomIndex current = this.history.putIfAbsent(roomJID, index);
+				if (current != null) {
+					index = current;
+				}
+			}
+
+			synchronized (index) {
+				if (index.evicted) {
+					continue;
+				}
+				if (index.capacity != capacity) {
+					// max history of room was changed
+					resize(index, capacity);
+				}
+				if (index.size == index.capacity) {
+					allocator.free(index.handles[index.head]);
+					index.head = index.slot(1);
+					--index.size;
+				}
+				final int slot = index.slot(index.size);
+				index.handles[slot] = handle;
+				index.lengths[slot] = data.length;
+				index.timestamps[slot] = timestamp;
+				index.ids[slot] = ids.incrementAndGet();
+				++index.size;
+				index.lastAccess = System.currentTimeMillis();
+			}
+			break;
+		}
+	}
+
+	@Override
+	public void addSubjectChange(Room room, Element message, String subject, JID senderJid, String senderNickname, Date time) {
+	}
+
+	@Override
+	public void destroy() {
+		for (RoomIndex index : history.values()) {
+			release(index);
+		}
+		history.clear();
+	}
+
+	/**
+	 * Removes history of the least recently used rooms until allocated memory
+	 * drops below 90% of limit. Eviction doesn't go further even if block of
+	 * failed size still can't be allocated (free memory is in slabs of other
+	 * size classes); message is dropped then, instead of removing history of
+	 * all rooms.
+	 * 
+	 * @param size
+	 *            size of block which couldn't be allocated.
+	 */
+	private synchronized void evict(int size) {
+		final long target = memoryLimit / 10 * 9;
+		if (allocator.getAllocatedBytes() <= target) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Can't allocate " + size + " bytes, free history memory is used by other block sizes");
+			}
+			return;
+		}
+
+		final List<Candidate> candidates = new ArrayList<Candidate>(history.size());
+		for (Map.Entry<BareJID, RoomIndex> e : history.entrySet()) {
+			candidates.add(new Candidate(e.getKey(), e.getValue()));
+		}
+		Collections.sort(candidates);
+
+		for (Candidate c : candidates) {
+			if (allocator.getAllocatedBytes() <= target) {
+				break;
+			}
+			if (history.remove(c.roomJID, c.index)) {
+				evictedMessages.addAndGet(release(c.index));
+				evictedRooms.incrementAndGet();
+			}
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("History evicted, allocated memory: " + allocator.getAllocatedBytes() + " bytes, rooms: "
+					+ history.size());
+		}
+	}
+
+	@Override
+	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
+			Date since, PacketWriter writer) {
+		final RoomIndex index = this.history.get(room.getRoomJID());
+		if (index == null) {
+			return;
+		}
+
+		Long from = null;
+		if (since != null) {
+			from = since.getTime();
+		} else if (seconds != null) {
+			from = System.currentTimeMillis() - seconds * 1000L;
+		}
+		int limit = room.getConfig().getMaxHistory();
+		if (maxstanzas != null) {
+			limit = Math.min(limit, maxstanzas);
+		}
+
+		final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		synchronized (index) {
+			index.lastAccess = System.currentTimeMillis();
+			int first = index.size;
+			while (first > 0 && index.size - first < limit
+					&& (from == null || index.timestamps[index.slot(first - 1)] >= from)) {
+				--first;
+			}
+			for (int i = first; i < index.size; i++) {
+				records.add(read(index, index.slot(i)));
+			}
+		}
+		if (maxchars != null) {
+			int chars = 0;
+			int first = records.size();
+			while (first > 0) {
+				HistoryRecord r = records.get(first - 1);
+				chars += r.msg != null ? r.msg.length() : (r.body == null ? 0 : r.body.length());
+				if (chars > maxchars) {
+					break;
+				}
+				--first;
+			}
+			records.subList(0, first).clear();
+		}
+
+		final boolean addRealJids = isAddRealJids(room, senderJID);
+		try {
+			for (HistoryRecord r : records) {
+				writer.write(createMessage(room.getRoomJID(), senderJID, r.senderNickname, r.msg, r.body, r.senderJid,
+						addRealJids, new Date(r.timestamp)));
+			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't get history", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "History off-heap rooms", history.size(), Level.FINE);
+		list.add(compName, "History off-heap messages", allocator.getAllocatedBlocks(), Level.FINE);
+		list.add(compName, "History off-heap allocated [bytes]", allocator.getAllocatedBytes(), Level.FINE);
+		list.add(compName, "History off-heap reserved [bytes]", allocator.getReservedBytes(), Level.FINE);
+		list.add(compName, "History off-heap limit [bytes]", memoryLimit, Level.FINE);
+		list.add(compName, "History off-heap evicted rooms", evictedRooms.get(), Level.FINE);
+		list.add(compName, "History off-heap evicted messages", evictedMessages.get(), Level.FINE);
+		list.add(compName, "History off-heap dropped messages", droppedMessages.get(), Level.FINE);
+	}
+
+	@Override
+	public void init(Map<String, Object> props) {
+		if (props.containsKey(HISTORY_OFFHEAP_LIMIT_KEY)) {
+			memoryLimit = ((Number) props.get(HISTORY_OFFHEAP_LIMIT_KEY)).longValue() * 1024 * 1024;
+		}
+		if (props.containsKey(HISTORY_OFFHEAP_SLAB_SIZE_KEY)) {
+			slabSize = (Integer) props.get(HISTORY_OFFHEAP_SLAB_SIZE_KEY) * 1024;
+		}
+		allocator = new SlabAllocator(slabSize, memoryLimit);
+		if (log.isLoggable(Level.CONFIG)) {
+			log.config("History off-heap limit: " + memoryLimit + " bytes, slab size: " + slabSize + " bytes");
+		}
+	}
+
+	@Override
+	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return false;
+	}
+
+	@Override
+	public boolean queryArchive(Room room, JID senderJID, ArchiveQuery query, ArchiveQuery.Handler handler) {
+		final RoomIndex index = this.history.get(room.getRoomJID());
+		if (index == null) {
+			return true;
+		}
+
+		final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		final boolean complete;
+		synchronized (index) {
+			int from = 0;
+			while (from < index.size && !query.matches(index.timestamps[index.slot(from)], index.ids[index.slot(from)])) {
+				++from;
+			}
+			int to = index.size;
+			while (to > from && !query.matches(index.timestamps[index.slot(to - 1)], index.ids[index.slot(to - 1)])) {
+				--to;
+			}
+
+			complete = to - from <= query.getLimit();
+			if (!complete) {
+				if (query.isLastPage()) {
+					from = to - query.getLimit();
+				} else {
+					to = from + query.getLimit();
+				}
+			}
+			for (int i = from; i < to; i++) {
+				records.add(read(index, index.slot(i)));
+			}
+		}
+
+		final boolean addRealJids = isAddRealJids(room, senderJID);
+		try {
+			for (HistoryRecord r : records) {
+				handler.item(ArchiveQuery.createId(r.timestamp, r.id), createMessage(room.getRoomJID(), senderJID,
+						r.senderNickname, r.msg, r.body, r.senderJid, addRealJids, new Date(r.timestamp)));
+			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.SEVERE))
+				log.log(Level.SEVERE, "Can't query archive", e);
+			throw new RuntimeException(e);
+		}
+		return complete;
+	}
+
+	/**
+	 * Decodes message. Must be called with monitor of index held.
+	 */
+	private HistoryRecord read(RoomIndex index, int slot) {
+		HistoryRecord r = HistoryRecord.decode(allocator.buffer(index.handles[slot], index.lengths[slot]));
+		r.timestamp = index.timestamps[slot];
+		r.id = index.ids[slot];
+		return r;
+	}
+
+	/**
+	 * Frees all messages of room and marks index as removed.
+	 * 
+	 * @return number of released messages.
+	 */
+	private int release(RoomIndex index) {
+		synchronized (index) {
+			if (index.evicted) {
+				return 0;
+			}
+			index.evicted = true;
+			final int released = index.size;
+			for (int i = 0; i < index.size; i++) {
+				allocator.free(index.handles[index.slot(i)]);
+			}
+			index.size = 0;
+			return released;
+		}
+	}
+
+	@Override
+	public void removeHistory(Room room) {
+		RoomIndex index = this.history.remove(room.getRoomJID());
+		if (index != null) {
+			release(index);
+		}
+	}
+
+	/**
+	 * Changes capacity of index, the oldest messages above new capacity are
+	 * freed. Must be called with monitor of index held.
+	 */
+	private void resize(RoomIndex index, int capacity) {
+		while (index.size > capacity) {
+			allocator.free(index.handles[index.head]);
+			index.head = index.slot(1);
+			--index.size;
+		}
+		final long[] handles = new long[capacity];
+		final long[] ids = new long[capacity];
+		final int[] lengths = new int[capacity];
+		final long[] timestamps = new long[capacity];
+		for (int i = 0; i < index.size; i++) {
+			final int slot = index.slot(i);
+			handles[i] = index.handles[slot];
+			ids[i] = index.ids[slot];
+			lengths[i] = index.lengths[slot];
+			timestamps[i] = index.timestamps[slot];
+		}
+		index.handles = handles;
+		index.ids = ids;
+		index.lengths = lengths;
+		index.timestamps = timestamps;
+		index.head = 0;
+		index.capacity = capacity;
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.util.List;
+
+import tigase.muc.modules.AbstractMucModule;
+import tigase.server.Packet;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+/**
+ * History message parsed once and kept in two variants: with real JID of
+ * sender and with occupant JID in <code>delay from</code>. Packet for
+ * recipient gets own envelope only, payload elements of variant are shared
+ * by packets of all recipients (see
+ * {@linkplain AbstractMucModule#createEnvelope(String[], String[], List, JID, JID)}
+ * ) and must not be modified.
+ */
+public final class ParsedHistoryMessage {
+
+	private static final class Variant {
+
+		private final String[] attNames;
+
+		private final String[] attValues;
+
+		private final List<Element> payload;
+
+		Variant(Element m) {
+			final String[][] attributes = AbstractMucModule.envelopeAttributes(m);
+			this.attNames = attributes[0];
+			this.attValues = attributes[1];
+			this.payload = m.getChildren();
+		}
+	}
+
+	private final Variant anonymous;
+
+	private final JID from;
+
+	private final Variant withRealJid;
+
+	ParsedHistoryMessage(JID from, Element anonymous, Element withRealJid) {
+		this.from = from;
+		this.anonymous = new Variant(anonymous);
+		this.withRealJid = new Variant(withRealJid);
+	}
+
+	/**
+	 * Creates history packet for recipient.
+	 * 
+	 * @param to
+	 *            recipient.
+	 * @param addRealJids
+	 *            <code>true</code> if real JID of sender may be revealed to
+	 *            recipient.
+	 * @return packet
+	 * @throws TigaseStringprepException
+	 */
+	public Packet createPacket(JID to, boolean addRealJids) throws TigaseStringprepException {
+		final Variant v = addRealJids ? withRealJid : anonymous;
+		return AbstractMucModule.createEnvelope(v.attNames, v.attValues, v.payload, from, to);
+	}
+
+}
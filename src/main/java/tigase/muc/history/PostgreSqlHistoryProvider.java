@@ -47,7 +47,26 @@ public class PostgreSqlHistoryProvider extends AbstractJDBCHistoryProvider {
 			+ "event_type int, \n" + "timestamp bigint,\n" + "sender_jid varchar(2049),\n" + "sender_nickname char(128),\n"
 			+ "body text,\n" + "public_event boolean,\n " + "msg text " + ")";
 
-	public static final String DELETE_MESSAGES_QUERY_VAL = "delete from muc_history where room_name=?";
+	/**
+	 * Schema upgrades, see {@linkplain #upgradeSchema(String[][], boolean)}.
+	 */
+	private static final String[][] SCHEMA_UPGRADES = {
+			{ BACKGROUND_UPGRADE, "create index concurrently " + HISTORY_INDEX_NAME + " on muc_history (room_name, timestamp)" },
+			{ BACKGROUND_UPGRADE, "create index concurrently " + HISTORY_TS_INDEX_NAME + " on muc_history (timestamp)" },
+			{ OFFLINE_UPGRADE, "alter table muc_history add column id bigserial" } };
+
+	public static final String DELETE_EXPIRED_QUERY_VAL = "delete from muc_history where id in (select id from muc_history where timestamp < ? limit ?)";
+
+	public static final String DELETE_MESSAGES_QUERY_VAL = "delete from muc_history where id in (select id from muc_history where room_name=? and (timestamp is null or timestamp <= ?) limit ?)";
+
+	// used until id column is added by HistorySchemaUpgrade
+	private static final String DELETE_EXPIRED_CTID_QUERY_VAL = "delete from muc_history where ctid = any(array(select ctid from muc_history where timestamp < ? limit ?))";
+
+	private static final String DELETE_MESSAGES_CTID_QUERY_VAL = "delete from muc_history where ctid = any(array(select ctid from muc_history where room_name=? and (timestamp is null or timestamp <= ?) limit ?))";
+
+	public static final String GET_ARCHIVE_LAST_QUERY_VAL = "select id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp desc, id desc limit ?";
+
+	public static final String GET_ARCHIVE_QUERY_VAL = "select id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp, id limit ?";
 
 	public static final String GET_MESSAGES_MAXSTANZAS_QUERY_VAL = "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, msg from (select * from muc_history where room_name=? order by timestamp desc limit ? ) AS t order by t.timestamp";
 
@@ -106,13 +125,35 @@ public class PostgreSqlHistoryProvider extends AbstractJDBCHistoryProvider {
 				throw new RuntimeException(e1);
 			}
 		}
+		verifyQueryPlans("explain ", GET_MESSAGES_MAXSTANZAS_QUERY_VAL, GET_MESSAGES_SINCE_QUERY_VAL);
+		initRecordFormat(props);
+		initGroupCommit(props);
+		initHistoryCache(props);
+		initPurger(props);
 	}
 
 	private void internalInit() throws SQLException {
+		upgradeSchema(SCHEMA_UPGRADES, false);
+
 		this.dataRepository.initPreparedStatement(ADD_MESSAGE_QUERY_KEY, ADD_MESSAGE_QUERY_VAL);
-		this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_QUERY_VAL);
+		if (isArchiveSupported()) {
+			this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(DELETE_EXPIRED_QUERY_KEY, DELETE_EXPIRED_QUERY_VAL);
+		} else {
+			this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_CTID_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(DELETE_EXPIRED_QUERY_KEY, DELETE_EXPIRED_CTID_QUERY_VAL);
+		}
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_SINCE_QUERY_KEY, GET_MESSAGES_SINCE_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_MAXSTANZAS_QUERY_KEY, GET_MESSAGES_MAXSTANZAS_QUERY_VAL);
+		if (isArchiveSupported()) {
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_QUERY_KEY, GET_ARCHIVE_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_LAST_QUERY_KEY, GET_ARCHIVE_LAST_QUERY_VAL);
+		}
+	}
+
+	@Override
+	protected String[][] getSchemaUpgrades() {
+		return SCHEMA_UPGRADES;
 	}
 
 }
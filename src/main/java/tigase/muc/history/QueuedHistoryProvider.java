@@ -0,0 +1,789 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.component.PacketWriter;
+import tigase.db.DBInitException;
+import tigase.muc.MucContext;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.muc.StatisticsProvider;
+import tigase.stats.StatisticsList;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * History provider which stores history asynchronously. All write
+ * operations are put into bounded queue and executed in order by single
+ * thread using wrapped provider. If queue is full, operations are appended
+ * to spool file, which is replayed as soon as queue is drained, so order of
+ * operations is kept. When the rest of spool fits into queue, it is moved
+ * there and new operations are queued in memory again. Spool file is also
+ * used to keep operations not executed during shutdown, and is replayed on
+ * next start.
+ * 
+ * Spool file being replayed is renamed to drain file, and position of the
+ * last executed operation is kept in offset file, so replay interrupted by
+ * shutdown continues where it stopped (at most one operation is executed
+ * again after crash). Names of files contain component name, so components
+ * may share spool directory.
+ * 
+ * If wrapped provider is overloaded (see {@linkplain HistoryOverloadException}),
+ * operation is retried by worker thread, and new operations are spooled when
+ * queue is full.
+ * 
+ * Reading of history is done directly by wrapped provider, so messages
+ * waiting in queue are not returned.
+ */
+public class QueuedHistoryProvider implements HistoryProvider, StatisticsProvider {
+
+	/**
+	 * Counts bytes read from underlying stream.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				++count;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	private static abstract class Task {
+
+		final long enqueued = System.currentTimeMillis();
+
+		final boolean loggingEnabled;
+
+		final Room room;
+
+		final BareJID roomJID;
+
+		Task(Room room, BareJID roomJID, boolean loggingEnabled) {
+			this.room = room;
+			this.roomJID = roomJID;
+			this.loggingEnabled = loggingEnabled;
+		}
+
+		abstract void execute(HistoryProvider provider, Room room);
+
+		abstract byte getType();
+
+		void write(DataOutputStream out) throws IOException {
+		}
+	}
+
+	private static class MessageTask extends Task {
+
+		final String body;
+
+		final Element message;
+
+		final JID senderJid;
+
+		final String senderNickname;
+
+		final boolean subject;
+
+		final Date time;
+
+		MessageTask(Room room, BareJID roomJID, boolean loggingEnabled, boolean subject, Element message, String body,
+				JID senderJid, String senderNickname, Date time) {
+			super(room, roomJID, loggingEnabled);
+			this.subject = subject;
+			this.message = message;
+			this.body = body;
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.time = time;
+		}
+
+		@Override
+		void execute(HistoryProvider provider, Room room) {
+			if (subject) {
+				provider.addSubjectChange(room, message, body, senderJid, senderNickname, time);
+			} else {
+				provider.addMessage(room, message, body, senderJid, senderNickname, time);
+			}
+		}
+
+		@Override
+		byte getType() {
+			return subject ? TYPE_SUBJECT : TYPE_MESSAGE;
+		}
+
+		@Override
+		void write(DataOutputStream out) throws IOException {
+			writeString(out, message == null ? null : message.toString());
+			writeString(out, body);
+			writeString(out, senderJid == null ? null : senderJid.toString());
+			writeString(out, senderNickname);
+			out.writeLong(time == null ? -1 : time.getTime());
+		}
+	}
+
+	private static class RemoveTask extends Task {
+
+		RemoveTask(Room room, BareJID roomJID) {
+			super(room, roomJID, false);
+		}
+
+		@Override
+		void execute(HistoryProvider provider, Room room) {
+			provider.removeHistory(room);
+		}
+
+		@Override
+		byte getType() {
+			return TYPE_REMOVE;
+		}
+	}
+
+	private class Worker extends Thread {
+
+		Worker() {
+			super("muc-history-writer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					// while spooling, queue holds only operations older than
+					// spooled ones, so spool is replayed once queue is empty
+					Task task = spooling ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+					if (task != null && !executeWithRetry(task)) {
+						// stopped while delegate was overloaded
+						unfinished = task;
+					} else if (task == null && spooling) {
+						drainSpool();
+					}
+				} catch (InterruptedException e) {
+					// checking if we are still running
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Problem on processing history queue", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delay between attempts to execute operation rejected by overloaded
+	 * provider.
+	 */
+	private static final long OVERLOAD_RETRY_DELAY = 100;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte TYPE_MESSAGE = 1;
+
+	private static final byte TYPE_REMOVE = 3;
+
+	private static final byte TYPE_SUBJECT = 2;
+
+	private static final Logger log = Logger.getLogger(QueuedHistoryProvider.class.getName());
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	private static Element parse(String data) {
+		if (data == null) {
+			return null;
+		}
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, data.toCharArray(), 0, data.length());
+		Queue<Element> elems = domHandler.getParsedElements();
+		return elems.poll();
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] data = new byte[len];
+		in.readFully(data);
+		return new String(data, UTF8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes(UTF8);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private final MucContext context;
+
+	private final HistoryProvider delegate;
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private volatile long lag;
+
+	private final Object lock = new Object();
+
+	private final AtomicLong overloads = new AtomicLong();
+
+	private final AtomicLong processed = new AtomicLong();
+
+	private final BlockingQueue<Task> queue;
+
+	private volatile boolean running = true;
+
+	private final File spoolDrainFile;
+
+	private final File spoolDrainOffsetFile;
+
+	private final File spoolFile;
+
+	/**
+	 * Set while new operations are appended to spool file instead of queue.
+	 * Changed under {@linkplain #lock}.
+	 */
+	private volatile boolean spooling;
+
+	/**
+	 * Number of operations in spool file (not in drain file), or -1 if
+	 * unknown. Guarded by {@linkplain #lock}.
+	 */
+	private int spoolFileRecords;
+
+	private final AtomicLong spooled = new AtomicLong();
+
+	private final AtomicLong spoolPending = new AtomicLong();
+
+	private DataOutputStream spoolWriter;
+
+	/**
+	 * Operation taken from queue, but not executed before worker was
+	 * stopped.
+	 */
+	private volatile Task unfinished;
+
+	private final Worker worker = new Worker();
+
+	/**
+	 * @param delegate
+	 *            provider used to store history.
+	 * @param context
+	 *            context used to find rooms of spooled operations.
+	 * @param queueSize
+	 *            maximum number of operations kept in memory.
+	 * @param spoolDirectory
+	 *            directory of spool files.
+	 * @param componentName
+	 *            name of component, used in names of spool files.
+	 */
+	public QueuedHistoryProvider(HistoryProvider delegate, MucContext context, int queueSize, String spoolDirectory,
+			String componentName) {
+		this.delegate = delegate;
+		this.context = context;
+		this.queue = new ArrayBlockingQueue<Task>(queueSize < 1 ? 1 : queueSize);
+
+		File dir = new File(spoolDirectory);
+		if (!dir.exists() && !dir.mkdirs()) {
+			log.warning("Can't create history spool directory " + dir.getAbsolutePath());
+		}
+		final String prefix = "muc-history-" + componentName;
+		this.spoolFile = new File(dir, prefix + ".spool");
+		this.spoolDrainFile = new File(dir, prefix + ".spool.drain");
+		this.spoolDrainOffsetFile = new File(dir, prefix + ".spool.drain.offset");
+		final File rowsFile = new File(dir, prefix + ".rows");
+		// files named without component name by previous versions
+		renameLegacyFile(new File(dir, "muc-history.spool"), spoolFile);
+		renameLegacyFile(new File(dir, "muc-history.spool.drain"), spoolDrainFile);
+		renameLegacyFile(new File(dir, "muc-history.rows"), rowsFile);
+		if (delegate instanceof AbstractJDBCHistoryProvider) {
+			((AbstractJDBCHistoryProvider) delegate).setWriterSpoolFile(rowsFile);
+		}
+
+		// operations left by previous instance are replayed before new ones
+		this.spooling = spoolFile.exists() || spoolDrainFile.exists();
+		this.spoolFileRecords = spoolFile.exists() ? -1 : 0;
+		if (spooling) {
+			log.info("Found history spool files in " + dir.getAbsolutePath() + ", replaying");
+		}
+		worker.start();
+	}
+
+	@Override
+	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
+		delegate.addJoinEvent(room, date, senderJID, nickName);
+	}
+
+	@Override
+	public void addLeaveEvent(Room room, Date date, JID senderJID, String nickName) {
+		delegate.addLeaveEvent(room, date, senderJID, nickName);
+	}
+
+	@Override
+	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time) {
+		enqueue(new MessageTask(room, room.getRoomJID(), room.getConfig().isLoggingEnabled(), false, message, body,
+				senderJid, senderNickname, time));
+	}
+
+	@Override
+	public void addSubjectChange(Room room, Element message, String subject, JID senderJid, String senderNickname,
+			Date time) {
+		enqueue(new MessageTask(room, room.getRoomJID(), room.getConfig().isLoggingEnabled(), true, message, subject,
+				senderJid, senderNickname, time));
+	}
+
+	private void appendToSpool(Task task) throws IOException {
+		if (spoolWriter == null) {
+			spoolWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile, true)));
+		}
+		spoolWriter.writeByte(task.getType());
+		spoolWriter.writeUTF(task.roomJID.toString());
+		spoolWriter.writeBoolean(task.loggingEnabled);
+		task.write(spoolWriter);
+		spoolWriter.flush();
+		if (spoolFileRecords >= 0) {
+			++spoolFileRecords;
+		}
+		spooled.incrementAndGet();
+		spoolPending.incrementAndGet();
+	}
+
+	private void closeSpoolWriter() {
+		if (spoolWriter != null) {
+			try {
+				spoolWriter.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Can't close history spool file", e);
+			}
+			spoolWriter = null;
+		}
+	}
+
+	/**
+	 * Stops worker thread. Operations still waiting in queue are moved to
+	 * spool file.
+	 */
+	@Override
+	public void destroy() {
+		running = false;
+		worker.interrupt();
+		try {
+			worker.join(10000);
+		} catch (InterruptedException e) {
+		}
+		synchronized (lock) {
+			List<Task> rest = new ArrayList<Task>();
+			if (unfinished != null) {
+				rest.add(unfinished);
+				unfinished = null;
+			}
+			queue.drainTo(rest);
+			try {
+				// queued operations are older than spooled ones
+				if (!rest.isEmpty() && spoolFile.exists()) {
+					File tmp = new File(spoolFile.getParentFile(), spoolFile.getName() + ".tmp");
+					closeSpoolWriter();
+					if (spoolFile.renameTo(tmp)) {
+						for (Task task : rest) {
+							appendToSpool(task);
+						}
+						copyRecords(tmp);
+						tmp.delete();
+					}
+				} else {
+					for (Task task : rest) {
+						appendToSpool(task);
+					}
+				}
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Can't save " + rest.size() + " history operations to spool", e);
+			}
+			closeSpoolWriter();
+		}
+		delegate.destroy();
+	}
+
+	private void copyRecords(File source) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+		try {
+			Task task;
+			while ((task = readTask(in)) != null) {
+				appendToSpool(task);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replays drain file. If there is no drain file, spool file is rotated
+	 * to drain file, or moved to queue if it fits there; then spooling ends.
+	 * Must be called by worker only when queue is empty.
+	 */
+	private void drainSpool() {
+		File toDrain;
+		synchronized (lock) {
+			if (!spooling) {
+				return;
+			}
+			if (!spoolDrainFile.exists()) {
+				closeSpoolWriter();
+				if (!spoolFile.exists() || spoolFile.length() == 0) {
+					spoolFile.delete();
+					stopSpooling();
+					return;
+				}
+				if (spoolFileRecords >= 0 && spoolFileRecords <= queue.remainingCapacity() && moveSpoolToQueue()) {
+					stopSpooling();
+					return;
+				}
+				if (!spoolFile.renameTo(spoolDrainFile)) {
+					log.warning("Can't rotate history spool file " + spoolFile.getAbsolutePath());
+					return;
+				}
+				spoolFileRecords = 0;
+			}
+			toDrain = spoolDrainFile;
+		}
+
+		try {
+			final long offset = readDrainOffset();
+			final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(
+					toDrain)));
+			DataInputStream in = new DataInputStream(counter);
+			RandomAccessFile offsetOut = null;
+			try {
+				while (counter.getCount() < offset) {
+					if (in.skip(offset - counter.getCount()) <= 0) {
+						break;
+					}
+				}
+				if (offset > 0) {
+					log.info("Resuming replay of history spool file " + toDrain.getAbsolutePath() + " at " + offset);
+				}
+				offsetOut = new RandomAccessFile(spoolDrainOffsetFile, "rw");
+				Task task;
+				while (running && (task = readTask(in)) != null) {
+					if (!executeWithRetry(task)) {
+						break;
+					}
+					spoolPending.decrementAndGet();
+					offsetOut.seek(0);
+					offsetOut.writeLong(counter.getCount());
+				}
+			} finally {
+				in.close();
+				if (offsetOut != null) {
+					offsetOut.close();
+				}
+			}
+			if (running) {
+				toDrain.delete();
+				spoolDrainOffsetFile.delete();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Can't read history spool file " + toDrain.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Moves operations from spool file to queue, keeping their order. Must be
+	 * called under {@linkplain #lock} when queue has room for all of them.
+	 * 
+	 * @return <code>false</code> if spool file can't be read; it is kept.
+	 */
+	private boolean moveSpoolToQueue() {
+		final List<Task> tasks = new ArrayList<Task>();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile)));
+			try {
+				Task task;
+				while ((task = readTask(in)) != null) {
+					tasks.add(task);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Can't move history spool file to queue, replaying it", e);
+			return false;
+		}
+		for (Task task : tasks) {
+			queue.offer(task);
+		}
+		spoolFile.delete();
+		return true;
+	}
+
+	/**
+	 * Switches back to queue. Must be called under {@linkplain #lock}.
+	 */
+	private void stopSpooling() {
+		spooling = false;
+		spoolFileRecords = 0;
+		spoolPending.set(0);
+		log.info("History spool drained");
+	}
+
+	/**
+	 * @return position in drain file after the last executed operation.
+	 */
+	private long readDrainOffset() {
+		if (!spoolDrainOffsetFile.exists() || spoolDrainOffsetFile.length() < 8) {
+			return 0;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(spoolDrainOffsetFile));
+			try {
+				return in.readLong();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Can't read history spool offset, replaying from start", e);
+			return 0;
+		}
+	}
+
+	private static void renameLegacyFile(File legacy, File file) {
+		if (legacy.exists() && !file.exists() && legacy.renameTo(file)) {
+			log.info("Renamed history spool file " + legacy.getAbsolutePath() + " to " + file.getName());
+		}
+	}
+
+	private void enqueue(Task task) {
+		synchronized (lock) {
+			if (!spooling && queue.offer(task)) {
+				return;
+			}
+			if (!spooling) {
+				log.warning("History queue is full, spooling to " + spoolFile.getAbsolutePath());
+				spooling = true;
+			}
+			try {
+				appendToSpool(task);
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				log.log(Level.SEVERE, "Can't write history to spool, operation lost", e);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if delegate is overloaded and operation
+	 *         should be retried.
+	 */
+	private boolean execute(Task task) {
+		try {
+			Room room = task.room == null ? findRoom(task) : task.room;
+			task.execute(delegate, room);
+			processed.incrementAndGet();
+		} catch (HistoryOverloadException e) {
+			overloads.incrementAndGet();
+			return false;
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			log.log(Level.WARNING, "Can't store history of room " + task.roomJID, e);
+		}
+		lag = System.currentTimeMillis() - task.enqueued;
+		return true;
+	}
+
+	/**
+	 * Executes operation, waiting while delegate is overloaded. New
+	 * operations are spooled in meantime, when queue is full.
+	 * 
+	 * @return <code>false</code> if worker was stopped before operation was
+	 *         executed.
+	 */
+	private boolean executeWithRetry(Task task) {
+		while (!execute(task)) {
+			if (!running) {
+				return false;
+			}
+			try {
+				Thread.sleep(OVERLOAD_RETRY_DELAY);
+			} catch (InterruptedException e) {
+				// checking if we are still running
+			}
+		}
+		return true;
+	}
+
+	private Room findRoom(Task task) {
+		Room room = context.getMucRepository() == null ? null : context.getMucRepository().getActiveRooms().get(
+				task.roomJID);
+		if (room == null) {
+			// room is not loaded, so we use room with default configuration
+			RoomConfig rc = new RoomConfig(task.roomJID);
+			rc.setValue(RoomConfig.MUC_ROOMCONFIG_ENABLELOGGING_KEY, task.loggingEnabled);
+			room = Room.newInstance(rc, new Date(), null);
+		}
+		return room;
+	}
+
+	public HistoryProvider getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
+			Date since, PacketWriter writer) {
+		delegate.getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
+	}
+
+	@Override
+	public boolean queryArchive(Room room, JID senderJID, ArchiveQuery query, ArchiveQuery.Handler handler) {
+		return delegate.queryArchive(room, senderJID, query, handler);
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "History queue size", queue.size(), Level.FINE);
+		list.add(compName, "History spool pending", spoolPending.get(), Level.FINE);
+		list.add(compName, "History spooled operations", spooled.get(), Level.FINE);
+		list.add(compName, "History lag [ms]", lag, Level.FINE);
+		list.add(compName, "History stored operations", processed.get(), Level.FINE);
+		list.add(compName, "History errors", errors.get(), Level.FINE);
+		list.add(compName, "History provider overloads", overloads.get(), Level.FINE);
+		if (delegate instanceof StatisticsProvider) {
+			((StatisticsProvider) delegate).getStatistics(compName, list);
+		}
+	}
+
+	@Override
+	public void init(Map<String, Object> props) {
+		delegate.init(props);
+	}
+
+	@Override
+	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+		delegate.initRepository(resource_uri, params);
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return delegate.isPersistent();
+	}
+
+	private Task readTask(DataInputStream in) throws IOException {
+		final byte type;
+		try {
+			type = in.readByte();
+		} catch (EOFException e) {
+			return null;
+		}
+		try {
+			final BareJID roomJID = BareJID.bareJIDInstanceNS(in.readUTF());
+			final boolean loggingEnabled = in.readBoolean();
+			switch (type) {
+			case TYPE_MESSAGE:
+			case TYPE_SUBJECT:
+				Element message = parse(readString(in));
+				String body = readString(in);
+				String senderJid = readString(in);
+				String senderNickname = readString(in);
+				long time = in.readLong();
+				return new MessageTask(null, roomJID, loggingEnabled, type == TYPE_SUBJECT, message, body,
+						senderJid == null ? null : JID.jidInstanceNS(senderJid), senderNickname, time == -1 ? null
+								: new Date(time));
+			case TYPE_REMOVE:
+				return new RemoveTask(null, roomJID);
+			default:
+				throw new IOException("Unknown spool record type " + type);
+			}
+		} catch (EOFException e) {
+			log.warning("Truncated record in history spool file, skipping rest");
+			return null;
+		}
+	}
+
+	@Override
+	public void removeHistory(Room room) {
+		enqueue(new RemoveTask(room, room.getRoomJID()));
+	}
+
+}
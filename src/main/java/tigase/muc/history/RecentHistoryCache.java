@@ -0,0 +1,333 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import tigase.muc.StatisticsProvider;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+
+/**
+ * Cache of recent history of rooms. For each cached room it keeps the last
+ * messages (up to room <code>max history</code>) in ring buffer, so history
+ * requested by joining occupant can be served without database query.
+ * 
+ * Room is loaded to cache on first read and then new messages are appended
+ * on write. Total size of cached messages is limited, and least recently used
+ * rooms are evicted when limit is exceeded.
+ */
+public class RecentHistoryCache implements StatisticsProvider {
+
+	/**
+	 * Cached history message.
+	 */
+	public static final class Item {
+
+		public final String body;
+
+		public final String msg;
+
+		/**
+		 * Parsed message, created on first replay.
+		 */
+		volatile ParsedHistoryMessage parsed;
+
+		public final String senderJid;
+
+		public final String senderNickname;
+
+		final int size;
+
+		public final long timestamp;
+
+		public Item(long timestamp, String senderNickname, String senderJid, String body, String msg) {
+			this.timestamp = timestamp;
+			this.senderNickname = senderNickname;
+			this.senderJid = senderJid;
+			this.body = body;
+			this.msg = msg;
+			// parsed variants of message are included in estimation
+			this.size = 64 + 2 * (length(senderNickname) + length(senderJid) + length(body) + length(msg)) + 8
+					* (msg == null ? length(body) : length(msg));
+		}
+
+		boolean same(Item o) {
+			return timestamp == o.timestamp && eq(senderNickname, o.senderNickname) && eq(body, o.body);
+		}
+	}
+
+	/**
+	 * Ring buffer with recent history of single room. Access is guarded by
+	 * cache lock.
+	 */
+	private static final class RoomHistory {
+
+		private long bytes;
+
+		private int count;
+
+		/**
+		 * Messages appended while room was being loaded from database.
+		 */
+		private List<Item> pending;
+
+		private final Item[] ring;
+
+		private int start;
+
+		RoomHistory(int capacity) {
+			this.ring = new Item[capacity];
+		}
+
+		/**
+		 * @return change of size in bytes.
+		 */
+		long add(Item item) {
+			long delta = item.size;
+			if (count == ring.length) {
+				delta -= ring[start].size;
+				ring[start] = item;
+				start = (start + 1) % ring.length;
+			} else {
+				ring[(start + count) % ring.length] = item;
+				++count;
+			}
+			bytes += delta;
+			return delta;
+		}
+
+		Item get(int i) {
+			return ring[(start + i) % ring.length];
+		}
+	}
+
+	private static boolean eq(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static int length(String s) {
+		return s == null ? 0 : s.length();
+	}
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private volatile long maxBytes;
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final LinkedHashMap<BareJID, RoomHistory> rooms = new LinkedHashMap<BareJID, RoomHistory>(16, 0.75f, true);
+
+	private long totalBytes;
+
+	/**
+	 * @param maxBytes
+	 *            estimated memory limit of cache.
+	 */
+	public RecentHistoryCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Appends message to cached history of room. If room is not cached,
+	 * nothing is done.
+	 * 
+	 * @param roomJID
+	 * @param item
+	 */
+	public void append(BareJID roomJID, Item item) {
+		synchronized (rooms) {
+			RoomHistory h = rooms.get(roomJID);
+			if (h == null) {
+				return;
+			}
+			if (h.pending != null) {
+				h.pending.add(item);
+			} else {
+				totalBytes += h.add(item);
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * Marks room as being loaded. Messages appended until
+	 * {@linkplain #finishLoading(BareJID, int, List) finishLoading()} are kept
+	 * aside and merged with loaded ones.
+	 * 
+	 * @param roomJID
+	 * @return <code>false</code> if room is already being loaded by other
+	 *         thread.
+	 */
+	public boolean startLoading(BareJID roomJID) {
+		synchronized (rooms) {
+			RoomHistory h = rooms.get(roomJID);
+			if (h != null && h.pending != null) {
+				return false;
+			}
+			if (h != null) {
+				totalBytes -= h.bytes;
+			}
+			RoomHistory loading = new RoomHistory(1);
+			loading.pending = new ArrayList<Item>();
+			rooms.put(roomJID, loading);
+			return true;
+		}
+	}
+
+	/**
+	 * Stores messages loaded from database, merged with messages appended
+	 * during loading.
+	 * 
+	 * @param roomJID
+	 * @param capacity
+	 *            number of messages kept for room.
+	 * @param loaded
+	 *            loaded messages, ordered from the oldest.
+	 */
+	public void finishLoading(BareJID roomJID, int capacity, List<Item> loaded) {
+		synchronized (rooms) {
+			RoomHistory loading = rooms.get(roomJID);
+			if (loading == null || loading.pending == null) {
+				// room was removed in meantime
+				return;
+			}
+			RoomHistory h = new RoomHistory(Math.max(1, capacity));
+			for (Item i : loaded) {
+				h.add(i);
+			}
+			for (Item i : loading.pending) {
+				boolean known = false;
+				for (int j = h.count - 1; j >= 0 && h.get(j).timestamp >= i.timestamp; j--) {
+					if (h.get(j).same(i)) {
+						known = true;
+						break;
+					}
+				}
+				if (!known) {
+					h.add(i);
+				}
+			}
+			rooms.put(roomJID, h);
+			totalBytes += h.bytes;
+			evict();
+		}
+	}
+
+	/**
+	 * Cancels loading started by {@linkplain #startLoading(BareJID)}.
+	 * 
+	 * @param roomJID
+	 */
+	public void cancelLoading(BareJID roomJID) {
+		synchronized (rooms) {
+			RoomHistory h = rooms.get(roomJID);
+			if (h != null && h.pending != null) {
+				rooms.remove(roomJID);
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<RoomHistory> it = rooms.values().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			RoomHistory h = it.next();
+			if (h.pending != null) {
+				continue;
+			}
+			it.remove();
+			totalBytes -= h.bytes;
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the last messages of room.
+	 * 
+	 * @param roomJID
+	 * @param limit
+	 *            maximum number of messages. Cached history must hold at least
+	 *            so many messages (or all messages of room).
+	 * @return messages ordered from the oldest or <code>null</code> if room
+	 *         is not cached or cache can't cover request.
+	 */
+	public List<Item> getRecent(BareJID roomJID, int limit) {
+		synchronized (rooms) {
+			RoomHistory h = rooms.get(roomJID);
+			if (h == null || h.pending != null || h.ring.length < limit) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			final int n = Math.min(limit, h.count);
+			List<Item> result = new ArrayList<Item>(n);
+			for (int i = h.count - n; i < h.count; i++) {
+				result.add(h.get(i));
+			}
+			return result;
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		final long h = hits.get();
+		final long m = misses.get();
+		list.add(compName, "History cache hits", h, Level.FINE);
+		list.add(compName, "History cache misses", m, Level.FINE);
+		list.add(compName, "History cache hit rate [%]", h + m == 0 ? 0f : (h * 100f / (h + m)), Level.FINE);
+		list.add(compName, "History cache evictions", evictions.get(), Level.FINE);
+		synchronized (rooms) {
+			list.add(compName, "History cache rooms", rooms.size(), Level.FINE);
+			list.add(compName, "History cache size [bytes]", totalBytes, Level.FINE);
+		}
+	}
+
+	/**
+	 * Removes room from cache.
+	 * 
+	 * @param roomJID
+	 */
+	public void remove(BareJID roomJID) {
+		synchronized (rooms) {
+			RoomHistory h = rooms.remove(roomJID);
+			if (h != null) {
+				totalBytes -= h.bytes;
+			}
+		}
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		synchronized (rooms) {
+			this.maxBytes = maxBytes;
+			evict();
+		}
+	}
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocator of blocks in direct byte buffers (slabs). Every slab is divided
+ * into blocks of one size class (powers of two starting from
+ * {@value #MIN_BLOCK_SIZE} bytes). Slab with all blocks freed is returned to
+ * pool and may be reused by any size class. Memory is allocated up to given
+ * limit, JVM option <code>-XX:MaxDirectMemorySize</code> must allow it.
+ * 
+ * Handle of block is <code>slab index &lt;&lt; 32 | offset</code>. All
+ * methods are synchronized; content of allocated block may be accessed
+ * concurrently by its owner.
+ */
+final class SlabAllocator {
+
+	private static final class Slab {
+
+		int blockSize;
+
+		final ByteBuffer buffer;
+
+		int freeCount;
+
+		int[] freeOffsets;
+
+		final int index;
+
+		boolean inPartial;
+
+		int live;
+
+		/**
+		 * Offset of first block never allocated.
+		 */
+		int next;
+
+		Slab(int index, int size) {
+			this.index = index;
+			this.buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		boolean isFull() {
+			return freeCount == 0 && next + blockSize > buffer.capacity();
+		}
+	}
+
+	static final int MIN_BLOCK_SIZE = 64;
+
+	private long allocatedBlocks;
+
+	private long allocatedBytes;
+
+	private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<Slab>();
+
+	private long failures;
+
+	private final int maxSlabs;
+
+	/**
+	 * Slabs with free blocks, by size class.
+	 */
+	private final List<ArrayDeque<Slab>> partialSlabs = new ArrayList<ArrayDeque<Slab>>();
+
+	private final int slabSize;
+
+	private final List<Slab> slabs = new ArrayList<Slab>();
+
+	/**
+	 * @param slabSize
+	 *            size of single slab in bytes.
+	 * @param limit
+	 *            maximum memory used by all slabs in bytes.
+	 */
+	SlabAllocator(int slabSize, long limit) {
+		this.slabSize = Math.max(slabSize, MIN_BLOCK_SIZE);
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, Math.max(1, limit / this.slabSize));
+		for (int size = MIN_BLOCK_SIZE; size <= this.slabSize; size <<= 1) {
+			partialSlabs.add(new ArrayDeque<Slab>());
+		}
+	}
+
+	/**
+	 * Allocates block at least of given size.
+	 * 
+	 * @return handle of block or <code>-1</code> if there is no free memory.
+	 */
+	synchronized long allocate(int size) {
+		final int sizeClass = sizeClass(size);
+		if (sizeClass >= partialSlabs.size()) {
+			++failures;
+			return -1;
+		}
+		final ArrayDeque<Slab> partial = partialSlabs.get(sizeClass);
+		Slab slab = partial.peekFirst();
+		if (slab == null) {
+			slab = emptySlabs.pollFirst();
+			if (slab == null) {
+				if (slabs.size() >= maxSlabs) {
+					++failures;
+					return -1;
+				}
+				slab = new Slab(slabs.size(), slabSize);
+				slabs.add(slab);
+			}
+			slab.blockSize = MIN_BLOCK_SIZE << sizeClass;
+			slab.freeOffsets = new int[slabSize / slab.blockSize];
+			slab.freeCount = 0;
+			slab.next = 0;
+			slab.inPartial = true;
+			partial.addFirst(slab);
+		}
+
+		final int offset;
+		if (slab.freeCount > 0) {
+			offset = slab.freeOffsets[--slab.freeCount];
+		} else {
+			offset = slab.next;
+			slab.next += slab.blockSize;
+		}
+		++slab.live;
+		if (slab.isFull()) {
+			partial.pollFirst();
+			slab.inPartial = false;
+		}
+		++allocatedBlocks;
+		allocatedBytes += slab.blockSize;
+		return ((long) slab.index << 32) | offset;
+	}
+
+	/**
+	 * @return <code>true</code> if block of given size may be allocated now.
+	 */
+	synchronized boolean canAllocate(int size) {
+		final int sizeClass = sizeClass(size);
+		if (sizeClass >= partialSlabs.size()) {
+			return false;
+		}
+		return !partialSlabs.get(sizeClass).isEmpty() || !emptySlabs.isEmpty() || slabs.size() < maxSlabs;
+	}
+
+	/**
+	 * @return buffer with position and limit set to block content.
+	 */
+	ByteBuffer buffer(long handle, int length) {
+		final Slab slab;
+		synchronized (this) {
+			slab = slabs.get((int) (handle >>> 32));
+		}
+		final int offset = (int) handle;
+		ByteBuffer b = slab.buffer.duplicate();
+		b.limit(offset + length);
+		b.position(offset);
+		return b;
+	}
+
+	/**
+	 * Returns block to allocator.
+	 */
+	synchronized void free(long handle) {
+		final Slab slab = slabs.get((int) (handle >>> 32));
+		--slab.live;
+		--allocatedBlocks;
+		allocatedBytes -= slab.blockSize;
+		final ArrayDeque<Slab> partial = partialSlabs.get(sizeClass(slab.blockSize));
+		if (slab.live == 0) {
+			if (slab.inPartial) {
+				partial.remove(slab);
+			}
+			slab.inPartial = false;
+			slab.freeOffsets = null;
+			emptySlabs.addFirst(slab);
+			return;
+		}
+		slab.freeOffsets[slab.freeCount++] = (int) handle;
+		if (!slab.inPartial) {
+			slab.inPartial = true;
+			partial.addLast(slab);
+		}
+	}
+
+	synchronized long getAllocatedBlocks() {
+		return allocatedBlocks;
+	}
+
+	/**
+	 * @return bytes in allocated blocks.
+	 */
+	synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return number of failed allocations.
+	 */
+	synchronized long getFailures() {
+		return failures;
+	}
+
+	int getMaxBlockSize() {
+		return MIN_BLOCK_SIZE << (partialSlabs.size() - 1);
+	}
+
+	/**
+	 * @return direct memory reserved by slabs in bytes.
+	 */
+	synchronized long getReservedBytes() {
+		return (long) slabs.size() * slabSize;
+	}
+
+	synchronized int getEmptySlabs() {
+		return emptySlabs.size();
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= MIN_BLOCK_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE);
+	}
+
+	/**
+	 * Writes data to block.
+	 */
+	void write(long handle, byte[] data) {
+		ByteBuffer b = buffer(handle, data.length);
+		b.put(data);
+	}
+
+}
@@ -22,7 +22,6 @@
 package tigase.muc.history;
 
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Date;
@@ -30,7 +29,6 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import tigase.component.PacketWriter;
 import tigase.db.DataRepository;
 import tigase.db.Repository;
 import tigase.muc.Room;
@@ -51,7 +49,22 @@ public class SqlserverSqlHistoryProvider extends AbstractJDBCHistoryProvider {
 			+ "sender_jid nvarchar(2049),\n" + "sender_nickname nvarchar(128),\n" + "body text,\n" + "public_event bit,\n "
 			+ "msg text " + ")";
 
-	public static final String DELETE_MESSAGES_QUERY_VAL = "delete from muc_history where room_name=?";
+	/**
+	 * Schema upgrades, see {@linkplain #upgradeSchema(String[][], boolean)}.
+	 */
+	private static final String[][] SCHEMA_UPGRADES = {
+			// index build blocks writes
+			{ OFFLINE_UPGRADE, "create index " + HISTORY_INDEX_NAME + " on muc_history (room_name, timestamp)" },
+			{ OFFLINE_UPGRADE, "create index " + HISTORY_TS_INDEX_NAME + " on muc_history (timestamp)" },
+			{ OFFLINE_UPGRADE, "alter table muc_history add id bigint identity(1,1)" } };
+
+	public static final String DELETE_EXPIRED_QUERY_VAL = "delete top (?) from muc_history where timestamp < ?";
+
+	public static final String DELETE_MESSAGES_QUERY_VAL = "delete top (?) from muc_history where room_name=? and (timestamp is null or timestamp <= ?)";
+
+	public static final String GET_ARCHIVE_LAST_QUERY_VAL = "select top (?) id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp desc, id desc";
+
+	public static final String GET_ARCHIVE_QUERY_VAL = "select top (?) id, timestamp, sender_jid, sender_nickname, body, msg from muc_history where room_name=? and timestamp >= ? and timestamp <= ? and (timestamp > ? or id > ?) and (timestamp < ? or id < ?) order by timestamp, id";
 
 	public static final String GET_MESSAGES_MAXSTANZAS_QUERY_VAL = "select room_name, event_type, timestamp, sender_jid, sender_nickname, body, msg from (select top (?) * from muc_history where room_name=? order by timestamp desc  ) AS t order by t.timestamp";
 
@@ -86,77 +99,6 @@ public class SqlserverSqlHistoryProvider extends AbstractJDBCHistoryProvider {
 
 	}
 
-	/** {@inheritDoc} */
-	@Override
-	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds, Date since,
-			PacketWriter writer) {
-		ResultSet rs = null;
-		final String roomJID = room.getRoomJID().toString();
-
-		int maxMessages = room.getConfig().getMaxHistory();
-		try {
-			if (since != null) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Using SINCE selector: roomJID=" + roomJID + ", since=" + since.getTime() + " (" + since + ")");
-				}
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(), GET_MESSAGES_SINCE_QUERY_KEY);
-				synchronized (st) {
-					st.setInt(1, maxMessages);
-					st.setString(2, roomJID);
-					st.setLong(3, since.getTime());
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, rs);
-				}
-			} else if (maxstanzas != null) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Using MAXSTANZAS selector: roomJID=" + roomJID + ", maxstanzas=" + maxstanzas);
-				}
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
-						GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
-				synchronized (st) {
-					st.setInt(1, Math.min(maxstanzas, maxMessages));
-					st.setString(2, roomJID);
-					System.out.println("getHistoryMessages: " + st + " || \t " + GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, rs);
-				}
-			} else if (seconds != null) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Using SECONDS selector: roomJID=" + roomJID + ", seconds=" + seconds);
-				}
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(), GET_MESSAGES_SINCE_QUERY_KEY);
-				synchronized (st) {
-					st.setInt(1, maxMessages);
-					st.setString(2, roomJID);
-					st.setLong(3, new Date().getTime() - seconds * 1000);
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, rs);
-				}
-			} else {
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Using DEFAULT selector: roomJID=" + roomJID);
-				}
-				PreparedStatement st = dataRepository.getPreparedStatement(senderJID.getBareJID(),
-						GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
-				synchronized (st) {
-					st.setInt(1, maxMessages);
-					st.setString(2, roomJID);
-					System.out.println("getHistoryMessages: " + st.toString() + " max " + maxMessages + " roomJID " + roomJID
-							+ " || \t " + GET_MESSAGES_MAXSTANZAS_QUERY_KEY);
-					rs = st.executeQuery();
-					processResultSet(room, senderJID, writer, rs);
-				}
-			}
-
-		} catch (Exception e) {
-			if (log.isLoggable(Level.SEVERE))
-				log.log(Level.SEVERE, "Can't get history", e);
-			throw new RuntimeException(e);
-		} finally {
-			dataRepository.release(null, rs);
-		}
-	}
-
 	/** {@inheritDoc} */
 	@Override
 	public void init(Map<String, Object> props) {
@@ -181,13 +123,70 @@ public class SqlserverSqlHistoryProvider extends AbstractJDBCHistoryProvider {
 				throw new RuntimeException(e1);
 			}
 		}
+		verifyQueryPlans(null, GET_MESSAGES_MAXSTANZAS_QUERY_VAL, GET_MESSAGES_SINCE_QUERY_VAL);
+		initRecordFormat(props);
+		initGroupCommit(props);
+		initHistoryCache(props);
+		initPurger(props);
 	}
 
 	private void internalInit() throws SQLException {
+		upgradeSchema(SCHEMA_UPGRADES, false);
+
 		this.dataRepository.initPreparedStatement(ADD_MESSAGE_QUERY_KEY, ADD_MESSAGE_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(DELETE_MESSAGES_QUERY_KEY, DELETE_MESSAGES_QUERY_VAL);
+		this.dataRepository.initPreparedStatement(DELETE_EXPIRED_QUERY_KEY, DELETE_EXPIRED_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_SINCE_QUERY_KEY, GET_MESSAGES_SINCE_QUERY_VAL);
 		this.dataRepository.initPreparedStatement(GET_MESSAGES_MAXSTANZAS_QUERY_KEY, GET_MESSAGES_MAXSTANZAS_QUERY_VAL);
+		if (isArchiveSupported()) {
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_QUERY_KEY, GET_ARCHIVE_QUERY_VAL);
+			this.dataRepository.initPreparedStatement(GET_ARCHIVE_LAST_QUERY_KEY, GET_ARCHIVE_LAST_QUERY_VAL);
+		}
+	}
+
+	@Override
+	protected String[][] getSchemaUpgrades() {
+		return SCHEMA_UPGRADES;
+	}
+
+	@Override
+	protected void setArchiveParameters(PreparedStatement st, String roomJID, ArchiveQuery query, int limit)
+			throws SQLException {
+		st.setInt(1, limit);
+		st.setString(2, roomJID);
+		st.setLong(3, query.getLowTimestamp());
+		st.setLong(4, query.getHighTimestamp());
+		st.setLong(5, query.getLowTimestamp());
+		st.setLong(6, query.getLowId());
+		st.setLong(7, query.getHighTimestamp());
+		st.setLong(8, query.getHighId());
+	}
+
+	@Override
+	protected void setDeleteMessagesParameters(PreparedStatement st, String roomJID, long before, int limit)
+			throws SQLException {
+		st.setInt(1, limit);
+		st.setString(2, roomJID);
+		st.setLong(3, before);
+	}
+
+	@Override
+	protected void setExpiredParameters(PreparedStatement st, long before, int limit) throws SQLException {
+		st.setInt(1, limit);
+		st.setLong(2, before);
+	}
+
+	@Override
+	protected void setMaxStanzasParameters(PreparedStatement st, String roomJID, int limit) throws SQLException {
+		st.setInt(1, limit);
+		st.setString(2, roomJID);
+	}
+
+	@Override
+	protected void setSinceParameters(PreparedStatement st, String roomJID, long since, int limit) throws SQLException {
+		st.setInt(1, limit);
+		st.setString(2, roomJID);
+		st.setLong(3, since);
 	}
 
 }
@@ -0,0 +1,374 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.muc.StatisticsProvider;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * Sampled audit of room fan-out. For sampled stanzas caller passes raw values
+ * (room, sender, number of recipients, size and timings) and single
+ * background thread formats them as JSON lines and writes to file. File is
+ * rotated when it reaches configured size.
+ * 
+ * Sampling rate may be configured globally and overridden per room.
+ */
+public class DeliveryAudit implements StatisticsProvider {
+
+	private static final class Record {
+
+		private final int bytes;
+
+		private final long fanoutMicros;
+
+		private final long prepareMicros;
+
+		private final int recipients;
+
+		private final BareJID room;
+
+		private final JID sender;
+
+		private final long time = System.currentTimeMillis();
+
+		private final String type;
+
+		Record(String type, BareJID room, JID sender, int recipients, int bytes, long prepareMicros, long fanoutMicros) {
+			this.type = type;
+			this.room = room;
+			this.sender = sender;
+			this.recipients = recipients;
+			this.bytes = bytes;
+			this.prepareMicros = prepareMicros;
+			this.fanoutMicros = fanoutMicros;
+		}
+	}
+
+	private class Worker extends Thread {
+
+		Worker() {
+			super("muc-delivery-audit");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			final StringBuilder sb = new StringBuilder(256);
+			while (running || !queue.isEmpty()) {
+				try {
+					Record r = queue.poll(1, TimeUnit.SECONDS);
+					if (r == null) {
+						if (out != null) {
+							out.flush();
+						}
+						continue;
+					}
+					sb.setLength(0);
+					format(r, sb);
+					write(sb);
+				} catch (InterruptedException e) {
+					// checking if we are still running
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Can't write delivery audit to " + file, e);
+					closeFile();
+				}
+			}
+			closeFile();
+		}
+	}
+
+	public static final String DELIVERY_AUDIT_ENABLED_KEY = "delivery-audit-enabled";
+
+	public static final String DELIVERY_AUDIT_FILE_KEY = "delivery-audit-file";
+
+	public static final String DELIVERY_AUDIT_MAX_FILE_SIZE_KEY = "delivery-audit-max-file-size";
+
+	public static final String DELIVERY_AUDIT_MAX_FILES_KEY = "delivery-audit-max-files";
+
+	public static final String DELIVERY_AUDIT_ROOM_SAMPLE_RATES_KEY = "delivery-audit-room-sample-rates";
+
+	public static final String DELIVERY_AUDIT_SAMPLE_RATE_KEY = "delivery-audit-sample-rate";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Logger log = Logger.getLogger(DeliveryAudit.class.getName());
+
+	private static void appendString(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Parses per room sampling rates in form
+	 * <code>room1@service=0.5,room2@service=1</code>.
+	 */
+	static Map<BareJID, Double> parseRoomRates(String value) {
+		Map<BareJID, Double> result = new HashMap<BareJID, Double>();
+		if (value == null) {
+			return result;
+		}
+		for (String item : value.split(",")) {
+			item = item.trim();
+			int idx = item.lastIndexOf('=');
+			if (idx <= 0) {
+				continue;
+			}
+			try {
+				result.put(BareJID.bareJIDInstanceNS(item.substring(0, idx).trim()),
+						Double.valueOf(item.substring(idx + 1).trim()));
+			} catch (NumberFormatException e) {
+				log.warning("Invalid delivery audit sample rate: " + item);
+			}
+		}
+		return result;
+	}
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean enabled = false;
+
+	private File file = new File("./logs/muc-delivery-audit.log");
+
+	private long fileSize;
+
+	private int maxFiles = 5;
+
+	private long maxFileSize = 10 * 1024 * 1024;
+
+	private Writer out;
+
+	private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(10000);
+
+	private volatile Map<BareJID, Double> roomRates = new HashMap<BareJID, Double>();
+
+	private volatile boolean running;
+
+	private volatile double sampleRate = 0.01;
+
+	private Worker worker;
+
+	private final AtomicLong written = new AtomicLong();
+
+	private void closeFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Can't close delivery audit file " + file, e);
+			}
+			out = null;
+		}
+	}
+
+	private void format(Record r, StringBuilder sb) {
+		sb.append("{\"ts\":").append(r.time);
+		sb.append(",\"type\":");
+		appendString(sb, r.type);
+		sb.append(",\"room\":");
+		appendString(sb, r.room.toString());
+		sb.append(",\"sender\":");
+		appendString(sb, r.sender == null ? "" : r.sender.toString());
+		sb.append(",\"recipients\":").append(r.recipients);
+		sb.append(",\"bytes\":").append(r.bytes);
+		sb.append(",\"prepare_us\":").append(r.prepareMicros);
+		sb.append(",\"fanout_us\":").append(r.fanoutMicros);
+		sb.append("}\n");
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Delivery audit records", written.get(), Level.FINE);
+		list.add(compName, "Delivery audit dropped records", dropped.get(), Level.FINE);
+		list.add(compName, "Delivery audit queue size", queue.size(), Level.FINEST);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Decides if fan-out in room should be audited. Should be called before
+	 * values for {@linkplain #record(String, BareJID, JID, int, int, long, long)
+	 * record()} are calculated, so nothing is computed for not sampled stanzas.
+	 * 
+	 * @param roomJID
+	 * @return <code>true</code> if fan-out should be recorded.
+	 */
+	public boolean isSampled(BareJID roomJID) {
+		if (!enabled) {
+			return false;
+		}
+		Double rate = roomRates.get(roomJID);
+		double r = rate == null ? sampleRate : rate;
+		return r >= 1 || (r > 0 && ThreadLocalRandom.current().nextDouble() < r);
+	}
+
+	/**
+	 * Queues audit record. If queue is full, record is dropped.
+	 * 
+	 * @param type
+	 *            type of stanza.
+	 * @param roomJID
+	 *            room address.
+	 * @param sender
+	 *            room JID of sender.
+	 * @param recipients
+	 *            number of recipients.
+	 * @param bytes
+	 *            size of single copy of stanza payload.
+	 * @param prepareMicros
+	 *            time spent on preparing list of recipients.
+	 * @param fanoutMicros
+	 *            time spent on building and handing off packets.
+	 */
+	public void record(String type, BareJID roomJID, JID sender, int recipients, int bytes, long prepareMicros,
+			long fanoutMicros) {
+		if (!queue.offer(new Record(type, roomJID, sender, recipients, bytes, prepareMicros, fanoutMicros))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void rotate() throws IOException {
+		closeFile();
+		for (int i = maxFiles - 1; i > 0; i--) {
+			File src = new File(file.getPath() + "." + i);
+			if (src.exists()) {
+				File dst = new File(file.getPath() + "." + (i + 1));
+				dst.delete();
+				src.renameTo(dst);
+			}
+		}
+		File first = new File(file.getPath() + ".1");
+		first.delete();
+		if (maxFiles > 0) {
+			file.renameTo(first);
+		} else {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Configures audit and starts or stops writer thread.
+	 * 
+	 * @param props
+	 */
+	public synchronized void setProperties(Map<String, Object> props) {
+		if (props.containsKey(DELIVERY_AUDIT_FILE_KEY)) {
+			this.file = new File((String) props.get(DELIVERY_AUDIT_FILE_KEY));
+		}
+		if (props.containsKey(DELIVERY_AUDIT_MAX_FILE_SIZE_KEY)) {
+			this.maxFileSize = ((Number) props.get(DELIVERY_AUDIT_MAX_FILE_SIZE_KEY)).longValue();
+		}
+		if (props.containsKey(DELIVERY_AUDIT_MAX_FILES_KEY)) {
+			this.maxFiles = (Integer) props.get(DELIVERY_AUDIT_MAX_FILES_KEY);
+		}
+		if (props.containsKey(DELIVERY_AUDIT_SAMPLE_RATE_KEY)) {
+			this.sampleRate = ((Number) props.get(DELIVERY_AUDIT_SAMPLE_RATE_KEY)).doubleValue();
+		}
+		if (props.containsKey(DELIVERY_AUDIT_ROOM_SAMPLE_RATES_KEY)) {
+			this.roomRates = parseRoomRates((String) props.get(DELIVERY_AUDIT_ROOM_SAMPLE_RATES_KEY));
+		}
+		if (props.containsKey(DELIVERY_AUDIT_ENABLED_KEY)) {
+			boolean e = (Boolean) props.get(DELIVERY_AUDIT_ENABLED_KEY);
+			if (e) {
+				start();
+			} else {
+				stop();
+			}
+		}
+	}
+
+	private synchronized void start() {
+		// file settings are read by worker, so it is restarted
+		stop();
+		running = true;
+		worker = new Worker();
+		worker.start();
+		enabled = true;
+	}
+
+	/**
+	 * Stops writer thread. Queued records are written before thread exits.
+	 */
+	public synchronized void stop() {
+		enabled = false;
+		running = false;
+		if (worker != null) {
+			worker.interrupt();
+			try {
+				worker.join(5000);
+			} catch (InterruptedException e) {
+			}
+			worker = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "enabled=" + enabled + ", file=" + file + ", sampleRate=" + sampleRate + ", roomRates=" + roomRates;
+	}
+
+	private void write(CharSequence line) throws IOException {
+		if (out == null) {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.exists()) {
+				dir.mkdirs();
+			}
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+			fileSize = file.length();
+		}
+		out.append(line);
+		// ASCII is used almost always, so length is good estimation
+		fileSize += line.length();
+		written.incrementAndGet();
+		if (maxFileSize > 0 && fileSize >= maxFileSize) {
+			rotate();
+		}
+	}
+
+}
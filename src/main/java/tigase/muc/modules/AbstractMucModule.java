@@ -22,10 +22,15 @@
 
 package tigase.muc.modules;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import tigase.component.modules.AbstractModule;
+import tigase.muc.FanoutExecutor;
 import tigase.muc.MucContext;
+import tigase.muc.PacketBatch;
 import tigase.muc.Room;
 import tigase.server.Iq;
 import tigase.server.Message;
@@ -40,6 +45,45 @@ import tigase.xmpp.StanzaType;
  * 
  */
 public abstract class AbstractMucModule extends AbstractModule<MucContext> {
+	/**
+	 * Creates message addressed to single recipient. Returned packet contains
+	 * only own envelope element, with all attributes of original message
+	 * (<code>type</code>, <code>id</code>, <code>xml:lang</code>...) and own
+	 * <code>from</code> and <code>to</code> attributes. Payload elements are
+	 * shared by packets of all recipients, not copied; neither the original
+	 * message nor any component handling the packets later may modify them,
+	 * modified packet must get own copy of element.
+	 *
+	 * @param attNames
+	 *            names of envelope attributes, see
+	 *            {@linkplain #envelopeAttributes(Element)}.
+	 * @param attValues
+	 *            values of envelope attributes; not modified.
+	 * @param payload
+	 *            shared content of message.
+	 * @param fromJID
+	 *            sender address.
+	 * @param toJID
+	 *            recipient address.
+	 * @return packet ready to send.
+	 */
+	public static Packet createEnvelope(final String[] attNames, final String[] attValues,
+			final List<Element> payload, final JID fromJID, final JID toJID) {
+		final String[] values = attValues.clone();
+		values[values.length - 2] = fromJID.toString();
+		values[values.length - 1] = toJID.toString();
+		Element envelope = new Element("message", attNames, values);
+		if (payload != null) {
+			for (Element c : payload) {
+				envelope.addChild(c);
+			}
+		}
+
+		Packet message = Packet.packetInstance(envelope, fromJID, toJID);
+		message.setXMLNS(Packet.CLIENT_XMLNS);
+		return message;
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -54,6 +98,35 @@ public abstract class AbstractMucModule extends AbstractModule<MucContext> {
 						iq.getAttributeStaticStr(Packet.ID_ATT) });
 	}
 
+	/**
+	 * Returns attributes of original message copied to each envelope, see
+	 * {@linkplain #createEnvelope(String[], String[], List, JID, JID)}. Two
+	 * last entries are left for <code>from</code> and <code>to</code>
+	 * attributes of envelope.
+	 * 
+	 * @param template
+	 *            original message.
+	 * @return names and values of attributes.
+	 */
+	public static String[][] envelopeAttributes(final Element template) {
+		final Map<String, String> attrs = template.getAttributes();
+		final List<String> names = new ArrayList<String>();
+		final List<String> values = new ArrayList<String>();
+		if (attrs != null) {
+			for (Map.Entry<String, String> e : attrs.entrySet()) {
+				if (!Packet.FROM_ATT.equals(e.getKey()) && !Packet.TO_ATT.equals(e.getKey())) {
+					names.add(e.getKey());
+					values.add(e.getValue());
+				}
+			}
+		}
+		names.add(Packet.FROM_ATT);
+		names.add(Packet.TO_ATT);
+		values.add(null);
+		values.add(null);
+		return new String[][] { names.toArray(new String[names.size()]), values.toArray(new String[values.size()]) };
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -73,6 +146,29 @@ public abstract class AbstractMucModule extends AbstractModule<MucContext> {
 	public AbstractMucModule() {
 	}
 
+	/**
+	 * Creates batch used to send packets generated during room fan-out.
+	 * Caller must {@linkplain PacketBatch#flush() flush} it when fan-out is
+	 * done.
+	 * 
+	 * @return new batch.
+	 */
+	protected PacketBatch createPacketBatch() {
+		return new PacketBatch(context.getWriter(), context.getFanoutBatchSize());
+	}
+
+	/**
+	 * Sends packets built by task to all recipients. Large recipient lists
+	 * may be processed in parallel, see {@linkplain FanoutExecutor}.
+	 * 
+	 * @param recipients
+	 * @param task
+	 * @throws TigaseStringprepException
+	 */
+	protected void fanout(List<JID> recipients, FanoutExecutor.RecipientTask task) throws TigaseStringprepException {
+		context.getFanoutExecutor().execute(recipients, task, context.getWriter(), context.getFanoutBatchSize());
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -112,6 +112,9 @@ public class DiscoveryModule extends tigase.component.modules.impl.DiscoveryModu
 			} else {
 				addFeature(resultQuery, "muc_unsecured");
 			}
+			if (MessageArchiveModule.isArchiveAvailable(context)) {
+				addFeature(resultQuery, MessageArchiveModule.MAM_XMLNS);
+			}
 			write(packet.okResult(resultQuery, 0));
 		} else if ((node == null) && (requestedJID.getLocalpart() != null) && (requestedJID.getResource() != null)) {
 			write(packet.okResult((Element) null, 0));
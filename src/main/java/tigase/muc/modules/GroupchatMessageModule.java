@@ -24,24 +24,31 @@ package tigase.muc.modules;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.logging.Level;
 
 import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
 import tigase.muc.Affiliation;
+import tigase.muc.ChatStateCoalescer;
 import tigase.muc.DateUtil;
+import tigase.muc.ElementFilter;
+import tigase.muc.FanoutExecutor;
+import tigase.muc.MulticastSupport;
+import tigase.muc.OverloadController;
+import tigase.muc.PacketBatch;
 import tigase.muc.Role;
 import tigase.muc.Room;
 import tigase.muc.RoomConfig;
 import tigase.muc.exceptions.MUCException;
 import tigase.muc.history.HistoryProvider;
+import tigase.muc.logger.DeliveryAudit;
 import tigase.muc.logger.MucLogger;
 import tigase.server.Packet;
+import tigase.server.Priority;
 import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
@@ -60,8 +67,6 @@ public class GroupchatMessageModule extends AbstractMucModule {
 
 	public static final String ID = "groupchat";
 
-	private final Set<Criteria> allowedElements = new HashSet<Criteria>();
-
 	/**
 	 * @param room
 	 * @param cData
@@ -171,7 +176,7 @@ public class GroupchatMessageModule extends AbstractMucModule {
 	 * @return
 	 */
 	public boolean isChatStateAllowed() {
-		return allowedElements.contains(CRIT_CHAT_STAT);
+		return context.isChatStateAllowed();
 	}
 
 	/**
@@ -202,8 +207,6 @@ public class GroupchatMessageModule extends AbstractMucModule {
 			final String nickName = room.getOccupantsNickname(senderJID);
 			final Role role = room.getRole(nickName);
 			final Affiliation affiliation = room.getAffiliation(senderJID.getBareJID());
-			log.info("GROUPChat message nickname:" + nickName + " with role: " + role + " affiliantion: " + affiliation);
-			
 			if (log.isLoggable(Level.FINEST)) {
 				log.finest("Processing groupchat message. room=" + roomJID + "; senderJID=" + senderJID + "; senderNickname="
 						+ nickName + "; role=" + role + "; affiliation=" + affiliation + ";");
@@ -217,12 +220,27 @@ public class GroupchatMessageModule extends AbstractMucModule {
 				//throw new MUCException(Authorization.FORBIDDEN, "Insufficient privileges to send groupchat message.");
 			}
 
+			final JID senderRoomJID = JID.jidInstance(roomJID, nickName);
+			final Element chatState = getChatStateOnly(packet.getElement());
+
+			final String id = packet.getAttributeStaticStr(Packet.ID_ATT);
+
+			if (chatState != null) {
+				processChatState(room, senderRoomJID, id, chatState);
+				return;
+			}
+			if (!context.getRateLimiter().tryAcquire(roomJID, senderRoomJID, senderJID.getBareJID())) {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Groupchat message rate limit exceeded: room=" + roomJID + "; senderJID=" + senderJID);
+				throw new MUCException(Authorization.RESOURCE_CONSTRAINT, "Too many messages. Please slow down.");
+			}
+
 			Element body = null;
 			Element subject = null;
 			Element delay = null;
-			final String id = packet.getAttributeStaticStr(Packet.ID_ATT);
 			ArrayList<Element> content = new ArrayList<Element>();
 			List<Element> ccs = packet.getElement().getChildren();
+			final ElementFilter filter = context.getMessageFilter();
 
 			if (ccs != null) {
 				for (Element c : ccs) {
@@ -238,20 +256,12 @@ public class GroupchatMessageModule extends AbstractMucModule {
 						content.add(c);
 					} else if (context.isChatStateAllowed() && CRIT_CHAT_STAT.match(c)) {
 						content.add(c);
-					} else {
-						for (Criteria crit : allowedElements) {
-							if (crit.match(c)) {
-								content.add(c);
-
-								break;
-							}
-						}
+					} else if (filter.isAllowed(c)) {
+						content.add(c);
 					}
 				}
 			}
 
-			final JID senderRoomJID = JID.jidInstance(roomJID, nickName);
-
 			if (subject != null) {
 				if (!(room.getConfig().isChangeSubject() && (role == Role.participant)) && !role.isModifySubject()) {
 					if (log.isLoggable(Level.FINE))
@@ -260,7 +270,19 @@ public class GroupchatMessageModule extends AbstractMucModule {
 								+ packet.getElement().toStringNoChildren());
 					throw new MUCException(Authorization.FORBIDDEN, "Insufficient privileges to change subject.");
 				}
+			}
 
+			final Element originIdElem = packet.getElement().getChild("origin-id", "urn:xmpp:sid:0");
+			final String messageId = originIdElem == null ? id : originIdElem.getAttributeStaticStr("id");
+
+			if (!context.getDuplicateFilter().accept(roomJID, senderJID.getBareJID(), messageId)) {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Dropping duplicated groupchat message: room=" + roomJID + "; senderJID=" + senderJID
+							+ "; id=" + messageId);
+				return;
+			}
+
+			if (subject != null) {
 				String msg = subject.getCData();
 
 				room.setNewSubject(msg, nickName);
@@ -275,13 +297,13 @@ public class GroupchatMessageModule extends AbstractMucModule {
 			}
 
 			Packet msg = preparePacket(id, content.toArray(new Element[] {}));
-
-			if (body != null) {
-				addMessageToHistory(room, msg.getElement(), body.getCData(), senderJID, nickName, sendDate);
-			}
-			if (subject != null) {
-				addSubjectChangeToHistory(room, msg.getElement(), subject.getCData(), senderJID, nickName, sendDate);
+			final String lang = packet.getElement().getAttributeStaticStr("xml:lang");
+			if (lang != null) {
+				// language of body and subject, copied to every envelope
+				msg.getElement().setAttribute("xml:lang", lang);
 			}
+			// history gets message without delay element
+			final Element historyMessage = (body != null || subject != null) ? msg.getElement().clone() : null;
 
 			if (sendDate != null) {
 
@@ -290,8 +312,19 @@ public class GroupchatMessageModule extends AbstractMucModule {
 								DateUtil.formatDatetime(sendDate) }));
 			}
 
+			context.getChatStateCoalescer().reset(senderRoomJID);
+
+			// occupants get message first, storing history must not delay
+			// delivery
 			sendMessagesToAllOccupants(room, senderRoomJID, msg);
 
+			if (body != null) {
+				addMessageToHistory(room, historyMessage, body.getCData(), senderJID, nickName, sendDate);
+			}
+			if (subject != null) {
+				addSubjectChangeToHistory(room, historyMessage, subject.getCData(), senderJID, nickName, sendDate);
+			}
+
 		} catch (MUCException e1) {
 			throw e1;
 		} catch (TigaseStringprepException e) {
@@ -303,6 +336,87 @@ public class GroupchatMessageModule extends AbstractMucModule {
 		}
 	}
 
+	/**
+	 * Checks if message carries chat state notification only.
+	 * 
+	 * @param message
+	 *            groupchat message.
+	 * @return chat state element if it is the only content of message (except
+	 *         of <code>delay</code>), or <code>null</code>.
+	 */
+	protected Element getChatStateOnly(Element message) {
+		List<Element> ccs = message.getChildren();
+		if (ccs == null) {
+			return null;
+		}
+		Element state = null;
+		for (Element c : ccs) {
+			if (CRIT_CHAT_STAT.match(c)) {
+				if (state != null) {
+					return null;
+				}
+				state = c;
+			} else if (!"delay".equals(c.getName())) {
+				return null;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Sends chat states held back by {@linkplain ChatStateCoalescer
+	 * coalescing}, which window ended.
+	 */
+	public void flushCoalescedChatStates() {
+		final boolean shedding = context.getOverloadController().isShedding(OverloadController.SheddingLevel.chatStates);
+		for (ChatStateCoalescer.Pending p : context.getChatStateCoalescer().drainDue()) {
+			if (shedding) {
+				context.getOverloadController().addDropped(OverloadController.SheddingLevel.chatStates);
+				continue;
+			}
+			if (p.getRoom().getOccupantsJidsByNickname(p.getOccupantJID().getResource()).isEmpty()) {
+				continue;
+			}
+			try {
+				sendMessagesToAllOccupants(p.getRoom(), p.getOccupantJID(), p.getPacket());
+			} catch (TigaseStringprepException e) {
+				log.log(Level.WARNING, "Can't send coalesced chat state of " + p.getOccupantJID(), e);
+			}
+		}
+	}
+
+	/**
+	 * Broadcasts chat state notification. Chat states are not stored in
+	 * history and are coalesced to one per occupant in window, packets are
+	 * sent with low priority and are dropped when component is overloaded.
+	 * 
+	 * @param room
+	 * @param senderRoomJID
+	 *            room JID of sender.
+	 * @param id
+	 *            id of original stanza.
+	 * @param chatState
+	 *            chat state element.
+	 * @throws TigaseStringprepException
+	 */
+	protected void processChatState(Room room, JID senderRoomJID, String id, Element chatState)
+			throws TigaseStringprepException {
+		if (context.isMessageFilterEnabled() && !context.isChatStateAllowed()) {
+			return;
+		}
+
+		if (context.getOverloadController().shed(OverloadController.SheddingLevel.chatStates)) {
+			return;
+		}
+
+		Packet msg = preparePacket(id, chatState);
+		msg.setPriority(Priority.LOW);
+		if (!context.getChatStateCoalescer().accept(room, senderRoomJID, chatState.getName(), msg)) {
+			return;
+		}
+		sendMessagesToAllOccupants(room, senderRoomJID, msg);
+	}
+
 	protected Packet preparePacket(String messageId, Element... content) throws TigaseStringprepException {
 		Element e = new Element("message", new String[] { "type" }, new String[] { "groupchat" });
 		if (messageId != null) {
@@ -321,6 +435,16 @@ public class GroupchatMessageModule extends AbstractMucModule {
 		sendMessagesToAllOccupants(room, fromJID, msg);
 	}
 
+	/**
+	 * Sends message to all occupants. Child elements of message are shared
+	 * with packets of all recipients, so message must not be modified after
+	 * this call.
+	 * 
+	 * @param room
+	 * @param fromJID
+	 * @param msg
+	 * @throws TigaseStringprepException
+	 */
 	public void sendMessagesToAllOccupants(final Room room, final JID fromJID, final Packet msg)
 			throws TigaseStringprepException {
 		sendMessagesToAllOccupantsJids(room, fromJID, msg);
@@ -328,33 +452,107 @@ public class GroupchatMessageModule extends AbstractMucModule {
 		room.fireOnMessageToOccupants(fromJID, msg);
 	}
 
+	/**
+	 * Sends one message per remote domain supporting XEP-0033 multicast, with
+	 * all recipients from this domain listed in <code>addresses</code>
+	 * element.
+	 * 
+	 * @return recipients which must receive own copy of message.
+	 */
+	protected List<JID> sendMulticast(final List<JID> recipients, final String type, final String id,
+			final List<Element> payload, final JID fromJID, final Priority priority) {
+		final MulticastSupport multicast = context.getMulticastSupport();
+		final Map<String, List<JID>> byDomain = new LinkedHashMap<String, List<JID>>();
+		for (JID jid : recipients) {
+			List<JID> l = byDomain.get(jid.getDomain());
+			if (l == null) {
+				l = new ArrayList<JID>();
+				byDomain.put(jid.getDomain(), l);
+			}
+			l.add(jid);
+		}
+
+		final List<JID> remaining = new ArrayList<JID>();
+		final PacketBatch batch = createPacketBatch();
+		for (Map.Entry<String, List<JID>> e : byDomain.entrySet()) {
+			final String domain = e.getKey();
+			final List<JID> jids = e.getValue();
+			if (jids.size() < 2 || context.isLocalDomain(domain)
+					|| !multicast.isSupported(domain, fromJID, context.getWriter())) {
+				remaining.addAll(jids);
+				continue;
+			}
+			final int max = multicast.getMaxAddresses();
+			for (int i = 0; i < jids.size(); i += max) {
+				Packet message = multicast.createMessage(domain, type, id, payload, fromJID,
+						jids.subList(i, Math.min(i + max, jids.size())));
+				if (priority != null) {
+					message.setPriority(priority);
+				}
+				batch.add(message);
+			}
+		}
+		batch.flush();
+
+		return remaining;
+	}
+
 	public void sendMessagesToAllOccupantsJids(final Room room, final JID fromJID, final Packet msg)
 			throws TigaseStringprepException {
 
-		log.log(Level.INFO,
-				"xgroupchat sending messages to all occupants Room: Subject:" + room.getSubject() + " //JID:" + room.getRoomJID() + " // OCcupants: " + room.getOccupantsNicknames());
+		final DeliveryAudit audit = context.getDeliveryAudit();
+		final boolean audited = audit.isSampled(room.getRoomJID());
+		final long start = audited ? System.nanoTime() : 0;
+
+		// content is built once and shared by all recipients
+		final Element template = msg.getElement();
+		final String type = template.getAttributeStaticStr(Packet.TYPE_ATT);
+		final String id = template.getAttributeStaticStr(Packet.ID_ATT);
+		final String[][] attributes = envelopeAttributes(template);
+		final List<Element> payload = template.getChildren();
+		final Priority priority = msg.getPriority();
+		List<JID> recipients = new ArrayList<JID>();
+
 		for (String nickname : room.getOccupantsNicknames()) {
 			final Role role = room.getRole(nickname);
-			log.info( nickname +"  has role to receive?: " + role.isReceiveMessages());
 			if (!role.isReceiveMessages()) {
 				//We don't give a shit right now. Go ahead and send the message
 				//continue;
 			}
 
-			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
+			recipients.addAll(room.getOccupantsJidsByNickname(nickname));
+		}
+
+		final int recipientsCount = recipients.size();
+		final long prepared = audited ? System.nanoTime() : 0;
+
+		if (context.getMulticastSupport().isEnabled()) {
+			recipients = sendMulticast(recipients, type, id, payload, fromJID, priority);
+		}
+
+		fanout(recipients, new FanoutExecutor.RecipientTask() {
 
-			for (JID jid : occupantJids) {
-				Packet message = msg.copyElementOnly();// Packet.packetInstance(e);
-				message.initVars(fromJID, jid);
-				message.setXMLNS(Packet.CLIENT_XMLNS);
+			@Override
+			public void process(JID jid, PacketBatch batch) {
+				Packet message = createEnvelope(attributes[0], attributes[1], payload, fromJID, jid);
+				if (priority != null) {
+					message.setPriority(priority);
+				}
 
-				// we sent this to message amp or some other plugin to make sure
-				// it's deliverred?
-				log.log(Level.INFO, " sending message " + message + " to occupant " + jid + " //" + message.toStringFull());
-				
-				write(message);
-				
+				batch.add(message);
+			}
+		});
+
+		if (audited) {
+			final long done = System.nanoTime();
+			int bytes = 0;
+			if (payload != null) {
+				for (Element c : payload) {
+					bytes += c.toString().length();
+				}
 			}
+			audit.record(type, room.getRoomJID(), fromJID, recipientsCount, bytes, (prepared - start) / 1000,
+					(done - prepared) / 1000);
 		}
 	}
 }
@@ -0,0 +1,286 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.modules;
+
+import java.util.Date;
+import java.util.logging.Level;
+
+import tigase.criteria.Criteria;
+import tigase.criteria.ElementCriteria;
+import tigase.form.Field;
+import tigase.form.Form;
+import tigase.muc.Affiliation;
+import tigase.muc.DateUtil;
+import tigase.muc.MucContext;
+import tigase.muc.Room;
+import tigase.muc.exceptions.MUCException;
+import tigase.muc.history.AbstractJDBCHistoryProvider;
+import tigase.muc.history.ArchiveQuery;
+import tigase.muc.history.HistoryProvider;
+import tigase.muc.history.NoneHistoryProvider;
+import tigase.muc.history.QueuedHistoryProvider;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.JID;
+
+/**
+ * Message Archive Management (XEP-0313) of rooms, with result paging
+ * (XEP-0059).
+ * 
+ * Messages are selected by {@linkplain HistoryProvider#queryArchive(Room, JID, ArchiveQuery, ArchiveQuery.Handler)
+ * history provider} and sent to requester one by one, followed by
+ * <code>fin</code> result.
+ */
+public class MessageArchiveModule extends AbstractMucModule {
+
+	private static final Criteria CRIT = ElementCriteria.name("iq").add(ElementCriteria.name("query", "urn:xmpp:mam:2"));
+
+	/**
+	 * Number of messages in page if requester didn't specify it.
+	 */
+	private static final int DEFAULT_PAGE_SIZE = 50;
+
+	private static final String FORWARD_XMLNS = "urn:xmpp:forward:0";
+
+	public static final String ID = "mam";
+
+	public static final String MAM_XMLNS = "urn:xmpp:mam:2";
+
+	/**
+	 * Maximum number of messages in page.
+	 */
+	private static final int MAX_PAGE_SIZE = 250;
+
+	private static final String RSM_XMLNS = "http://jabber.org/protocol/rsm";
+
+	/**
+	 * @param context
+	 * @return <code>false</code> if history isn't stored at all or database
+	 *         schema wasn't upgraded to support archive queries.
+	 */
+	public static boolean isArchiveAvailable(MucContext context) {
+		HistoryProvider provider = context.getHistoryProvider();
+		if (provider instanceof QueuedHistoryProvider) {
+			provider = ((QueuedHistoryProvider) provider).getDelegate();
+		}
+		if (provider instanceof AbstractJDBCHistoryProvider) {
+			return ((AbstractJDBCHistoryProvider) provider).isArchiveSupported();
+		}
+		return !(provider instanceof NoneHistoryProvider);
+	}
+
+	private static String getChildCData(Element element, String name) {
+		Element child = element.getChild(name);
+		return child == null ? null : child.getCData();
+	}
+
+	private static Date parseDate(String value) throws MUCException {
+		if (value == null) {
+			return null;
+		}
+		Date d = DateUtil.parse(value);
+		if (d == null) {
+			throw new MUCException(Authorization.BAD_REQUEST, "Invalid date: " + value);
+		}
+		return d;
+	}
+
+	/**
+	 * Archive is available for occupants of room (they passed password and
+	 * membership checks when joining) and for affiliated users. Archive of
+	 * password-protected room is available without joining only to owners
+	 * and admins.
+	 */
+	private void checkAccess(Room room, JID senderJID) throws MUCException {
+		final Affiliation affiliation = room.getAffiliation(senderJID.getBareJID());
+		if (affiliation == Affiliation.outcast) {
+			throw new MUCException(Authorization.FORBIDDEN);
+		}
+		if (room.getOccupantsNickname(senderJID) != null) {
+			return;
+		}
+		if (room.getConfig().isPasswordProtectedRoom() && affiliation != Affiliation.owner
+				&& affiliation != Affiliation.admin) {
+			throw new MUCException(Authorization.FORBIDDEN, "Archive of password-protected room is available only for occupants");
+		}
+		if (!affiliation.isEnterMembersOnlyRoom()) {
+			throw new MUCException(Authorization.FORBIDDEN, "Archive is available only for occupants and members");
+		}
+	}
+
+	@Override
+	public String[] getFeatures() {
+		// feature is advertised by rooms, see DiscoveryModule
+		return null;
+	}
+
+	@Override
+	public Criteria getModuleCriteria() {
+		return CRIT;
+	}
+
+	@Override
+	public void process(Packet packet) throws MUCException {
+		try {
+			final JID senderJID = packet.getStanzaFrom();
+			final JID roomJID = packet.getStanzaTo();
+
+			if (roomJID.getLocalpart() == null || roomJID.getResource() != null) {
+				throw new MUCException(Authorization.BAD_REQUEST);
+			}
+			if (!isArchiveAvailable(context)) {
+				throw new MUCException(Authorization.FEATURE_NOT_IMPLEMENTED);
+			}
+
+			final Room room = context.getMucRepository().getRoom(roomJID.getBareJID());
+			if (room == null) {
+				throw new MUCException(Authorization.ITEM_NOT_FOUND);
+			}
+
+			final String type = packet.getElement().getAttributeStaticStr(Packet.TYPE_ATT);
+			if ("get".equals(type)) {
+				processFormRequest(packet);
+			} else if ("set".equals(type)) {
+				checkAccess(room, senderJID);
+				processQuery(packet, room, senderJID);
+			} else {
+				throw new MUCException(Authorization.BAD_REQUEST);
+			}
+		} catch (MUCException e1) {
+			throw e1;
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Can't process archive query", e);
+			throw new MUCException(Authorization.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private void processFormRequest(Packet packet) {
+		Form form = new Form("form", null, null);
+		form.addField(Field.fieldHidden("FORM_TYPE", MAM_XMLNS));
+		form.addField(Field.fieldTextSingle("start", "", "Start"));
+		form.addField(Field.fieldTextSingle("end", "", "End"));
+
+		Element query = new Element("query", new String[] { "xmlns" }, new String[] { MAM_XMLNS });
+		query.addChild(form.getElement());
+		write(packet.okResult(query, 0));
+	}
+
+	private void processQuery(final Packet packet, final Room room, final JID senderJID) throws MUCException {
+		final Element query = packet.getElement().getChild("query", MAM_XMLNS);
+		final String queryId = query.getAttributeStaticStr("queryid");
+
+		Date start = null;
+		Date end = null;
+		final Element x = query.getChild("x", "jabber:x:data");
+		if (x != null) {
+			Form form = new Form(x);
+			if (form.getAsString("with") != null && form.getAsString("with").length() > 0) {
+				throw new MUCException(Authorization.FEATURE_NOT_IMPLEMENTED, "Filtering by 'with' is not supported");
+			}
+			start = parseDate(form.getAsString("start"));
+			end = parseDate(form.getAsString("end"));
+		}
+
+		int max = DEFAULT_PAGE_SIZE;
+		String after = null;
+		String before = null;
+		final Element set = query.getChild("set", RSM_XMLNS);
+		if (set != null) {
+			String tmp = getChildCData(set, "max");
+			if (tmp != null) {
+				try {
+					max = Math.min(MAX_PAGE_SIZE, Integer.parseInt(tmp.trim()));
+				} catch (NumberFormatException e) {
+					throw new MUCException(Authorization.BAD_REQUEST, "Invalid max value");
+				}
+			}
+			after = getChildCData(set, "after");
+			Element b = set.getChild("before");
+			if (b != null) {
+				before = b.getCData() == null ? "" : b.getCData();
+			}
+		}
+
+		final ArchiveQuery archiveQuery;
+		try {
+			archiveQuery = new ArchiveQuery(start, end, after, before, Math.max(0, max));
+		} catch (IllegalArgumentException e) {
+			throw new MUCException(Authorization.ITEM_NOT_FOUND, "Unknown archive id");
+		}
+
+		final String[] range = new String[2];
+		final boolean complete = context.getHistoryProvider().queryArchive(room, senderJID, archiveQuery,
+				new ArchiveQuery.Handler() {
+
+					@Override
+					public void item(String id, Packet message) {
+						if (range[0] == null) {
+							range[0] = id;
+						}
+						range[1] = id;
+						write(createResultMessage(room, senderJID, queryId, id, message));
+					}
+				});
+
+		Element fin = new Element("fin", new String[] { "xmlns", "complete" }, new String[] { MAM_XMLNS,
+				String.valueOf(complete) });
+		Element resultSet = new Element("set", new String[] { "xmlns" }, new String[] { RSM_XMLNS });
+		if (range[0] != null) {
+			resultSet.addChild(new Element("first", range[0]));
+			resultSet.addChild(new Element("last", range[1]));
+		}
+		fin.addChild(resultSet);
+		write(packet.okResult(fin, 0));
+	}
+
+	private Packet createResultMessage(Room room, JID senderJID, String queryId, String id, Packet message) {
+		final Element m = message.getElement();
+		m.removeAttribute("to");
+		m.setXMLNS(Packet.CLIENT_XMLNS);
+		final Element delay = m.getChild("delay", "urn:xmpp:delay");
+		if (delay != null) {
+			m.removeChild(delay);
+		}
+
+		Element forwarded = new Element("forwarded", new String[] { "xmlns" }, new String[] { FORWARD_XMLNS });
+		if (delay != null) {
+			forwarded.addChild(delay);
+		}
+		forwarded.addChild(m);
+
+		Element result = new Element("result", new String[] { "xmlns", "id" }, new String[] { MAM_XMLNS, id });
+		if (queryId != null) {
+			result.setAttribute("queryid", queryId);
+		}
+		result.addChild(forwarded);
+
+		Element msg = new Element("message", new String[] { "from", "to" }, new String[] { room.getRoomJID().toString(),
+				senderJID.toString() });
+		msg.addChild(result);
+
+		Packet p = Packet.packetInstance(msg, JID.jidInstance(room.getRoomJID()), senderJID);
+		p.setXMLNS(Packet.CLIENT_XMLNS);
+		return p;
+	}
+
+}
@@ -33,6 +33,7 @@ import tigase.component.exceptions.RepositoryException;
 import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
 import tigase.muc.Affiliation;
+import tigase.muc.PacketBatch;
 import tigase.muc.Role;
 import tigase.muc.Room;
 import tigase.muc.RoomConfig.Anonymity;
@@ -443,6 +444,7 @@ public class ModeratorModule extends AbstractMucModule {
 
 			}
 		}
+		final PacketBatch batch = createPacketBatch();
 		for (String nickname : room.getOccupantsNicknames()) {
 			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
 
@@ -452,10 +454,11 @@ public class ModeratorModule extends AbstractMucModule {
 					Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantBareJid, isUnavailable,
 							newAffiliation, currentRole, removed, reason, null, codes.toArray(new String[] {}));
 
-					write(occupantPresence);
+					batch.add(occupantPresence);
 				}
 			}
 		}
+		batch.flush();
 	}
 
 	protected void processSetRole(Room room, String occupantNick, Role newRole, String reason, String actor)
@@ -484,6 +487,7 @@ public class ModeratorModule extends AbstractMucModule {
 		}
 
 		// sending presence to all occupants
+		final PacketBatch batch = createPacketBatch();
 		for (String nickname : room.getOccupantsNicknames()) {
 			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
 
@@ -491,9 +495,10 @@ public class ModeratorModule extends AbstractMucModule {
 				Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantJid, isUnavailable,
 						occupantAffiliation, newRole, occupantNick, reason, null, codes.toArray(new String[] {}));
 
-				write(occupantPresence);
+				batch.add(occupantPresence);
 			}
 		}
+		batch.flush();
 	}
 
 	/**
@@ -33,6 +33,10 @@ import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
 import tigase.muc.Affiliation;
 import tigase.muc.DateUtil;
+import tigase.muc.ElementFilter;
+import tigase.muc.FanoutExecutor;
+import tigase.muc.OverloadController;
+import tigase.muc.PacketBatch;
 import tigase.muc.Role;
 import tigase.muc.Room;
 import tigase.muc.RoomConfig;
@@ -47,10 +51,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -152,7 +157,21 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 
 	private static final Criteria CRIT = ElementCriteria.name("presence");
 
-	/** Field description */
+	/**
+	 * Availability change held back by presence coalescing.
+	 */
+	private static final class PendingPresence {
+
+		private final Room room;
+
+		private final JID senderJID;
+
+		PendingPresence(Room room, JID senderJID) {
+			this.room = room;
+			this.senderJID = senderJID;
+		}
+	}
+
 	protected static final Logger log = Logger.getLogger(PresenceModule.class.getName());
 
 	public static void addCodes(PresenceWrapper wrapper, boolean newRoomCreated, String newNickName) {
@@ -221,8 +240,6 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 		}
 	}
 
-	private final Set<Criteria> allowedElements = new HashSet<Criteria>();
-
 	/**
 	 * Constructs ...
 	 * 
@@ -235,12 +252,12 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 	 * @param mucLogger
 	 */
 	public PresenceModuleImpl() {
-		allowedElements.add(ElementCriteria.name("show"));
-		allowedElements.add(ElementCriteria.name("status"));
-		allowedElements.add(ElementCriteria.name("priority"));
-		allowedElements.add(ElementCriteria.xmlns("http://jabber.org/protocol/caps"));
 	}
 
+	private final ConcurrentHashMap<String, Long> lastAvailabilityBroadcast = new ConcurrentHashMap<String, Long>();
+
+	private final ConcurrentHashMap<String, PendingPresence> pendingAvailability = new ConcurrentHashMap<String, PendingPresence>();
+
 	/**
 	 * @param room
 	 * @param date
@@ -290,16 +307,13 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 			List<Element> cc = element.getChildren();
 
 			if (cc != null) {
+				final ElementFilter filter = context.getPresenceFilter();
 				@SuppressWarnings("rawtypes")
 				List<XMLNodeIfc> children = new ArrayList<XMLNodeIfc>();
 
 				for (Element c : cc) {
-					for (Criteria crit : allowedElements) {
-						if (crit.match(c)) {
-							children.add(c);
-
-							break;
-						}
+					if (filter.isAllowed(c)) {
+						children.add(c);
 					}
 				}
 				presence.setChildren(children);
@@ -352,6 +366,7 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 
 		// TODO if highest priority is gone, then send current highest priority
 		// to occupants
+		final PacketBatch batch = createPacketBatch();
 		if (nicknameGone) {
 			for (String occupantNickname : room.getOccupantsNicknames()) {
 				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
@@ -361,9 +376,10 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 					PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, presenceElement,
 							senderJID.getBareJID(), occupantJIDs, leavingNickname, leavingAffiliation, leavingRole);
 
-					write(presence.packet);
+					batch.add(presence.packet);
 				}
 			}
+			batch.flush();
 			if (room.getConfig().isLoggingEnabled()) {
 				addLeaveToHistory(room, new Date(), senderJID, leavingNickname);
 			}
@@ -376,18 +392,19 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 					if (context.isMultiItemMode()) {
 						PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, pe.clone(),
 								senderJID.getBareJID(), occupantJIDs, leavingNickname, leavingAffiliation, leavingRole);
-						write(presence.packet);
+						batch.add(presence.packet);
 					} else {
 						for (JID jid : occupantJIDs) {
 							Collection<JID> z = new ArrayList<JID>(1);
 							z.add(jid);
 							PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, pe.clone(),
 									senderJID.getBareJID(), z, leavingNickname, leavingAffiliation, leavingRole);
-							write(presence.packet);
+							batch.add(presence.packet);
 						}
 					}
 				}
 			}
+			batch.flush();
 
 		}
 		if (room.getOccupantsCount() == 0) {
@@ -396,6 +413,7 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 				historyProvider.removeHistory(room);
 			}
 			context.getMucRepository().leaveRoom(room);
+			context.getDuplicateFilter().removeRoom(room.getRoomJID());
 		}
 	}
 
@@ -464,6 +482,11 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 				return;
 			}
 
+			if ((room == null || room.getOccupantsNickname(senderJID) == null)
+					&& context.getOverloadController().shed(OverloadController.SheddingLevel.joins)) {
+				throw new MUCException(Authorization.SERVICE_UNAVAILABLE, "Service is overloaded. Please try again later.");
+			}
+
 			final String knownNickname;
 			final boolean roomCreated;
 
@@ -483,7 +506,9 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 				knownNickname = room.getOccupantsNickname(senderJID);
 			}
 
-			log.info("Processing presences: known nickname " + knownNickname + " nickname:: " + nickName);
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Processing presence: knownNickname=" + knownNickname + "; nickname=" + nickName);
+			}
 			final boolean probablyReEnter = element.getElement().getChild("x", "http://jabber.org/protocol/muc") != null;
 
 			if ((knownNickname != null) && !knownNickname.equals(nickName)) {
@@ -519,6 +544,19 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 			log.finest("Processing stanza " + presenceElement.toString());
 		}
 
+		final OverloadController overload = context.getOverloadController();
+		final String coalesceKey = room.getRoomJID() + " " + senderJID;
+		boolean coalesce = false;
+		if (overload.isShedding(OverloadController.SheddingLevel.presences)) {
+			final long now = System.currentTimeMillis();
+			final Long last = lastAvailabilityBroadcast.get(coalesceKey);
+			if (last != null && now - last < context.getPresenceCoalesceWindow()) {
+				coalesce = true;
+			} else {
+				lastAvailabilityBroadcast.put(coalesceKey, now);
+			}
+		}
+
 		// we only update presence if the room is not filtered or user is on the
 		// list of desired affiliations
 		if (!room.getConfig().isPresenceFilterEnabled()
@@ -528,11 +566,71 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 			room.updatePresenceByJid(null, nickname, clonePresence(presenceElement));
 		}
 
+		if (coalesce) {
+			// latest presence is kept by room and will be sent by
+			// flushCoalescedPresences()
+			pendingAvailability.put(coalesceKey, new PendingPresence(room, senderJID));
+			overload.addDropped(OverloadController.SheddingLevel.presences);
+			return;
+		}
+		pendingAvailability.remove(coalesceKey);
+
 		Element pe = room.getLastPresenceCopyByJid(senderJID.getBareJID());
 
 		sendPresenceToAllOccupants(pe, room, senderJID, false, null);
 	}
 
+	/**
+	 * @return <code>true</code> if any availability change is held back by
+	 *         presence coalescing.
+	 */
+	public boolean hasCoalescedPresences() {
+		return !pendingAvailability.isEmpty();
+	}
+
+	/**
+	 * Broadcasts latest presences of occupants which availability changes
+	 * were coalesced, if coalescing window passed or component is not
+	 * overloaded anymore.
+	 */
+	public void flushCoalescedPresences() {
+		final boolean shedding = context.getOverloadController().isShedding(OverloadController.SheddingLevel.presences);
+		final long now = System.currentTimeMillis();
+		final long window = context.getPresenceCoalesceWindow();
+
+		Iterator<Map.Entry<String, PendingPresence>> it = pendingAvailability.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, PendingPresence> e = it.next();
+			final Long last = lastAvailabilityBroadcast.get(e.getKey());
+			if (shedding && last != null && now - last < window) {
+				continue;
+			}
+			// may be flushed by several threads at once
+			if (!pendingAvailability.remove(e.getKey(), e.getValue())) {
+				continue;
+			}
+
+			final PendingPresence p = e.getValue();
+			if (p.room.getOccupantsNickname(p.senderJID) == null) {
+				continue;
+			}
+			lastAvailabilityBroadcast.put(e.getKey(), now);
+			try {
+				Element pe = p.room.getLastPresenceCopyByJid(p.senderJID.getBareJID());
+				sendPresenceToAllOccupants(pe, p.room, p.senderJID, false, null);
+			} catch (TigaseStringprepException ex) {
+				log.log(Level.WARNING, "Can't send coalesced presence of " + p.senderJID, ex);
+			}
+		}
+
+		Iterator<Long> lit = lastAvailabilityBroadcast.values().iterator();
+		while (lit.hasNext()) {
+			if (now - lit.next() >= window) {
+				lit.remove();
+			}
+		}
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -667,7 +765,9 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 			seconds = toInteger(hist.getAttributeStaticStr("seconds"), null);
 			since = DateUtil.parse(hist.getAttributeStaticStr("since"));
 		}
-		sendHistoryToUser(room, senderJID, maxchars, maxstanzas, seconds, since);
+		if (!context.getOverloadController().shed(OverloadController.SheddingLevel.historyReplay)) {
+			sendHistoryToUser(room, senderJID, maxchars, maxstanzas, seconds, since);
+		}
 		// log.info("room subect: " + room.getSubject() + " nick:" +
 		// room.getSubjectChangerNick() + " date:"
 		// + room.getSubjectChangeDate());
@@ -792,6 +892,7 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 			return;
 		}
 
+		final PacketBatch batch = createPacketBatch();
 		for (String occupantNickname : room.getOccupantsNicknames()) {
 			final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNickname);
 			// we don't include current user in occupants presence broadcast
@@ -811,7 +912,7 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 
 			Element op = room.getLastPresenceCopyByJid(occupantJid);
 			if (null == op)
-				return;
+				break;
 			final Collection<JID> occupantJIDs = room.getOccupantsJidsByNickname(occupantNickname);
 			final BareJID occupantBareJID = room.getOccupantsJidByNickname(occupantNickname);
 			final Affiliation occupantAffiliation = room.getAffiliation(occupantBareJID);
@@ -820,21 +921,22 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 			if (context.isMultiItemMode()) {
 				PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
 						occupantJIDs, occupantNickname, occupantAffiliation, occupantRole);
-				write(l.packet);
+				batch.add(l.packet);
 			} else {
 				for (JID jid : occupantJIDs) {
 					Collection<JID> z = new ArrayList<JID>(1);
 					z.add(jid);
 					PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
 							z, occupantNickname, occupantAffiliation, occupantRole);
-					write(l.packet);
+					batch.add(l.packet);
 				}
 			}
 		}
+		batch.flush();
 	}
 
-	protected void sendPresenceToAllOccupants(final Element $presence, Room room, JID senderJID,
-			boolean newRoomCreated, String newNickName) throws TigaseStringprepException {
+	protected void sendPresenceToAllOccupants(final Element $presence, final Room room, final JID senderJID,
+			final boolean newRoomCreated, final String newNickName) throws TigaseStringprepException {
 
 		final String occupantNickname = room.getOccupantsNickname(senderJID);
 		final BareJID occupantJID = room.getOccupantsJidByNickname(occupantNickname);
@@ -862,26 +964,34 @@ public class PresenceModuleImpl extends AbstractMucModule implements PresenceMod
 		// ", occupantsNicknames: "
 		// + Arrays.asList(occupantsNicknames));
 
+		final List<JID> destinations = new ArrayList<JID>();
 		for (String destinationNickname : occupantsNicknames) {
-			for (JID destinationJID : room.getOccupantsJidsByNickname(destinationNickname)) {
+			destinations.addAll(room.getOccupantsJidsByNickname(destinationNickname));
+		}
+		final Collection<JID> occupantJIDs = context.isMultiItemMode() ? null : new ArrayList<JID>(
+				room.getOccupantsJidsByNickname(occupantNickname));
+
+		fanout(destinations, new FanoutExecutor.RecipientTask() {
 
-				if (context.isMultiItemMode()) {
+			@Override
+			public void process(JID destinationJID, PacketBatch batch) throws TigaseStringprepException {
+				if (occupantJIDs == null) {
 					PresenceWrapper presence = preparePresence(destinationJID, $presence.clone(), room, senderJID,
 							newRoomCreated, newNickName);
-					write(presence.packet);
+					batch.add(presence.packet);
 				} else {
-					for (JID jid : room.getOccupantsJidsByNickname(occupantNickname)) {
+					for (JID jid : occupantJIDs) {
 						Collection<JID> z = new ArrayList<JID>(1);
 						z.add(jid);
 						PresenceWrapper l = PresenceWrapper.preparePresenceW(room, destinationJID, $presence.clone(),
 								occupantJID, z, occupantNickname, occupantAffiliation, occupantRole);
 						addCodes(l, newRoomCreated, newNickName);
 
-						write(l.packet);
+						batch.add(l.packet);
 					}
 				}
 			}
-		}
+		});
 	}
 
 	protected void sendPresenceToAllOccupants(Room room, JID senderJID, boolean newRoomCreated, String newNickName)
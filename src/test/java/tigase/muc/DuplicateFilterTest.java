@@ -0,0 +1,92 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tigase.xmpp.BareJID;
+
+public class DuplicateFilterTest {
+
+	private static final BareJID ROOM = BareJID.bareJIDInstanceNS("room@muc.example.com");
+
+	private static final BareJID SENDER = BareJID.bareJIDInstanceNS("user@example.com");
+
+	@Test
+	public void testConcurrentCopiesAcceptedOnce() throws Exception {
+		final DuplicateFilter filter = new DuplicateFilter();
+		for (int round = 0; round < 200; round++) {
+			final String id = "m" + round;
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicInteger accepted = new AtomicInteger();
+			Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (filter.accept(ROOM, SENDER, id)) {
+							accepted.incrementAndGet();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			start.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+			Assert.assertEquals(1, accepted.get());
+		}
+	}
+
+	@Test
+	public void testDuplicateIsDropped() {
+		DuplicateFilter filter = new DuplicateFilter();
+		Assert.assertTrue(filter.accept(ROOM, SENDER, "1"));
+		Assert.assertFalse(filter.accept(ROOM, SENDER, "1"));
+		Assert.assertTrue(filter.accept(ROOM, BareJID.bareJIDInstanceNS("other@example.com"), "1"));
+		Assert.assertTrue(filter.accept(ROOM, SENDER, null));
+		Assert.assertTrue(filter.accept(ROOM, SENDER, null));
+	}
+
+	@Test
+	public void testOldMessagesAreForgotten() {
+		DuplicateFilter filter = new DuplicateFilter();
+		filter.setWindowSize(2);
+		Assert.assertTrue(filter.accept(ROOM, SENDER, "1"));
+		Assert.assertTrue(filter.accept(ROOM, SENDER, "2"));
+		Assert.assertTrue(filter.accept(ROOM, SENDER, "3"));
+		Assert.assertTrue(filter.accept(ROOM, SENDER, "1"));
+		Assert.assertFalse(filter.accept(ROOM, SENDER, "3"));
+	}
+
+}
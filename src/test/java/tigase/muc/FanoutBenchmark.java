@@ -0,0 +1,302 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.muc.modules.AbstractMucModule;
+import tigase.server.Packet;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+/**
+ * Benchmarks of groupchat fan-out. Not run by unit tests:
+ *
+ * <pre>
+ * java -cp ... tigase.muc.FanoutBenchmark [allocation|throughput|latency]
+ * </pre>
+ *
+ * <ul>
+ * <li><code>allocation</code> - bytes allocated per message when every
+ * recipient gets deep copy of message and when recipients get envelopes with
+ * shared payload, at 100, 1,000 and 10,000 recipients.</li>
+ * <li><code>throughput</code> - messages per second when packets are handed
+ * off one by one and in batches, at 1,000 and 5,000 occupants.</li>
+ * <li><code>latency</code> - time from the first to the last recipient packet
+ * of single message with sequential and parallel fan-out.</li>
+ * </ul>
+ */
+public class FanoutBenchmark {
+
+	/**
+	 * Stand-in for component out queue: every call takes lock and wakes up
+	 * consumer thread, which drops packets.
+	 */
+	private static final class QueueWriter implements PacketWriter {
+
+		private volatile long first;
+
+		private volatile long last;
+
+		private final ArrayDeque<Packet> queue = new ArrayDeque<Packet>();
+
+		private volatile boolean running = true;
+
+		private final Thread consumer = new Thread("fanout-benchmark-consumer") {
+
+			@Override
+			public void run() {
+				final List<Packet> drained = new ArrayList<Packet>();
+				while (running) {
+					synchronized (queue) {
+						while (queue.isEmpty() && running) {
+							try {
+								queue.wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						drained.addAll(queue);
+						queue.clear();
+					}
+					drained.clear();
+				}
+			}
+		};
+
+		QueueWriter() {
+			consumer.setDaemon(true);
+			consumer.start();
+		}
+
+		void reset() {
+			first = 0;
+			last = 0;
+		}
+
+		void stop() {
+			running = false;
+			synchronized (queue) {
+				queue.notifyAll();
+			}
+		}
+
+		private void written() {
+			final long now = System.nanoTime();
+			if (first == 0) {
+				first = now;
+			}
+			last = now;
+		}
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			synchronized (queue) {
+				queue.addAll(packets);
+				queue.notify();
+				written();
+			}
+		}
+
+		@Override
+		public void write(Packet packet) {
+			synchronized (queue) {
+				queue.add(packet);
+				queue.notify();
+				written();
+			}
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
+	private static final JID FROM = JID.jidInstanceNS("room@muc.example.com/nick");
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static void allocation() throws Exception {
+		final Packet msg = message();
+		final String[][] attributes = AbstractMucModule.envelopeAttributes(msg.getElement());
+		final List<Element> payload = msg.getElement().getChildren();
+		for (int n : new int[] { 100, 1000, 10000 }) {
+			final List<JID> recipients = recipients(n);
+			final List<Packet> out = new ArrayList<Packet>(n);
+			for (int warmup = 0; warmup < 2; warmup++) {
+				long copies = 0;
+				long envelopes = 0;
+				final int rounds = 20;
+				for (int r = 0; r < rounds; r++) {
+					long start = allocatedBytes();
+					for (JID jid : recipients) {
+						Packet p = msg.copyElementOnly();
+						p.initVars(FROM, jid);
+						out.add(p);
+					}
+					copies += allocatedBytes() - start;
+					out.clear();
+
+					start = allocatedBytes();
+					for (JID jid : recipients) {
+						out.add(AbstractMucModule.createEnvelope(attributes[0], attributes[1], payload, FROM, jid));
+					}
+					envelopes += allocatedBytes() - start;
+					out.clear();
+				}
+				if (warmup == 1) {
+					System.out.println(n + " recipients: deep copy " + (copies / rounds) + " bytes/message, envelope "
+							+ (envelopes / rounds) + " bytes/message");
+				}
+			}
+		}
+	}
+
+	private static FanoutExecutor.RecipientTask envelopeTask(final Packet msg) {
+		final String[][] attributes = AbstractMucModule.envelopeAttributes(msg.getElement());
+		final List<Element> payload = msg.getElement().getChildren();
+		return new FanoutExecutor.RecipientTask() {
+
+			@Override
+			public void process(JID recipient, PacketBatch batch) {
+				batch.add(AbstractMucModule.createEnvelope(attributes[0], attributes[1], payload, FROM, recipient));
+			}
+		};
+	}
+
+	private static void latency() throws Exception {
+		final Packet msg = message();
+		final FanoutExecutor.RecipientTask task = envelopeTask(msg);
+		final QueueWriter writer = new QueueWriter();
+		final FanoutExecutor executor = new FanoutExecutor();
+		try {
+			for (int n : new int[] { 2000, 10000, 50000 }) {
+				final List<JID> recipients = recipients(n);
+				for (boolean parallel : new boolean[] { false, true }) {
+					executor.setParallelThreshold(parallel ? 1 : 0);
+					final int rounds = 50;
+					long total = 0;
+					for (int r = 0; r < rounds * 2; r++) {
+						writer.reset();
+						executor.execute(recipients, task, writer, 100);
+						if (r >= rounds) {
+							total += writer.last - writer.first;
+						}
+					}
+					System.out.println(n + " recipients, " + (parallel ? "parallel (" + executor.getParallelism()
+							+ " threads)" : "sequential") + ": first to last " + (total / rounds / 1000) + " us");
+				}
+			}
+		} finally {
+			executor.shutdown();
+			writer.stop();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final String what = args.length > 0 ? args[0] : "all";
+		if ("all".equals(what) || "allocation".equals(what)) {
+			allocation();
+		}
+		if ("all".equals(what) || "throughput".equals(what)) {
+			throughput();
+		}
+		if ("all".equals(what) || "latency".equals(what)) {
+			latency();
+		}
+	}
+
+	private static Packet message() throws TigaseStringprepException {
+		Element m = new Element("message", new String[] { "type", "id", "from", "to" }, new String[] { "groupchat",
+				"m1", FROM.toString(), "user@example.com/res" });
+		m.addChild(new Element("body", "Lorem ipsum dolor sit amet, consectetur adipiscing elit."));
+		m.addChild(new Element("delay", new String[] { "xmlns", "stamp" }, new String[] { "urn:xmpp:delay",
+				"2013-01-01T00:00:00Z" }));
+		m.addChild(new Element("origin-id", new String[] { "xmlns", "id" }, new String[] { "urn:xmpp:sid:0", "4a5b6c" }));
+		return Packet.packetInstance(m);
+	}
+
+	private static List<JID> recipients(int n) {
+		List<JID> result = new ArrayList<JID>(n);
+		for (int i = 0; i < n; i++) {
+			result.add(JID.jidInstanceNS("user" + i + "@example" + (i % 10) + ".com/res"));
+		}
+		return result;
+	}
+
+	private static void throughput() throws Exception {
+		final Packet msg = message();
+		final QueueWriter writer = new QueueWriter();
+		final FanoutExecutor executor = new FanoutExecutor();
+		executor.setParallelThreshold(0);
+		final FanoutExecutor.RecipientTask batched = envelopeTask(msg);
+		final String[][] attributes = AbstractMucModule.envelopeAttributes(msg.getElement());
+		final List<Element> payload = msg.getElement().getChildren();
+		try {
+			for (int n : new int[] { 1000, 5000 }) {
+				final List<JID> recipients = recipients(n);
+				for (int warmup = 0; warmup < 2; warmup++) {
+					final int messages = 2000000 / n;
+
+					long start = System.nanoTime();
+					for (int m = 0; m < messages; m++) {
+						for (JID jid : recipients) {
+							writer.write(AbstractMucModule.createEnvelope(attributes[0], attributes[1], payload, FROM, jid));
+						}
+					}
+					final long single = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					for (int m = 0; m < messages; m++) {
+						executor.execute(recipients, batched, writer, 100);
+					}
+					final long batch = System.nanoTime() - start;
+
+					if (warmup == 1) {
+						System.out.println(n + " occupants: write(Packet) " + (messages * 1000000000L / single)
+								+ " messages/s, write(Collection) of 100 " + (messages * 1000000000L / batch)
+								+ " messages/s");
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+			writer.stop();
+		}
+	}
+
+}
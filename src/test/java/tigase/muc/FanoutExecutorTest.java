@@ -0,0 +1,210 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+public class FanoutExecutorTest {
+
+	/**
+	 * Stand-in for server routing: route is resource prefix of recipient
+	 * (<code>node1-...</code>).
+	 */
+	private static final class NodeRouteResolver implements RecipientRouteResolver {
+
+		@Override
+		public String getRoute(JID recipient) {
+			String resource = recipient.getResource();
+			return resource.substring(0, resource.indexOf('-'));
+		}
+	}
+
+	private static final class BatchWriter implements PacketWriter {
+
+		private final List<List<Packet>> batches = new ArrayList<List<Packet>>();
+
+		@Override
+		public synchronized void write(Collection<Packet> packets) {
+			batches.add(new ArrayList<Packet>(packets));
+		}
+
+		@Override
+		public synchronized void write(Packet packet) {
+			List<Packet> l = new ArrayList<Packet>();
+			l.add(packet);
+			batches.add(l);
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
+	private static final FanoutExecutor.RecipientTask TASK = new FanoutExecutor.RecipientTask() {
+
+		@Override
+		public void process(JID recipient, PacketBatch batch) {
+			JID from = JID.jidInstanceNS("room@muc.example.com/nick");
+			Element message = new Element("message", new String[] { "from", "to" }, new String[] { from.toString(),
+					recipient.toString() });
+			batch.add(Packet.packetInstance(message, from, recipient));
+		}
+	};
+
+	private static List<JID> recipients(int count, int nodes) {
+		List<JID> result = new ArrayList<JID>();
+		for (int i = 0; i < count; i++) {
+			result.add(JID.jidInstanceNS("user" + i, "example.com", "node" + (i % nodes) + "-" + i));
+		}
+		return result;
+	}
+
+	private void assertGrouped(BatchWriter writer, int count, int batchSize) {
+		NodeRouteResolver resolver = new NodeRouteResolver();
+		Set<JID> delivered = new HashSet<JID>();
+		for (List<Packet> batch : writer.batches) {
+			Assert.assertTrue("Batch too big", batch.size() <= batchSize);
+			String route = resolver.getRoute(batch.get(0).getStanzaTo());
+			for (Packet p : batch) {
+				Assert.assertEquals("Batch contains packets of different routes", route,
+						resolver.getRoute(p.getStanzaTo()));
+				Assert.assertTrue("Packet delivered twice", delivered.add(p.getStanzaTo()));
+			}
+		}
+		Assert.assertEquals(count, delivered.size());
+	}
+
+	@Test
+	public void testGroupedFanout() throws TigaseStringprepException {
+		FanoutExecutor executor = new FanoutExecutor();
+		executor.setRouteResolver(new NodeRouteResolver());
+		BatchWriter writer = new BatchWriter();
+
+		executor.execute(recipients(100, 3), TASK, writer, 10);
+
+		assertGrouped(writer, 100, 10);
+		// 34 + 33 + 33 recipients in batches of 10
+		Assert.assertEquals(12, writer.batches.size());
+
+		StatisticsList list = new StatisticsList(Level.ALL);
+		executor.getStatistics("muc", list);
+		Assert.assertEquals(4, list.getValue("muc", "Fan-out route node0 batches", -1L));
+		Assert.assertEquals(4, list.getValue("muc", "Fan-out route node1 batches", -1L));
+		Assert.assertEquals(8.5f, list.getValue("muc", "Fan-out route node0 average batch size", -1f), 0.001f);
+	}
+
+	@Test
+	public void testGroupedParallelFanout() throws TigaseStringprepException {
+		FanoutExecutor executor = new FanoutExecutor();
+		executor.setRouteResolver(new NodeRouteResolver());
+		executor.setParallelThreshold(1);
+		executor.setSplitSize(7);
+		BatchWriter writer = new BatchWriter();
+
+		try {
+			executor.execute(recipients(500, 4), TASK, writer, 16);
+		} finally {
+			executor.shutdown();
+		}
+
+		assertGrouped(writer, 500, 16);
+	}
+
+	@Test
+	public void testParallelFanoutFailure() {
+		FanoutExecutor executor = new FanoutExecutor();
+		executor.setParallelThreshold(1);
+		executor.setSplitSize(7);
+		BatchWriter writer = new BatchWriter();
+		final TigaseStringprepException failure = new TigaseStringprepException("bad recipient");
+
+		try {
+			executor.execute(recipients(100, 1), new FanoutExecutor.RecipientTask() {
+
+				@Override
+				public void process(JID recipient, PacketBatch batch) throws TigaseStringprepException {
+					if (recipient.getLocalpart().equals("user42")) {
+						throw failure;
+					}
+					TASK.process(recipient, batch);
+				}
+			}, writer, 10);
+			Assert.fail("Exception of task was swallowed");
+		} catch (TigaseStringprepException e) {
+			Assert.assertSame(failure, e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSetParallelismKeepsPoolUsable() throws TigaseStringprepException {
+		FanoutExecutor executor = new FanoutExecutor();
+		executor.setParallelThreshold(1);
+		executor.setSplitSize(7);
+
+		try {
+			executor.execute(recipients(50, 1), TASK, new BatchWriter(), 10);
+			executor.setParallelism(2);
+			BatchWriter writer = new BatchWriter();
+			executor.execute(recipients(50, 1), TASK, writer, 10);
+
+			int count = 0;
+			for (List<Packet> batch : writer.batches) {
+				count += batch.size();
+			}
+			Assert.assertEquals(50, count);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testUngroupedFanout() throws TigaseStringprepException {
+		FanoutExecutor executor = new FanoutExecutor();
+		BatchWriter writer = new BatchWriter();
+
+		executor.execute(recipients(25, 3), TASK, writer, 10);
+
+		Assert.assertEquals(3, writer.batches.size());
+		Assert.assertEquals(10, writer.batches.get(0).size());
+		Assert.assertEquals(5, writer.batches.get(2).size());
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * Groupchat message processed by component, from
+ * {@linkplain tigase.muc.modules.GroupchatMessageModule} to packet writer.
+ */
+public class GroupchatFanoutTest {
+
+	/**
+	 * Stand-in for server routing: route is resource prefix of recipient
+	 * (<code>node1-...</code>).
+	 */
+	public static final class NodeRouteResolver implements RecipientRouteResolver {
+
+		@Override
+		public String getRoute(JID recipient) {
+			String resource = recipient.getResource();
+			return resource.substring(0, resource.indexOf('-'));
+		}
+	}
+
+	private static final class CapturingWriter implements PacketWriter {
+
+		private final List<List<Packet>> batches = new ArrayList<List<Packet>>();
+
+		@Override
+		public synchronized void write(Collection<Packet> elements) {
+			batches.add(new ArrayList<Packet>(elements));
+		}
+
+		@Override
+		public synchronized void write(Packet element) {
+			List<Packet> l = new ArrayList<Packet>();
+			l.add(element);
+			batches.add(l);
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+
+	}
+
+	private static final BareJID ROOM = BareJID.bareJIDInstanceNS("room@muc.example.com");
+
+	private static final int OCCUPANTS = 250;
+
+	private static final int ROUTES = 3;
+
+	private static JID occupant(int i) {
+		return JID.jidInstanceNS("user" + i + "@example.com/node" + (i % ROUTES) + "-res");
+	}
+
+	private MUCComponent createComponent(CapturingWriter writer, String routeResolver) throws Exception {
+		MUCComponent muc = new TestMUCCompoent(writer, new MockMucRepository());
+		muc.setName("muc");
+		Map<String, Object> props = muc.getDefaults(new HashMap<String, Object>());
+		props.put(MUCComponent.MESSAGE_FILTER_ENABLED_KEY, Boolean.TRUE);
+		props.put(MUCComponent.PRESENCE_FILTER_ENABLED_KEY, Boolean.FALSE);
+		props.put(MUCComponent.LOG_DIR_KEY, "./");
+		if (routeResolver != null) {
+			props.put(MUCComponent.FANOUT_ROUTE_RESOLVER_KEY, routeResolver);
+		}
+		muc.setProperties(props);
+
+		Room room = muc.getMucRepository().createNewRoom(ROOM, occupant(0));
+		for (int i = 0; i < OCCUPANTS; i++) {
+			JID jid = occupant(i);
+			Element presence = new Element("presence", new String[] { "from", "to" }, new String[] { jid.toString(),
+					ROOM + "/nick" + i });
+			room.addOccupantByJid(jid, "nick" + i, Role.participant, presence);
+		}
+		return muc;
+	}
+
+	private static Packet groupchat(JID from, String id) throws Exception {
+		Element message = new Element("message", new Element[] { new Element("body", "hello") }, new String[] { "from",
+				"to", "type", "id" }, new String[] { from.toString(), ROOM.toString(), "groupchat", id });
+		Packet p = Packet.packetInstance(message);
+		p.setXMLNS(Packet.CLIENT_XMLNS);
+		return p;
+	}
+
+	private static Set<JID> recipients(CapturingWriter writer) {
+		Set<JID> result = new HashSet<JID>();
+		for (List<Packet> batch : writer.batches) {
+			for (Packet p : batch) {
+				Assert.assertEquals("groupchat", p.getElement().getAttributeStaticStr("type"));
+				Assert.assertTrue("Duplicated delivery to " + p.getStanzaTo(), result.add(p.getStanzaTo()));
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testGroupingIsDisabledByDefault() throws Exception {
+		CapturingWriter writer = new CapturingWriter();
+		MUCComponent muc = createComponent(writer, null);
+		Assert.assertNull(muc.fanoutExecutor.getRouteResolver());
+
+		muc.processPacket(groupchat(occupant(1), "m1"));
+		Assert.assertEquals(OCCUPANTS, recipients(writer).size());
+	}
+
+	@Test
+	public void testMessageIsDeliveredInBatchesPerRoute() throws Exception {
+		CapturingWriter writer = new CapturingWriter();
+		MUCComponent muc = createComponent(writer, NodeRouteResolver.class.getName());
+
+		muc.processPacket(groupchat(occupant(1), "m1"));
+
+		Set<JID> recipients = recipients(writer);
+		Assert.assertEquals(OCCUPANTS, recipients.size());
+		for (int i = 0; i < OCCUPANTS; i++) {
+			Assert.assertTrue("Missing delivery to " + occupant(i), recipients.contains(occupant(i)));
+		}
+
+		// each route fits in single batch
+		final NodeRouteResolver router = new NodeRouteResolver();
+		final Set<String> routes = new HashSet<String>();
+		for (List<Packet> batch : writer.batches) {
+			final String route = router.getRoute(batch.get(0).getStanzaTo());
+			for (Packet p : batch) {
+				Assert.assertEquals(route, router.getRoute(p.getStanzaTo()));
+			}
+			Assert.assertTrue("Route " + route + " is split", routes.add(route));
+		}
+		Assert.assertEquals(ROUTES, routes.size());
+
+		// copies of re-sent message are dropped before fan-out
+		writer.batches.clear();
+		muc.processPacket(groupchat(occupant(1), "m1"));
+		Assert.assertTrue(recipients(writer).isEmpty());
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tigase.db.DataRepository;
+
+public class GroupCommitWriterTest {
+
+	/**
+	 * Stand-in for database: records rooms of inserted rows.
+	 */
+	private static final class Database implements InvocationHandler {
+
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+
+		/**
+		 * If set, execution waits for it.
+		 */
+		volatile CountDownLatch blocker;
+
+		private final List<String> current = new ArrayList<String>();
+
+		volatile boolean failing;
+
+		/**
+		 * If not negative, next batch fails on row with this index.
+		 */
+		volatile int failAt = -1;
+
+		final List<String> inserted = new ArrayList<String>();
+
+		private String room;
+
+		final PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, this);
+
+		DataRepository repository() {
+			return (DataRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { DataRepository.class }, new InvocationHandler() {
+
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if (method.getName().equals("getPreparedStatement")) {
+								return statement;
+							}
+							return null;
+						}
+					});
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if (name.equals("setString") && (Integer) args[0] == 1) {
+				room = (String) args[1];
+			} else if (name.equals("addBatch")) {
+				current.add(room);
+			} else if (name.equals("clearBatch")) {
+				current.clear();
+			} else if (name.equals("executeBatch")) {
+				await();
+				if (failing) {
+					throw new SQLException("database is down");
+				}
+				if (failAt >= 0) {
+					final int processed = failAt;
+					failAt = -1;
+					synchronized (this) {
+						inserted.addAll(current.subList(0, processed));
+					}
+					current.clear();
+					throw new BatchUpdateException(new int[processed]);
+				}
+				synchronized (this) {
+					batchSizes.add(current.size());
+					inserted.addAll(current);
+				}
+				int[] result = new int[current.size()];
+				current.clear();
+				return result;
+			} else if (name.equals("executeUpdate")) {
+				await();
+				if (failing) {
+					throw new SQLException("database is down");
+				}
+				synchronized (this) {
+					inserted.add(room);
+				}
+				return 1;
+			}
+			return null;
+		}
+
+		private void await() throws InterruptedException {
+			final CountDownLatch b = blocker;
+			if (b != null) {
+				b.await(10, TimeUnit.SECONDS);
+			}
+		}
+
+		synchronized List<String> getInserted() {
+			return new ArrayList<String>(inserted);
+		}
+	}
+
+	private static GroupCommitWriter.Row row(String room) {
+		return new GroupCommitWriter.Row(room, 1L, "user@example.com/res", "nick", "body", true, "<message/>");
+	}
+
+	@Test
+	public void testAddDoesNotBlockWhenBufferIsFull() throws Exception {
+		Database db = new Database();
+		db.blocker = new CountDownLatch(1);
+		GroupCommitWriter writer = new GroupCommitWriter(db.repository(), "key", 1, 0, 1);
+		try {
+			Assert.assertTrue(writer.add(row("r1")));
+			// worker takes first row and waits on database
+			Thread.sleep(200);
+			Assert.assertTrue(writer.add(row("r2")));
+
+			long start = System.currentTimeMillis();
+			Assert.assertFalse(writer.add(row("r3")));
+			Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+
+			db.blocker.countDown();
+			Assert.assertTrue(writer.flush(5000));
+			Assert.assertEquals("[r1, r2]", db.getInserted().toString());
+		} finally {
+			db.blocker.countDown();
+			writer.shutdown();
+		}
+	}
+
+	@Test
+	public void testFlushWaitsForRows() throws Exception {
+		Database db = new Database();
+		GroupCommitWriter writer = new GroupCommitWriter(db.repository(), "key", 5, 200, 100);
+		try {
+			for (int i = 0; i < 12; i++) {
+				Assert.assertTrue(writer.add(row("r" + i)));
+			}
+			Assert.assertTrue(writer.flush(5000));
+			Assert.assertEquals(12, db.getInserted().size());
+			Assert.assertEquals("r0", db.getInserted().get(0));
+			Assert.assertEquals("r11", db.getInserted().get(11));
+			for (Integer size : db.batchSizes) {
+				Assert.assertTrue("Batch too big: " + size, size <= 5);
+			}
+			Assert.assertEquals(12, writer.getRows());
+		} finally {
+			writer.shutdown();
+		}
+	}
+
+	@Test
+	public void testFlushSeesRowTakenByWorker() throws Exception {
+		Database db = new Database();
+		GroupCommitWriter writer = new GroupCommitWriter(db.repository(), "key", 5, 0, 100);
+		try {
+			for (int i = 0; i < 500; i++) {
+				Assert.assertTrue(writer.add(row("r" + i)));
+				Assert.assertTrue(writer.flush(5000));
+				Assert.assertEquals(i + 1, db.getInserted().size());
+			}
+		} finally {
+			writer.shutdown();
+		}
+	}
+
+	@Test
+	public void testFlushTimeoutWhenDatabaseIsDown() throws Exception {
+		Database db = new Database();
+		db.failing = true;
+		GroupCommitWriter writer = new GroupCommitWriter(db.repository(), "key", 5, 0, 100);
+		try {
+			writer.add(row("r1"));
+			Assert.assertFalse(writer.flush(300));
+			Assert.assertTrue(db.getInserted().isEmpty());
+		} finally {
+			writer.shutdown();
+		}
+	}
+
+	@Test
+	public void testPartiallyFailedBatchIsNotDuplicated() throws Exception {
+		Database db = new Database();
+		db.failAt = 2;
+		db.blocker = new CountDownLatch(1);
+		GroupCommitWriter writer = new GroupCommitWriter(db.repository(), "key", 5, 100, 100);
+		try {
+			for (int i = 0; i < 5; i++) {
+				writer.add(row("r" + i));
+			}
+			db.blocker.countDown();
+			Assert.assertTrue(writer.flush(5000));
+			Assert.assertEquals("[r0, r1, r2, r3, r4]", db.getInserted().toString());
+			Assert.assertEquals(5, writer.getRows());
+		} finally {
+			db.blocker.countDown();
+			writer.shutdown();
+		}
+	}
+
+	@Test
+	public void testRowsAreSpooledOnShutdown() throws Exception {
+		File spool = File.createTempFile("muc-history", ".rows");
+		spool.delete();
+		try {
+			Database db = new Database();
+			db.failing = true;
+			GroupCommitWriter writer = new GroupCommitWriter(db.repository(), "key", 5, 0, 100);
+			writer.setSpoolFile(spool);
+			writer.add(row("r1"));
+			writer.add(row("r2"));
+			writer.add(row("r3"));
+			Thread.sleep(200);
+			writer.shutdown();
+			Assert.assertTrue(spool.exists());
+			Assert.assertTrue(db.getInserted().isEmpty());
+
+			Database db2 = new Database();
+			GroupCommitWriter writer2 = new GroupCommitWriter(db2.repository(), "key", 5, 0, 100);
+			try {
+				writer2.setSpoolFile(spool);
+				Assert.assertFalse(spool.exists());
+				writer2.add(row("r4"));
+				Assert.assertTrue(writer2.flush(5000));
+				Assert.assertEquals("[r1, r2, r3, r4]", db2.getInserted().toString());
+			} finally {
+				writer2.shutdown();
+			}
+			Assert.assertFalse(spool.exists());
+		} finally {
+			spool.delete();
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * Measures CPU time and allocation of replaying cached history: message
+ * parsed for every recipient (as without cache) versus message parsed once
+ * and sent in per-recipient envelopes. Not run by unit tests:
+ *
+ * <pre>
+ * java -cp ... tigase.muc.history.HistoryParseBenchmark [recipients] [rounds]
+ * </pre>
+ */
+public class HistoryParseBenchmark {
+
+	private static final BareJID ROOM = BareJID.bareJIDInstanceNS("room@muc.example.com");
+
+	private interface Replay {
+
+		void run(JID to) throws Exception;
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		final MemoryHistoryProvider provider = new MemoryHistoryProvider();
+		final String stored = "<message type=\"groupchat\" id=\"m1\" xml:lang=\"en\"><body>Lorem ipsum dolor sit amet, "
+				+ "consectetur adipiscing elit.</body><active xmlns=\"http://jabber.org/protocol/chatstates\"/>"
+				+ "<origin-id xmlns=\"urn:xmpp:sid:0\" id=\"4a5b6c\"/></message>";
+		final Date timestamp = new Date();
+		final JID[] to = new JID[recipients];
+		for (int i = 0; i < recipients; i++) {
+			to[i] = JID.jidInstanceNS("user" + i + "@example.com/res");
+		}
+
+		final Replay parseEach = new Replay() {
+
+			@Override
+			public void run(JID to) throws Exception {
+				provider.createMessage(ROOM, to, "nick", stored, null, "sender@example.com/res", false, timestamp);
+			}
+		};
+		final ParsedHistoryMessage parsed = provider.parseMessage(ROOM, "nick", stored, null, "sender@example.com/res",
+				timestamp);
+		final Replay parseOnce = new Replay() {
+
+			@Override
+			public void run(JID to) throws Exception {
+				parsed.createPacket(to, false);
+			}
+		};
+
+		// warm-up
+		measure("warm-up", parseEach, to, rounds);
+		measure("warm-up", parseOnce, to, rounds);
+
+		measure("parsed per recipient", parseEach, to, rounds);
+		measure("parsed once, shared payload", parseOnce, to, rounds);
+	}
+
+	private static void measure(String name, Replay replay, JID[] to, int rounds) throws Exception {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		final long cpu = bean.getCurrentThreadCpuTime();
+		final long allocated = allocatedBytes();
+		for (int r = 0; r < rounds; r++) {
+			for (JID jid : to) {
+				replay.run(jid);
+			}
+		}
+		final long packets = (long) rounds * to.length;
+		System.out.println(name + ": " + ((bean.getCurrentThreadCpuTime() - cpu) / packets) + " ns CPU, "
+				+ ((allocatedBytes() - allocated) / packets) + " bytes allocated per packet");
+	}
+
+}
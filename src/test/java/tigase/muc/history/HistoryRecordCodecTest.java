@@ -0,0 +1,100 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+public class HistoryRecordCodecTest {
+
+	private static Element parse(String xml) {
+		SimpleParser parser = SingletonFactory.getParserInstance();
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, xml.toCharArray(), 0, xml.length());
+		return domHandler.getParsedElements().poll();
+	}
+
+	private static void assertRoundTrip(String xml) throws IOException {
+		Element message = parse(xml);
+		String record = HistoryRecordCodec.encode(message);
+
+		Assert.assertTrue(HistoryRecordCodec.isEncoded(record));
+		Assert.assertEquals(message.toString(), HistoryRecordCodec.decode(record).toString());
+	}
+
+	@Test
+	public void testMessage() throws IOException {
+		assertRoundTrip("<message type=\"groupchat\" id=\"a1\"><body>Hello &amp; welcome</body>"
+				+ "<origin-id xmlns=\"urn:xmpp:sid:0\" id=\"x-1\"/></message>");
+	}
+
+	@Test
+	public void testNotDictionaryStrings() throws IOException {
+		assertRoundTrip("<message type=\"groupchat\"><body>Zażółć gęślą jaźń</body>"
+				+ "<custom xmlns=\"urn:example:custom\" attr=\"value\"><nested/></custom></message>");
+	}
+
+	@Test
+	public void testMixedContentKeepsOrder() throws IOException {
+		assertRoundTrip("<message type=\"groupchat\"><body>Hello world!</body>"
+				+ "<html xmlns=\"http://jabber.org/protocol/xhtml-im\"><body xmlns=\"http://www.w3.org/1999/xhtml\">"
+				+ "<p>Hello <strong>world</strong>!</p></body></html></message>");
+	}
+
+	@Test
+	public void testLongMessageIsCompressed() throws IOException {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			body.append("the same text ");
+		}
+		String xml = "<message type=\"groupchat\"><body>" + body + "</body></message>";
+		assertRoundTrip(xml);
+		Assert.assertTrue(HistoryRecordCodec.encode(parse(xml)).length() < body.length() / 4);
+	}
+
+	@Test
+	public void testXmlIsNotEncoded() {
+		Assert.assertFalse(HistoryRecordCodec.isEncoded("<message/>"));
+		Assert.assertFalse(HistoryRecordCodec.isEncoded(null));
+	}
+
+	@Test
+	public void testDamagedRecord() {
+		for (String record : new String[] { HistoryRecordCodec.PREFIX, HistoryRecordCodec.PREFIX + "!!",
+				HistoryRecordCodec.PREFIX + "CQ==", HistoryRecordCodec.PREFIX + "AQ==" }) {
+			try {
+				HistoryRecordCodec.decode(record);
+				Assert.fail("Damaged record decoded: " + record);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+}
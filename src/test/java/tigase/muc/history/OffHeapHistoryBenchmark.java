@@ -0,0 +1,131 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+/**
+ * Compares heap use and GC time of {@linkplain MemoryHistoryProvider} and
+ * {@linkplain OffHeapHistoryProvider} holding the same history. Not run by
+ * unit tests:
+ *
+ * <pre>
+ * java -Xmx2g -XX:MaxDirectMemorySize=2g -cp ... tigase.muc.history.OffHeapHistoryBenchmark \
+ *     [memory|offheap] [rooms] [messages]
+ * </pre>
+ *
+ * Each provider should be measured in separate JVM, so heap left by the first
+ * one doesn't affect the second.
+ */
+public class OffHeapHistoryBenchmark {
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final String type = args.length > 0 ? args[0] : "offheap";
+		final int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		final int messages = args.length > 2 ? Integer.parseInt(args[2]) : 2000000;
+
+		final Map<String, Object> props = new HashMap<String, Object>();
+		final AbstractHistoryProvider provider;
+		if ("memory".equals(type)) {
+			provider = new MemoryHistoryProvider();
+			props.put(MemoryHistoryProvider.HISTORY_MEMORY_LIMIT_KEY, 1024);
+		} else {
+			provider = new OffHeapHistoryProvider();
+			props.put(OffHeapHistoryProvider.HISTORY_OFFHEAP_LIMIT_KEY, 1024);
+		}
+		provider.init(props);
+
+		final Room[] r = new Room[rooms];
+		for (int i = 0; i < rooms; i++) {
+			BareJID roomJID = BareJID.bareJIDInstanceNS("room" + i + "@muc.example.com");
+			r[i] = Room.newInstance(new RoomConfig(roomJID), new Date(), BareJID.bareJIDInstanceNS("owner@example.com"));
+		}
+		final JID sender = JID.jidInstanceNS("user@example.com/res");
+		final StringBuilder text = new StringBuilder();
+		while (text.length() < 200) {
+			text.append("Lorem ipsum dolor sit amet. ");
+		}
+		final String body = text.toString();
+
+		final long heapBefore = usedHeap();
+		final int fill = rooms * r[0].getConfig().getMaxHistory();
+		for (int i = 0; i < fill; i++) {
+			add(provider, r[i % rooms], sender, body);
+		}
+		final long heapAfter = usedHeap();
+
+		final long gcCount = gcCount();
+		final long gcTime = gcTime();
+		final long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			add(provider, r[i % rooms], sender, body);
+		}
+		final long elapsed = System.nanoTime() - start;
+
+		System.out.println(type + ": rooms=" + rooms + ", stored messages=" + fill);
+		System.out.println("  retained heap: " + ((heapAfter - heapBefore) / 1024 / 1024) + " MB");
+		System.out.println("  " + messages + " messages added in " + (elapsed / 1000000) + " ms");
+		System.out.println("  GC: " + (gcCount() - gcCount) + " collections, " + (gcTime() - gcTime) + " ms");
+		provider.destroy();
+	}
+
+	private static void add(AbstractHistoryProvider provider, Room room, JID sender, String body) {
+		Element message = new Element("message", new Element[] { new Element("body", body) }, new String[] { "type",
+				"from", "to" }, new String[] { "groupchat", room.getRoomJID() + "/nick", sender.toString() });
+		provider.addMessage(room, message, body, sender, "nick", new Date());
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Tigase Jabber/XMPP Multi-User Chat Component
+ * Copyright (C) 2008 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.muc.history;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlabAllocatorTest {
+
+	private static int offset(long handle) {
+		return (int) handle;
+	}
+
+	private static int slab(long handle) {
+		return (int) (handle >>> 32);
+	}
+
+	@Test
+	public void testBlocksOfOneSizeClassShareSlab() {
+		SlabAllocator allocator = new SlabAllocator(4096, 1024 * 1024);
+
+		long a = allocator.allocate(1);
+		long b = allocator.allocate(64);
+		long c = allocator.allocate(65);
+
+		Assert.assertEquals(0, slab(a));
+		Assert.assertEquals(0, offset(a));
+		Assert.assertEquals(0, slab(b));
+		Assert.assertEquals(64, offset(b));
+		// 65 bytes need 128 bytes block from other slab
+		Assert.assertEquals(1, slab(c));
+		Assert.assertEquals(0, offset(c));
+		Assert.assertEquals(64 + 64 + 128, allocator.getAllocatedBytes());
+		Assert.assertEquals(3, allocator.getAllocatedBlocks());
+		Assert.assertEquals(2 * 4096, allocator.getReservedBytes());
+	}
+
+	@Test
+	public void testBlockBiggerThanSlabIsRejected() {
+		SlabAllocator allocator = new SlabAllocator(4096, 1024 * 1024);
+
+		Assert.assertEquals(4096, allocator.getMaxBlockSize());
+		Assert.assertTrue(allocator.allocate(4096) >= 0);
+		Assert.assertEquals(-1, allocator.allocate(4097));
+		Assert.assertFalse(allocator.canAllocate(4097));
+		Assert.assertEquals(1, allocator.getFailures());
+	}
+
+	@Test
+	public void testFreedBlockIsReused() {
+		SlabAllocator allocator = new SlabAllocator(4096, 1024 * 1024);
+
+		long a = allocator.allocate(100);
+		allocator.allocate(100);
+		allocator.free(a);
+		Assert.assertEquals(128, allocator.getAllocatedBytes());
+
+		Assert.assertEquals(a, allocator.allocate(100));
+		Assert.assertEquals(256, allocator.getAllocatedBytes());
+		Assert.assertEquals(4096, allocator.getReservedBytes());
+	}
+
+	@Test
+	public void testEmptySlabIsReusedByOtherSizeClass() {
+		SlabAllocator allocator = new SlabAllocator(4096, 2 * 4096);
+
+		List<Long> small = new ArrayList<Long>();
+		for (int i = 0; i < 4096 / 64; i++) {
+			small.add(allocator.allocate(64));
+		}
+		for (long h : small) {
+			Assert.assertEquals(0, slab(h));
+			allocator.free(h);
+		}
+		Assert.assertEquals(1, allocator.getEmptySlabs());
+		Assert.assertEquals(0, allocator.getAllocatedBytes());
+
+		long big = allocator.allocate(2048);
+		Assert.assertEquals(0, slab(big));
+		Assert.assertEquals(0, allocator.getEmptySlabs());
+		Assert.assertEquals(4096, allocator.getReservedBytes());
+	}
+
+	@Test
+	public void testAllocationFailsAtLimit() {
+		SlabAllocator allocator = new SlabAllocator(4096, 2 * 4096);
+
+		List<Long> blocks = new ArrayList<Long>();
+		for (int i = 0; i < 4; i++) {
+			long h = allocator.allocate(2048);
+			Assert.assertTrue(h >= 0);
+			blocks.add(h);
+		}
+		Assert.assertFalse(allocator.canAllocate(2048));
+		Assert.assertFalse(allocator.canAllocate(64));
+		Assert.assertEquals(-1, allocator.allocate(2048));
+		Assert.assertEquals(1, allocator.getFailures());
+
+		// freed block may be reused only by the same size class
+		allocator.free(blocks.get(0));
+		Assert.assertTrue(allocator.canAllocate(2048));
+		Assert.assertFalse(allocator.canAllocate(64));
+		Assert.assertEquals(-1, allocator.allocate(64));
+
+		// slab without live blocks may be reused by any size class
+		allocator.free(blocks.get(1));
+		Assert.assertTrue(allocator.canAllocate(64));
+		Assert.assertTrue(allocator.allocate(64) >= 0);
+	}
+
+	@Test
+	public void testWrittenDataIsReadBack() {
+		SlabAllocator allocator = new SlabAllocator(4096, 1024 * 1024);
+
+		byte[] data = new byte[] { 1, 2, 3, 4, 5 };
+		allocator.allocate(10);
+		long h = allocator.allocate(data.length);
+		allocator.write(h, data);
+
+		ByteBuffer b = allocator.buffer(h, data.length);
+		Assert.assertEquals(data.length, b.remaining());
+		byte[] read = new byte[data.length];
+		b.get(read);
+		Assert.assertArrayEquals(data, read);
+	}
+
+}